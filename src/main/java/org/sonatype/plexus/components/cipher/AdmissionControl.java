@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulkhead in front of expensive decryption: a bounded number of concurrent operations, a bounded FIFO queue of
+ * callers waiting for a slot at most a given time, and an optional token bucket per caller key. Whoever exceeds a limit
+ * gets a {@link PlexusCipherOverloadedException} right away instead of piling up.
+ */
+public final class AdmissionControl
+{
+    /** caller buckets idle this long are dropped when the map grows large */
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos( 1 );
+
+    private static final int MAX_CALLERS = 10000;
+
+    private final Semaphore _slots;
+
+    private final int _maxQueued;
+
+    private final long _timeoutNanos;
+
+    private final double _callerRate;
+
+    private final double _callerBurst;
+
+    private final AtomicInteger _queued = new AtomicInteger();
+
+    private final ConcurrentMap<String, Bucket> _callers = new ConcurrentHashMap<String, Bucket>();
+
+    private final AtomicLong _rejected = new AtomicLong();
+
+    // ---------------------------------------------------------------
+    /**
+     * @param maxConcurrent operations running at once, 0 for no limit
+     * @param maxQueued callers waiting for a slot, beyond that they are rejected immediately
+     * @param timeoutMillis longest wait for a slot
+     * @param callerRate sustained operations per second and caller key, 0 for no limit
+     * @param callerBurst operations a caller key may do in a burst
+     */
+    public AdmissionControl( final int maxConcurrent, final int maxQueued, final long timeoutMillis,
+                             final double callerRate, final int callerBurst )
+    {
+        _slots = maxConcurrent > 0 ? new Semaphore( maxConcurrent, true ) : null;
+        _maxQueued = maxQueued;
+        _timeoutNanos = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        _callerRate = callerRate;
+        _callerBurst = Math.max( 1, callerBurst );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return control configured from the given settings, null if they do not limit anything
+     */
+    static AdmissionControl create( final PlexusCipherConfiguration config )
+    {
+        if ( config.getMaxConcurrentDecrypts() < 1 && config.getCallerRate() <= 0 )
+        {
+            return null;
+        }
+
+        return new AdmissionControl( config.getMaxConcurrentDecrypts(), config.getMaxQueuedDecrypts(),
+                                     config.getAdmissionTimeoutMillis(), config.getCallerRate(),
+                                     config.getCallerBurst() );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * wait for a slot, every successful call must be paired with {@link #exit()}. A caller is charged only for
+     * operations that are admitted, a rejection for lack of a slot gives the token back.
+     * 
+     * @param callerKey whom to charge for the operation, null for anonymous callers that are not rate limited
+     */
+    public void enter( final String callerKey )
+        throws PlexusCipherOverloadedException
+    {
+        Bucket bucket = callerKey != null && _callerRate > 0 ? bucket( callerKey ) : null;
+
+        if ( bucket != null && !bucket.take( _callerRate, _callerBurst ) )
+        {
+            throw reject( "default.plexus.cipher.overloaded: rate limit of " + callerKey );
+        }
+
+        boolean admitted = false;
+        try
+        {
+            acquireSlot();
+
+            admitted = true;
+        }
+        finally
+        {
+            if ( !admitted && bucket != null )
+            {
+                bucket.refund( _callerBurst );
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void acquireSlot()
+        throws PlexusCipherOverloadedException
+    {
+        if ( _slots == null || _slots.tryAcquire() )
+        {
+            return;
+        }
+
+        if ( _queued.incrementAndGet() > _maxQueued )
+        {
+            _queued.decrementAndGet();
+
+            throw reject( "default.plexus.cipher.overloaded: queue full" );
+        }
+
+        try
+        {
+            if ( !_slots.tryAcquire( _timeoutNanos, TimeUnit.NANOSECONDS ) )
+            {
+                throw reject( "default.plexus.cipher.overloaded: timed out" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+
+            throw reject( "default.plexus.cipher.overloaded: interrupted" );
+        }
+        finally
+        {
+            _queued.decrementAndGet();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public void exit()
+    {
+        if ( _slots != null )
+        {
+            _slots.release();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return number of operations turned away so far
+     */
+    public long getRejected()
+    {
+        return _rejected.get();
+    }
+
+    // ---------------------------------------------------------------
+    public int getQueued()
+    {
+        return _queued.get();
+    }
+
+    // ---------------------------------------------------------------
+    private PlexusCipherOverloadedException reject( final String message )
+    {
+        _rejected.incrementAndGet();
+
+        return new PlexusCipherOverloadedException( message );
+    }
+
+    // ---------------------------------------------------------------
+    private Bucket bucket( final String callerKey )
+    {
+        Bucket res = _callers.get( callerKey );
+
+        if ( res == null )
+        {
+            if ( _callers.size() >= MAX_CALLERS )
+            {
+                long now = System.nanoTime();
+                for ( Iterator<Bucket> it = _callers.values().iterator(); it.hasNext(); )
+                {
+                    if ( now - it.next().last > IDLE_NANOS )
+                    {
+                        it.remove();
+                    }
+                }
+            }
+
+            res = new Bucket( _callerBurst );
+
+            Bucket old = _callers.putIfAbsent( callerKey, res );
+            if ( old != null )
+            {
+                res = old;
+            }
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    private static final class Bucket
+    {
+        private double tokens;
+
+        private volatile long last = System.nanoTime();
+
+        Bucket( final double tokens )
+        {
+            this.tokens = tokens;
+        }
+
+        synchronized boolean take( final double rate, final double burst )
+        {
+            long now = System.nanoTime();
+
+            tokens = Math.min( burst, tokens + ( now - last ) * rate / TimeUnit.SECONDS.toNanos( 1 ) );
+            last = now;
+
+            if ( tokens < 1 )
+            {
+                return false;
+            }
+
+            tokens -= 1;
+
+            return true;
+        }
+
+        synchronized void refund( final double burst )
+        {
+            tokens = Math.min( burst, tokens + 1 );
+        }
+    }
+}
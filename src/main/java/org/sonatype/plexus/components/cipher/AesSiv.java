@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-SIV as specified by RFC 5297, built on the plain AES/ECB and AES/CTR transformations every JCE provides.
+ * Encryption is deterministic: the same key, associated data and plain text always give the same output, which is
+ * the synthetic IV <code>V</code> followed by the cipher text.
+ */
+final class AesSiv
+{
+    static final int BLOCK_SIZE = 16;
+
+    /** two AES-128 keys: CMAC key first, CTR key second */
+    static final int KEY_SIZE = 2 * BLOCK_SIZE;
+
+    private static final byte[] ZERO = new byte[BLOCK_SIZE];
+
+    private AesSiv()
+    {
+    }
+
+    // ---------------------------------------------------------------
+    static byte[] encrypt( final byte[] key, final byte[][] associatedData, final byte[] clearBytes )
+        throws GeneralSecurityException
+    {
+        byte[] v = s2v( key, associatedData, clearBytes );
+
+        byte[] res = new byte[BLOCK_SIZE + clearBytes.length];
+
+        System.arraycopy( v, 0, res, 0, BLOCK_SIZE );
+
+        ctr( key, v ).doFinal( clearBytes, 0, clearBytes.length, res, BLOCK_SIZE );
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @throws GeneralSecurityException also when the input has been tampered with or the key is wrong
+     */
+    static byte[] decrypt( final byte[] key, final byte[][] associatedData, final byte[] encryptedBytes )
+        throws GeneralSecurityException
+    {
+        if ( encryptedBytes.length < BLOCK_SIZE )
+        {
+            throw new GeneralSecurityException( "SIV input too short" );
+        }
+
+        byte[] v = new byte[BLOCK_SIZE];
+
+        System.arraycopy( encryptedBytes, 0, v, 0, BLOCK_SIZE );
+
+        byte[] clearBytes = ctr( key, v ).doFinal( encryptedBytes, BLOCK_SIZE, encryptedBytes.length - BLOCK_SIZE );
+
+        byte[] expected = s2v( key, associatedData, clearBytes );
+
+        int diff = 0;
+        for ( int i = 0; i < BLOCK_SIZE; i++ )
+        {
+            diff |= expected[i] ^ v[i];
+        }
+
+        if ( diff != 0 )
+        {
+            throw new GeneralSecurityException( "SIV authentication failed" );
+        }
+
+        return clearBytes;
+    }
+
+    // ---------------------------------------------------------------
+    private static Cipher ctr( final byte[] key, final byte[] v )
+        throws GeneralSecurityException
+    {
+        byte[] q = v.clone();
+
+        // clear the 31st and 63rd bit, so that implementations can use 64 bit counters
+        q[8] &= 0x7f;
+        q[12] &= 0x7f;
+
+        Cipher cipher = Cipher.getInstance( "AES/CTR/NoPadding" );
+
+        cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( key, BLOCK_SIZE, BLOCK_SIZE, "AES" ),
+                     new IvParameterSpec( q ) );
+
+        return cipher;
+    }
+
+    // ---------------------------------------------------------------
+    static byte[] s2v( final byte[] key, final byte[][] associatedData, final byte[] clearBytes )
+        throws GeneralSecurityException
+    {
+        Cipher aes = Cipher.getInstance( "AES/ECB/NoPadding" );
+
+        aes.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( key, 0, BLOCK_SIZE, "AES" ) );
+
+        byte[] k1 = dbl( aes.doFinal( ZERO ) );
+
+        byte[] k2 = dbl( k1 );
+
+        byte[] d = cmac( aes, k1, k2, ZERO );
+
+        for ( int i = 0; i < associatedData.length; i++ )
+        {
+            d = xor( dbl( d ), cmac( aes, k1, k2, associatedData[i] ) );
+        }
+
+        byte[] t;
+
+        if ( clearBytes.length >= BLOCK_SIZE )
+        {
+            // xorend
+            t = clearBytes.clone();
+
+            int off = t.length - BLOCK_SIZE;
+            for ( int i = 0; i < BLOCK_SIZE; i++ )
+            {
+                t[off + i] ^= d[i];
+            }
+        }
+        else
+        {
+            t = xor( dbl( d ), pad( clearBytes ) );
+        }
+
+        return cmac( aes, k1, k2, t );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * RFC 4493 AES-CMAC with precomputed subkeys
+     */
+    private static byte[] cmac( final Cipher aes, final byte[] k1, final byte[] k2, final byte[] msg )
+        throws GeneralSecurityException
+    {
+        int blocks = ( msg.length + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+
+        boolean complete = blocks > 0 && msg.length % BLOCK_SIZE == 0;
+
+        if ( blocks == 0 )
+        {
+            blocks = 1;
+        }
+
+        byte[] x = new byte[BLOCK_SIZE];
+
+        for ( int b = 0; b < blocks - 1; b++ )
+        {
+            for ( int i = 0; i < BLOCK_SIZE; i++ )
+            {
+                x[i] ^= msg[b * BLOCK_SIZE + i];
+            }
+            aes.doFinal( x, 0, BLOCK_SIZE, x, 0 );
+        }
+
+        int off = ( blocks - 1 ) * BLOCK_SIZE;
+        byte[] subKey = complete ? k1 : k2;
+
+        for ( int i = 0; i < BLOCK_SIZE; i++ )
+        {
+            int m = off + i < msg.length ? msg[off + i] : ( off + i == msg.length ? 0x80 : 0 );
+            x[i] ^= m ^ subKey[i];
+        }
+
+        return aes.doFinal( x );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * multiplication by x in GF(2^128)
+     */
+    private static byte[] dbl( final byte[] in )
+    {
+        byte[] res = new byte[BLOCK_SIZE];
+
+        for ( int i = 0; i < BLOCK_SIZE - 1; i++ )
+        {
+            res[i] = (byte) ( ( in[i] << 1 ) | ( ( in[i + 1] & 0xff ) >>> 7 ) );
+        }
+
+        res[BLOCK_SIZE - 1] = (byte) ( ( in[BLOCK_SIZE - 1] << 1 ) ^ ( ( in[0] & 0x80 ) != 0 ? 0x87 : 0 ) );
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    private static byte[] pad( final byte[] in )
+    {
+        byte[] res = new byte[BLOCK_SIZE];
+
+        System.arraycopy( in, 0, res, 0, in.length );
+
+        res[in.length] = (byte) 0x80;
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    private static byte[] xor( final byte[] a, final byte[] b )
+    {
+        for ( int i = 0; i < BLOCK_SIZE; i++ )
+        {
+            a[i] ^= b[i];
+        }
+
+        return a;
+    }
+}
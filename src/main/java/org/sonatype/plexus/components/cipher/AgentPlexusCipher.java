@@ -0,0 +1,326 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * {@link DefaultPlexusCipher} that hands the String based encryption and decryption with String pass phrases to a
+ * running {@link CipherAgent}, so that a short lived JVM neither prepares pass phrases nor warms up JCE itself. When
+ * there is no agent, or it stops answering, the work is done in process as usual and the agent is looked for again
+ * a few seconds later. Errors reported by the agent, such as a bad encrypted value, are thrown as they are.
+ * <p>
+ * Each call takes a connection of its own, from a small pool of idle ones, so threads do not wait for each other's
+ * round trips; the batch methods send many values at once, split into requests the agent accepts. Values too long
+ * for a request are done in process.
+ * <p>
+ * The agent encrypts and decrypts with its own configuration, the one it was started with. Settings of this instance
+ * that shape the result or limit the work, such as the engine, the compression threshold or admission control, only
+ * apply to what is done in process.
+ */
+@Named( "agent" )
+@Typed( PlexusCipher.class )
+public class AgentPlexusCipher
+    extends DefaultPlexusCipher
+{
+    private static final long RETRY_MILLIS = 5000;
+
+    private static final int MAX_IDLE = 4;
+
+    /** in chars: up to three UTF-8 bytes each, and room for the encrypted form to grow by a third */
+    private static final int MAX_VALUE_LENGTH = CipherAgent.MAX_STRING / 6;
+
+    private final File _agentFile;
+
+    private final int _timeoutMillis;
+
+    /** connections not in use, guarded by this */
+    private final LinkedList<CipherAgentClient> _idle = new LinkedList<CipherAgentClient>();
+
+    private boolean _connected;
+
+    /** no connection attempts before this time */
+    private long _retryAt;
+
+    // ---------------------------------------------------------------
+    public AgentPlexusCipher()
+        throws PlexusCipherException
+    {
+        this( new PlexusCipherConfiguration() );
+    }
+
+    // ---------------------------------------------------------------
+    @Inject
+    public AgentPlexusCipher( final PlexusCipherConfiguration config )
+        throws PlexusCipherException
+    {
+        super( config );
+
+        PlexusCipherConfiguration effective = getConfiguration();
+
+        _agentFile = CipherAgent.getAgentFile( effective );
+        _timeoutMillis = effective.getAgentTimeoutMillis();
+    }
+
+    // ---------------------------------------------------------------
+    public String encrypt( final String str, final String passPhrase )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        return encrypt( new String[] { str }, passPhrase )[0];
+    }
+
+    // ---------------------------------------------------------------
+    public String decrypt( final String str, final String passPhrase )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        return decrypt( new String[] { str }, passPhrase )[0];
+    }
+
+    // ---------------------------------------------------------------
+    public String decryptDecorated( final String str, final String passPhrase, final String callerKey )
+        throws PlexusCipherException
+    {
+        // admission control is per process, charged callers stay here
+        if ( str == null || str.length() < 1 || callerKey != null )
+        {
+            return super.decryptDecorated( str, passPhrase, callerKey );
+        }
+
+        return decryptDecorated( new String[] { str }, passPhrase )[0];
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * encrypt all values, in as few round trips as the agent allows
+     */
+    public String[] encrypt( final String[] strs, final String passPhrase )
+        throws PlexusCipherException
+    {
+        return apply( CipherAgent.OP_ENCRYPT, passPhrase, strs );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * decrypt all values, in as few round trips as the agent allows
+     */
+    public String[] decrypt( final String[] strs, final String passPhrase )
+        throws PlexusCipherException
+    {
+        return apply( CipherAgent.OP_DECRYPT, passPhrase, strs );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * decrypt all decorated values, in as few round trips as the agent allows
+     */
+    public String[] decryptDecorated( final String[] strs, final String passPhrase )
+        throws PlexusCipherException
+    {
+        return apply( CipherAgent.OP_DECRYPT_DECORATED, passPhrase, strs );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return true if calls currently go to an agent
+     */
+    public synchronized boolean isAgentConnected()
+    {
+        return _connected;
+    }
+
+    // ---------------------------------------------------------------
+    private String[] apply( final int op, final String passPhrase, final String[] values )
+        throws PlexusCipherException
+    {
+        String[] res = new String[values.length];
+
+        for ( int start = 0; start < values.length; )
+        {
+            // the longest run of values that the agent takes in one request
+            int end = start;
+
+            while ( end < values.length && end - start < CipherAgent.MAX_BATCH && fits( values[end] ) )
+            {
+                end++;
+            }
+
+            String[] answer = null;
+
+            if ( end > start && fits( passPhrase ) )
+            {
+                String[] batch = new String[end - start];
+                System.arraycopy( values, start, batch, 0, batch.length );
+
+                answer = call( op, passPhrase, batch );
+            }
+
+            if ( answer != null )
+            {
+                System.arraycopy( answer, 0, res, start, answer.length );
+            }
+            else
+            {
+                end = Math.max( end, start + 1 );
+
+                for ( int i = start; i < end; i++ )
+                {
+                    res[i] = applyInProcess( op, passPhrase, values[i] );
+                }
+            }
+
+            start = end;
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    private static boolean fits( final String str )
+    {
+        return str == null || str.length() <= MAX_VALUE_LENGTH;
+    }
+
+    // ---------------------------------------------------------------
+    private String applyInProcess( final int op, final String passPhrase, final String value )
+        throws PlexusCipherException
+    {
+        switch ( op )
+        {
+            case CipherAgent.OP_ENCRYPT:
+                return super.encrypt( value, passPhrase );
+
+            case CipherAgent.OP_DECRYPT:
+                return super.decrypt( value, passPhrase );
+
+            default:
+                return super.decryptDecorated( value, passPhrase, null );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the agent's results, null to do the work in process
+     */
+    private String[] call( final int op, final String passPhrase, final String[] values )
+        throws PlexusCipherException
+    {
+        CipherAgentClient client;
+
+        synchronized ( this )
+        {
+            client = _idle.isEmpty() ? null : _idle.removeFirst();
+
+            if ( client == null && System.currentTimeMillis() < _retryAt )
+            {
+                return null;
+            }
+        }
+
+        if ( client == null )
+        {
+            try
+            {
+                client = CipherAgentClient.connect( _agentFile, _timeoutMillis );
+            }
+            catch ( IOException e )
+            {
+                // stale agent file or an agent that is shutting down
+            }
+
+            if ( client == null )
+            {
+                disconnected();
+
+                return null;
+            }
+
+            synchronized ( this )
+            {
+                _connected = true;
+            }
+        }
+
+        boolean reusable = false;
+
+        try
+        {
+            String[] res = client.call( op, passPhrase, values );
+
+            reusable = true;
+
+            return res;
+        }
+        catch ( PlexusCipherException e )
+        {
+            // reported by the agent, the connection is still in step
+            reusable = true;
+
+            throw e;
+        }
+        catch ( IOException e )
+        {
+            disconnected();
+
+            return null;
+        }
+        finally
+        {
+            release( client, reusable );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private synchronized void release( final CipherAgentClient client, final boolean reusable )
+    {
+        if ( reusable && _connected && _idle.size() < MAX_IDLE )
+        {
+            _idle.add( client );
+        }
+        else
+        {
+            client.close();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * the agent is gone, work in process for a while and drop the other connections to it
+     */
+    private synchronized void disconnected()
+    {
+        _connected = false;
+
+        _retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+
+        while ( !_idle.isEmpty() )
+        {
+            _idle.removeFirst().close();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes Base64 text read from the underlying stream, in constant memory. Like {@link Base64#decodeBase64(byte[])}
+ * it skips every character outside the Base64 alphabet, so chunked (CRLF) and unchunked input and any other
+ * whitespace decode alike. Padding ends a group of four characters wherever it appears, and a final group may lack
+ * its padding.
+ */
+public class Base64InputStream
+    extends FilterInputStream
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    private final byte[] _buf = new byte[BUFFER_SIZE];
+
+    private int _bufPos;
+
+    private int _bufLen;
+
+    /** decoded bytes not yet returned, at most two */
+    private final byte[] _pending = new byte[2];
+
+    private int _pendingPos;
+
+    private int _pendingLen;
+
+    private int _bits;
+
+    private int _chars;
+
+    private boolean _eof;
+
+    // ---------------------------------------------------------------
+    public Base64InputStream( final InputStream in )
+    {
+        super( in );
+    }
+
+    // ---------------------------------------------------------------
+    public int read()
+        throws IOException
+    {
+        byte[] b = new byte[1];
+
+        return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    // ---------------------------------------------------------------
+    public int read( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        if ( off < 0 || len < 0 || off + len > b.length )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if ( len == 0 )
+        {
+            return 0;
+        }
+
+        int o = off;
+        int end = off + len;
+
+        while ( _pendingPos < _pendingLen && o < end )
+        {
+            b[o++] = _pending[_pendingPos++];
+        }
+
+        byte[] values = Base64.base64Alphabet;
+
+        while ( o < end )
+        {
+            if ( _bufPos == _bufLen && !fill() )
+            {
+                o = emit( b, o, end, _chars - 1 );
+
+                _chars = 0;
+
+                break;
+            }
+
+            int c = _buf[_bufPos++];
+
+            if ( c == Base64.PAD )
+            {
+                if ( _chars > 1 )
+                {
+                    o = emit( b, o, end, _chars - 1 );
+                }
+
+                _chars = 0;
+            }
+            else if ( c >= 0 && values[c] >= 0 )
+            {
+                _bits = _bits << 6 | values[c];
+
+                if ( ++_chars == 4 )
+                {
+                    o = emit( b, o, end, 3 );
+
+                    _chars = 0;
+                }
+            }
+            // anything else is skipped
+        }
+
+        return o == off ? -1 : o - off;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * write the first <code>bytes</code> bytes of the current group to <code>b</code>, keeping what does not fit
+     *
+     * @return the new write position in <code>b</code>
+     */
+    private int emit( final byte[] b, final int o, final int end, final int bytes )
+    {
+        if ( bytes < 1 )
+        {
+            return o;
+        }
+
+        // align the group as if it had four characters
+        int bits = _bits << ( 6 * ( 3 - bytes ) );
+
+        int pos = o;
+
+        for ( int i = 0; i < bytes; i++ )
+        {
+            byte v = (byte) ( bits >>> ( 16 - 8 * i ) );
+
+            if ( pos < end )
+            {
+                b[pos++] = v;
+            }
+            else
+            {
+                if ( _pendingPos == _pendingLen )
+                {
+                    _pendingPos = 0;
+                    _pendingLen = 0;
+                }
+
+                _pending[_pendingLen++] = v;
+            }
+        }
+
+        _bits = 0;
+
+        return pos;
+    }
+
+    // ---------------------------------------------------------------
+    private boolean fill()
+        throws IOException
+    {
+        if ( _eof )
+        {
+            return false;
+        }
+
+        int n;
+        do
+        {
+            n = in.read( _buf, 0, _buf.length );
+        }
+        while ( n == 0 );
+
+        if ( n < 0 )
+        {
+            _eof = true;
+
+            return false;
+        }
+
+        _bufPos = 0;
+        _bufLen = n;
+
+        return true;
+    }
+
+    // ---------------------------------------------------------------
+    public long skip( final long n )
+        throws IOException
+    {
+        byte[] b = new byte[(int) Math.min( n, 512 )];
+
+        long skipped = 0;
+
+        while ( skipped < n )
+        {
+            int r = read( b, 0, (int) Math.min( b.length, n - skipped ) );
+
+            if ( r < 0 )
+            {
+                break;
+            }
+
+            skipped += r;
+        }
+
+        return skipped;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return decoded bytes that can be read without blocking, a lower bound: the complete groups of alphabet
+     *         characters buffered ahead of any padding
+     */
+    public int available()
+        throws IOException
+    {
+        byte[] values = Base64.base64Alphabet;
+
+        int chars = _chars;
+
+        for ( int i = _bufPos; i < _bufLen; i++ )
+        {
+            int c = _buf[i];
+
+            if ( c == Base64.PAD )
+            {
+                break;
+            }
+
+            if ( c >= 0 && values[c] >= 0 )
+            {
+                chars++;
+            }
+        }
+
+        return _pendingLen - _pendingPos + chars / 4 * 3;
+    }
+
+    // ---------------------------------------------------------------
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    // ---------------------------------------------------------------
+    public void mark( final int readlimit )
+    {
+        // not supported
+    }
+
+    // ---------------------------------------------------------------
+    public void reset()
+        throws IOException
+    {
+        throw new IOException( "mark/reset not supported" );
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base64 encodes everything written to it, in constant memory. The output is byte for byte that of
+ * {@link Base64#encodeBase64(byte[])}, or with <code>chunked</code> that of {@link Base64#encodeBase64Chunked(byte[])}:
+ * lines of 76 characters, each one terminated by CRLF. The padding is only written by {@link #finish()} or
+ * {@link #close()}.
+ */
+public class Base64OutputStream
+    extends FilterOutputStream
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    private final boolean _chunked;
+
+    private final byte[] _buf = new byte[BUFFER_SIZE];
+
+    private int _bufLen;
+
+    /** up to two bytes waiting for a complete group of three */
+    private int _carry;
+
+    private int _carryLen;
+
+    private int _lineLen;
+
+    private boolean _finished;
+
+    // ---------------------------------------------------------------
+    public Base64OutputStream( final OutputStream out )
+    {
+        this( out, false );
+    }
+
+    // ---------------------------------------------------------------
+    public Base64OutputStream( final OutputStream out, final boolean chunked )
+    {
+        super( out );
+
+        _chunked = chunked;
+    }
+
+    // ---------------------------------------------------------------
+    public void write( final int b )
+        throws IOException
+    {
+        checkNotFinished();
+
+        _carry = _carry << 8 | ( b & 0xff );
+
+        if ( ++_carryLen == 3 )
+        {
+            quantum( _carry, 3 );
+
+            _carry = 0;
+            _carryLen = 0;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public void write( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        checkNotFinished();
+
+        if ( off < 0 || len < 0 || off + len > b.length )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int i = off;
+        int end = off + len;
+
+        // complete the carried group first
+        while ( _carryLen != 0 && i < end )
+        {
+            write( b[i++] );
+        }
+
+        for ( int full = end - ( end - i ) % 3; i < full; i += 3 )
+        {
+            quantum( ( b[i] & 0xff ) << 16 | ( b[i + 1] & 0xff ) << 8 | ( b[i + 2] & 0xff ), 3 );
+        }
+
+        while ( i < end )
+        {
+            write( b[i++] );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * writes what is buffered, which excludes the last one or two bytes until the encoding can be completed
+     */
+    public void flush()
+        throws IOException
+    {
+        flushBuffer();
+
+        out.flush();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * write the padding and the last line break, without closing the underlying stream. Nothing can be written
+     * afterwards.
+     */
+    public void finish()
+        throws IOException
+    {
+        if ( _finished )
+        {
+            return;
+        }
+
+        if ( _carryLen > 0 )
+        {
+            quantum( _carry << ( 8 * ( 3 - _carryLen ) ), _carryLen );
+        }
+
+        if ( _chunked && _lineLen > 0 )
+        {
+            lineBreak();
+        }
+
+        _finished = true;
+
+        flushBuffer();
+    }
+
+    // ---------------------------------------------------------------
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @param bits 24 bits, of which the first <code>bytes</code> bytes are data
+     */
+    private void quantum( final int bits, final int bytes )
+        throws IOException
+    {
+        if ( _bufLen + 6 > _buf.length )
+        {
+            flushBuffer();
+        }
+
+        byte[] alphabet = Base64.lookUpBase64Alphabet;
+
+        _buf[_bufLen++] = alphabet[bits >>> 18 & 0x3f];
+        _buf[_bufLen++] = alphabet[bits >>> 12 & 0x3f];
+        _buf[_bufLen++] = bytes > 1 ? alphabet[bits >>> 6 & 0x3f] : Base64.PAD;
+        _buf[_bufLen++] = bytes > 2 ? alphabet[bits & 0x3f] : Base64.PAD;
+
+        // Base64.CHUNK_SIZE is a multiple of 4, so lines only ever end after a whole group
+        if ( _chunked && ( _lineLen += 4 ) == Base64.CHUNK_SIZE )
+        {
+            lineBreak();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void lineBreak()
+    {
+        for ( int i = 0; i < Base64.CHUNK_SEPARATOR.length; i++ )
+        {
+            _buf[_bufLen++] = Base64.CHUNK_SEPARATOR[i];
+        }
+
+        _lineLen = 0;
+    }
+
+    // ---------------------------------------------------------------
+    private void flushBuffer()
+        throws IOException
+    {
+        if ( _bufLen > 0 )
+        {
+            out.write( _buf, 0, _bufLen );
+
+            _bufLen = 0;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void checkNotFinished()
+        throws IOException
+    {
+        if ( _finished )
+        {
+            throw new IOException( "Base64 stream already finished" );
+        }
+    }
+}
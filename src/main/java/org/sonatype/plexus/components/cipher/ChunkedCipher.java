@@ -0,0 +1,915 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption of large payloads in independently authenticated segments under one key derived from the pass phrase
+ * and a random salt. Segments are processed in parallel when an executor is given, and
+ * {@link #open(FileChannel, PreparedPassPhrase)} reads any range of an encrypted file touching only the segments
+ * involved.
+ * <p>
+ * Format: the version byte {@link #VERSION}, the 8 byte salt and the segment size as a big endian int, followed by the
+ * segments. Each segment is AES/CTR cipher text of up to segment size bytes followed by a {@link #TAG_SIZE} byte
+ * HMAC-SHA256 over the header, the segment index, a last segment flag and the cipher text, so that segments cannot
+ * be modified, reordered, dropped or appended unnoticed. An empty payload still has one, empty, segment.
+ */
+public final class ChunkedCipher
+{
+    public static final byte VERSION = 3;
+
+    public static final int HEADER_SIZE = 1 + PBECipher.SALT_SIZE + 4;
+
+    public static final int TAG_SIZE = 16;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    private static final String CIPHER_ALG = "AES/CTR/NoPadding";
+
+    private static final String MAC_ALG = "HmacSHA256";
+
+    private static final SecureRandom _secureRandom = new SecureRandom();
+
+    private final int _segmentSize;
+
+    private final Executor _executor;
+
+    private final int _parallelism;
+
+    // ---------------------------------------------------------------
+    /**
+     * sequential processing with the default segment size
+     */
+    public ChunkedCipher()
+    {
+        this( DEFAULT_SEGMENT_SIZE, null, 1 );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @param segmentSize clear text bytes per segment of newly encrypted payloads
+     * @param executor runs segment ranges next to the calling thread, null to process everything in the caller
+     * @param parallelism number of segment ranges processed at once, including the one of the calling thread
+     */
+    public ChunkedCipher( final int segmentSize, final Executor executor, final int parallelism )
+    {
+        if ( segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE )
+        {
+            throw new IllegalArgumentException( "Segment size out of range: " + segmentSize );
+        }
+
+        _segmentSize = segmentSize;
+        _executor = executor;
+        _parallelism = executor == null ? 1 : Math.max( 1, parallelism );
+    }
+
+    // ---------------------------------------------------------------
+    public int getSegmentSize()
+    {
+        return _segmentSize;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return exact size of the encryption of <code>clearLength</code> bytes
+     */
+    public long getEncryptedLength( final long clearLength )
+    {
+        return HEADER_SIZE + clearLength + segments( clearLength, _segmentSize ) * TAG_SIZE;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return number of clear text bytes of an encrypted payload of the given length and segment size, -1 if no
+     *         payload can have that length
+     */
+    public static long getDecryptedLength( final long encryptedLength, final int segmentSize )
+    {
+        long body = encryptedLength - HEADER_SIZE;
+
+        if ( body < TAG_SIZE )
+        {
+            return -1;
+        }
+
+        long full = (long) segmentSize + TAG_SIZE;
+        long segments = ( body + full - 1 ) / full;
+        long last = body - ( segments - 1 ) * full;
+
+        if ( last < TAG_SIZE || ( last == TAG_SIZE && segments > 1 ) )
+        {
+            return -1;
+        }
+
+        return body - segments * TAG_SIZE;
+    }
+
+    // ---------------------------------------------------------------
+    public byte[] encrypt( final byte[] clearBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        long encryptedLength = getEncryptedLength( clearBytes.length );
+
+        if ( encryptedLength > Integer.MAX_VALUE )
+        {
+            throw new PlexusCipherException( "Payload too large for an array, use the channel methods" );
+        }
+
+        final byte[] res = new byte[(int) encryptedLength];
+
+        final Keys keys = newKeys( passPhrase, _segmentSize );
+
+        System.arraycopy( keys.header, 0, res, 0, HEADER_SIZE );
+
+        final long segments = segments( clearBytes.length, _segmentSize );
+
+        forEachSegment( keys, segments, clearBytes.length, new Job( false )
+        {
+            void segment( final Worker worker, final long index )
+                throws GeneralSecurityException
+            {
+                int off = (int) index * _segmentSize;
+                int len = Math.min( _segmentSize, clearBytes.length - off );
+
+                worker.encrypt( index, index == segments - 1, clearBytes, off, len, res,
+                                HEADER_SIZE + (int) index * ( _segmentSize + TAG_SIZE ) );
+            }
+        } );
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    public byte[] decrypt( final byte[] encryptedBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        final int segmentSize = readHeader( encryptedBytes );
+
+        long clearLength = getDecryptedLength( encryptedBytes.length, segmentSize );
+
+        if ( clearLength < 0 )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        final byte[] res = new byte[(int) clearLength];
+
+        final Keys keys = newKeys( passPhrase, encryptedBytes );
+
+        final long segments = segments( clearLength, segmentSize );
+
+        forEachSegment( keys, segments, clearLength, new Job( false )
+        {
+            void segment( final Worker worker, final long index )
+                throws GeneralSecurityException
+            {
+                int off = (int) index * segmentSize;
+                int len = Math.min( segmentSize, res.length - off );
+
+                worker.decrypt( index, index == segments - 1, encryptedBytes,
+                                HEADER_SIZE + (int) index * ( segmentSize + TAG_SIZE ), len, res, off );
+            }
+        } );
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * encrypt the whole of <code>in</code> into <code>out</code>, starting at position 0 of both. Only positional
+     * reads and writes are used, the channel positions are not changed.
+     */
+    public void encrypt( final FileChannel in, final FileChannel out, final PreparedPassPhrase passPhrase )
+        throws IOException, PlexusCipherException
+    {
+        final long clearLength = in.size();
+
+        final Keys keys = newKeys( passPhrase, _segmentSize );
+
+        writeFully( out, ByteBuffer.wrap( keys.header ), 0 );
+
+        final long segments = segments( clearLength, _segmentSize );
+
+        forEachSegment( keys, segments, clearLength, new Job( true )
+        {
+            void segment( final Worker worker, final long index )
+                throws GeneralSecurityException, IOException
+            {
+                long off = index * _segmentSize;
+                int len = (int) Math.min( _segmentSize, clearLength - off );
+
+                readFully( in, ByteBuffer.wrap( worker.clear, 0, len ), off );
+
+                worker.encrypt( index, index == segments - 1, worker.clear, 0, len, worker.encrypted, 0 );
+
+                writeFully( out, ByteBuffer.wrap( worker.encrypted, 0, len + TAG_SIZE ),
+                            HEADER_SIZE + index * ( _segmentSize + TAG_SIZE ) );
+            }
+        } );
+
+        out.truncate( getEncryptedLength( clearLength ) );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * decrypt the whole of <code>in</code> into <code>out</code>, the counterpart of
+     * {@link #encrypt(FileChannel, FileChannel, PreparedPassPhrase)}
+     */
+    public void decrypt( final FileChannel in, final FileChannel out, final PreparedPassPhrase passPhrase )
+        throws IOException, PlexusCipherException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+
+        readHeader( in, header );
+
+        final int segmentSize = readHeader( header );
+
+        final long clearLength = getDecryptedLength( in.size(), segmentSize );
+
+        if ( clearLength < 0 )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        final Keys keys = newKeys( passPhrase, header );
+
+        final long segments = segments( clearLength, segmentSize );
+
+        forEachSegment( keys, segments, clearLength, new Job( true )
+        {
+            void segment( final Worker worker, final long index )
+                throws GeneralSecurityException, IOException
+            {
+                long off = index * segmentSize;
+                int len = (int) Math.min( segmentSize, clearLength - off );
+
+                readFully( in, ByteBuffer.wrap( worker.encrypted, 0, len + TAG_SIZE ),
+                           HEADER_SIZE + index * ( segmentSize + TAG_SIZE ) );
+
+                worker.decrypt( index, index == segments - 1, worker.encrypted, 0, len, worker.clear, 0 );
+
+                writeFully( out, ByteBuffer.wrap( worker.clear, 0, len ), off );
+            }
+        } );
+
+        out.truncate( clearLength );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return a read only view of the clear text of an encrypted file. Reads decrypt and verify only the segments they
+     *         touch, the last one is kept for subsequent reads. Closing the view closes the channel.
+     */
+    public static DecryptingChannel open( final FileChannel encrypted, final PreparedPassPhrase passPhrase )
+        throws IOException, PlexusCipherException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+
+        readHeader( encrypted, header );
+
+        int segmentSize = readHeader( header );
+
+        long clearLength = getDecryptedLength( encrypted.size(), segmentSize );
+
+        if ( clearLength < 0 )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        return new DecryptingChannel( encrypted, newKeys( passPhrase, header ), clearLength );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * Clear text view of an encrypted file, see {@link ChunkedCipher#open(FileChannel, PreparedPassPhrase)}. The
+     * methods are those of <code>java.nio.channels.SeekableByteChannel</code> minus writing; instances may be shared
+     * between threads.
+     */
+    public static final class DecryptingChannel
+        implements ReadableByteChannel
+    {
+        private final FileChannel _channel;
+
+        private final Worker _worker;
+
+        private final long _size;
+
+        private final long _segments;
+
+        private long _position;
+
+        private long _cached = -1;
+
+        private DecryptingChannel( final FileChannel channel, final Keys keys, final long size )
+            throws PlexusCipherException
+        {
+            _channel = channel;
+            _worker = newWorker( keys );
+            _size = size;
+            _segments = segments( size, keys.segmentSize );
+        }
+
+        public synchronized int read( final ByteBuffer dst )
+            throws IOException
+        {
+            int res = read( dst, _position );
+
+            if ( res > 0 )
+            {
+                _position += res;
+            }
+
+            return res;
+        }
+
+        /**
+         * read at the given clear text position without moving the current position
+         */
+        public synchronized int read( final ByteBuffer dst, final long position )
+            throws IOException
+        {
+            if ( !_channel.isOpen() )
+            {
+                throw new ClosedChannelException();
+            }
+
+            if ( position >= _size )
+            {
+                return -1;
+            }
+
+            int segmentSize = _worker.keys.segmentSize;
+            long pos = position;
+
+            while ( dst.hasRemaining() && pos < _size )
+            {
+                long index = pos / segmentSize;
+                int len = load( index );
+                int off = (int) ( pos - index * segmentSize );
+                int n = Math.min( len - off, dst.remaining() );
+
+                dst.put( _worker.clear, off, n );
+
+                pos += n;
+            }
+
+            return (int) ( pos - position );
+        }
+
+        public synchronized long position()
+        {
+            return _position;
+        }
+
+        public synchronized DecryptingChannel position( final long newPosition )
+        {
+            if ( newPosition < 0 )
+            {
+                throw new IllegalArgumentException( "Negative position " + newPosition );
+            }
+
+            _position = newPosition;
+
+            return this;
+        }
+
+        /**
+         * @return clear text size
+         */
+        public long size()
+        {
+            return _size;
+        }
+
+        public boolean isOpen()
+        {
+            return _channel.isOpen();
+        }
+
+        public synchronized void close()
+            throws IOException
+        {
+            Arrays.fill( _worker.clear, PBECipher.WIPER );
+
+            _cached = -1;
+
+            _channel.close();
+        }
+
+        private int load( final long index )
+            throws IOException
+        {
+            int segmentSize = _worker.keys.segmentSize;
+            int len = (int) Math.min( segmentSize, _size - index * segmentSize );
+
+            if ( _cached != index )
+            {
+                _cached = -1;
+
+                readFully( _channel, ByteBuffer.wrap( _worker.encrypted, 0, len + TAG_SIZE ),
+                           HEADER_SIZE + index * ( segmentSize + TAG_SIZE ) );
+
+                try
+                {
+                    _worker.decrypt( index, index == _segments - 1, _worker.encrypted, 0, len, _worker.clear, 0 );
+                }
+                catch ( GeneralSecurityException e )
+                {
+                    IOException ioe = new IOException( "default.plexus.cipher.badSegment: " + index );
+                    ioe.initCause( e );
+                    throw ioe;
+                }
+
+                _cached = index;
+            }
+
+            return len;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static long segments( final long clearLength, final int segmentSize )
+    {
+        return clearLength == 0 ? 1 : ( clearLength + segmentSize - 1 ) / segmentSize;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return segment size of a well formed header
+     */
+    private static int readHeader( final byte[] header )
+        throws PlexusCipherException
+    {
+        if ( header.length < HEADER_SIZE || header[0] != VERSION )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        int off = 1 + PBECipher.SALT_SIZE;
+        int segmentSize =
+            ( header[off] & 0xff ) << 24 | ( header[off + 1] & 0xff ) << 16 | ( header[off + 2] & 0xff ) << 8
+                | ( header[off + 3] & 0xff );
+
+        if ( segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        return segmentSize;
+    }
+
+    // ---------------------------------------------------------------
+    private static void readHeader( final FileChannel in, final byte[] header )
+        throws IOException, PlexusCipherException
+    {
+        if ( in.size() < HEADER_SIZE )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        readFully( in, ByteBuffer.wrap( header ), 0 );
+    }
+
+    // ---------------------------------------------------------------
+    private static Keys newKeys( final PreparedPassPhrase passPhrase, final int segmentSize )
+        throws PlexusCipherException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+
+        header[0] = VERSION;
+
+        synchronized ( _secureRandom )
+        {
+            byte[] salt = new byte[PBECipher.SALT_SIZE];
+            _secureRandom.nextBytes( salt );
+            System.arraycopy( salt, 0, header, 1, PBECipher.SALT_SIZE );
+        }
+
+        int off = 1 + PBECipher.SALT_SIZE;
+        header[off] = (byte) ( segmentSize >>> 24 );
+        header[off + 1] = (byte) ( segmentSize >>> 16 );
+        header[off + 2] = (byte) ( segmentSize >>> 8 );
+        header[off + 3] = (byte) segmentSize;
+
+        return newKeys( passPhrase, header );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @param header the version, salt and segment size of the payload, possibly followed by more bytes
+     */
+    private static Keys newKeys( final PreparedPassPhrase passPhrase, final byte[] header )
+        throws PlexusCipherException
+    {
+        int segmentSize = readHeader( header );
+
+        byte[] salt = new byte[PBECipher.SALT_SIZE];
+
+        System.arraycopy( header, 1, salt, 0, PBECipher.SALT_SIZE );
+
+        CipherEventListener listener = CipherEvents.getListener();
+
+        long start = CipherEvents.start( listener );
+
+        boolean success = false;
+
+        byte[] keyBytes = null;
+
+        try
+        {
+            keyBytes = PBECipher.deriveKeyAndIv( passPhrase, salt );
+
+            Keys res = new Keys();
+
+            res.header = new byte[HEADER_SIZE];
+            System.arraycopy( header, 0, res.header, 0, HEADER_SIZE );
+            res.segmentSize = segmentSize;
+            res.cipherKey = new SecretKeySpec( keyBytes, 0, PBECipher.SPICE_SIZE, PBECipher.KEY_ALG );
+            res.macKey = new SecretKeySpec( keyBytes, PBECipher.SPICE_SIZE, PBECipher.SPICE_SIZE, MAC_ALG );
+
+            success = true;
+
+            return res;
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+        finally
+        {
+            if ( keyBytes != null )
+            {
+                Arrays.fill( keyBytes, PBECipher.WIPER );
+            }
+
+            CipherEvents.end( listener, CipherPhase.KEY_DERIVATION, passPhrase.getBytes().length, start, success );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static Worker newWorker( final Keys keys )
+        throws PlexusCipherException
+    {
+        try
+        {
+            return new Worker( keys, true );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * split the segments into contiguous ranges, one per thread, and process them with one {@link Worker} each
+     */
+    private void forEachSegment( final Keys keys, final long segments, final long clearLength, final Job job )
+        throws PlexusCipherException
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+
+        long start = CipherEvents.start( listener );
+
+        boolean success = false;
+
+        try
+        {
+            int tasks = (int) Math.min( _parallelism, segments );
+
+            List<FutureTask<Object>> futures = new ArrayList<FutureTask<Object>>( tasks );
+
+            // set on the first failure, the other ranges stop at their next segment
+            final AtomicBoolean stop = new AtomicBoolean();
+
+            for ( int t = 0; t < tasks; t++ )
+            {
+                final long from = segments * t / tasks;
+                final long to = segments * ( t + 1 ) / tasks;
+
+                FutureTask<Object> future = new FutureTask<Object>( new Callable<Object>()
+                {
+                    public Object call()
+                        throws Exception
+                    {
+                        boolean done = false;
+                        Worker worker = null;
+                        try
+                        {
+                            worker = new Worker( keys, job.buffered );
+
+                            for ( long i = from; i < to && !stop.get(); i++ )
+                            {
+                                job.segment( worker, i );
+                            }
+
+                            done = true;
+                        }
+                        finally
+                        {
+                            if ( !done )
+                            {
+                                stop.set( true );
+                            }
+                            if ( worker != null )
+                            {
+                                Arrays.fill( worker.clear, PBECipher.WIPER );
+                            }
+                        }
+                        return null;
+                    }
+                } );
+
+                futures.add( future );
+
+                if ( t > 0 )
+                {
+                    _executor.execute( future );
+                }
+            }
+
+            // the calling thread takes the first range
+            futures.get( 0 ).run();
+
+            PlexusCipherException failure = null;
+
+            InterruptedException interrupted = null;
+
+            // every range has to be finished before returning, none may still write to the caller's output. No
+            // interrupts or cancellations: they would close the channels the other ranges use, or stop waiting early.
+            for ( FutureTask<Object> future : futures )
+            {
+                while ( true )
+                {
+                    try
+                    {
+                        future.get();
+
+                        break;
+                    }
+                    catch ( ExecutionException e )
+                    {
+                        if ( failure == null )
+                        {
+                            failure = toPlexusCipherException( e.getCause() );
+                        }
+
+                        break;
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        interrupted = e;
+
+                        stop.set( true );
+                    }
+                }
+            }
+
+            if ( interrupted != null )
+            {
+                Thread.currentThread().interrupt();
+
+                throw new PlexusCipherException( "Interrupted", interrupted );
+            }
+
+            if ( failure != null )
+            {
+                throw failure;
+            }
+
+            success = true;
+        }
+        finally
+        {
+            CipherEvents.end( listener, CipherPhase.CIPHER_FINAL, (int) Math.min( clearLength, Integer.MAX_VALUE ), start,
+                              success );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static PlexusCipherException toPlexusCipherException( final Throwable t )
+    {
+        if ( t instanceof PlexusCipherException )
+        {
+            return (PlexusCipherException) t;
+        }
+
+        if ( t instanceof SegmentException )
+        {
+            return new PlexusCipherException( t.getMessage(), t.getCause() );
+        }
+
+        return new PlexusCipherException( t );
+    }
+
+    // ---------------------------------------------------------------
+    private static void readFully( final FileChannel channel, final ByteBuffer dst, final long position )
+        throws IOException
+    {
+        long pos = position;
+
+        while ( dst.hasRemaining() )
+        {
+            int n = channel.read( dst, pos );
+
+            if ( n < 0 )
+            {
+                throw new EOFException( "Encrypted data truncated at " + pos );
+            }
+
+            pos += n;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static void writeFully( final FileChannel channel, final ByteBuffer src, final long position )
+        throws IOException
+    {
+        long pos = position;
+
+        while ( src.hasRemaining() )
+        {
+            pos += channel.write( src, pos );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private abstract static class Job
+    {
+        /** whether the segments are staged in the worker buffers */
+        final boolean buffered;
+
+        Job( final boolean buffered )
+        {
+            this.buffered = buffered;
+        }
+
+        abstract void segment( Worker worker, long index )
+            throws Exception;
+    }
+
+    // ---------------------------------------------------------------
+    private static final class Keys
+    {
+        byte[] header;
+
+        int segmentSize;
+
+        SecretKeySpec cipherKey;
+
+        SecretKeySpec macKey;
+    }
+
+    // ---------------------------------------------------------------
+    private static final class SegmentException
+        extends GeneralSecurityException
+    {
+        private static final long serialVersionUID = 1L;
+
+        SegmentException( final String message )
+        {
+            super( message );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * per thread cipher, mac and segment buffers
+     */
+    private static final class Worker
+    {
+        final Keys keys;
+
+        final Cipher cipher;
+
+        final Mac mac;
+
+        final byte[] iv = new byte[PBECipher.SPICE_SIZE];
+
+        final byte[] tag;
+
+        final byte[] clear;
+
+        final byte[] encrypted;
+
+        Worker( final Keys keys, final boolean buffered )
+            throws GeneralSecurityException
+        {
+            this.keys = keys;
+
+            cipher = CipherProviders.newCipher( CIPHER_ALG );
+
+            mac = Mac.getInstance( MAC_ALG );
+            mac.init( keys.macKey );
+
+            tag = new byte[mac.getMacLength()];
+            clear = new byte[buffered ? keys.segmentSize : 0];
+            encrypted = new byte[buffered ? keys.segmentSize + TAG_SIZE : 0];
+        }
+
+        /**
+         * writes <code>len</code> bytes of cipher text followed by the tag
+         */
+        void encrypt( final long index, final boolean last, final byte[] in, final int inOff, final int len,
+                      final byte[] out, final int outOff )
+            throws GeneralSecurityException
+        {
+            init( Cipher.ENCRYPT_MODE, index );
+
+            cipher.doFinal( in, inOff, len, out, outOff );
+
+            tag( index, last, out, outOff, len );
+
+            System.arraycopy( tag, 0, out, outOff + len, TAG_SIZE );
+        }
+
+        /**
+         * verifies the tag following <code>len</code> bytes of cipher text before decrypting them
+         */
+        void decrypt( final long index, final boolean last, final byte[] in, final int inOff, final int len,
+                      final byte[] out, final int outOff )
+            throws GeneralSecurityException
+        {
+            tag( index, last, in, inOff, len );
+
+            int diff = 0;
+            for ( int i = 0; i < TAG_SIZE; i++ )
+            {
+                diff |= tag[i] ^ in[inOff + len + i];
+            }
+
+            if ( diff != 0 )
+            {
+                throw new SegmentException( "default.plexus.cipher.badSegment: " + index );
+            }
+
+            init( Cipher.DECRYPT_MODE, index );
+
+            cipher.doFinal( in, inOff, len, out, outOff );
+        }
+
+        private void init( final int mode, final long index )
+            throws GeneralSecurityException
+        {
+            // the key is unique per payload, so the segment index is a unique counter block prefix
+            for ( int i = 0; i < 8; i++ )
+            {
+                iv[i] = (byte) ( index >>> ( 56 - 8 * i ) );
+            }
+
+            cipher.init( mode, keys.cipherKey, new IvParameterSpec( iv ) );
+        }
+
+        private void tag( final long index, final boolean last, final byte[] in, final int off, final int len )
+            throws GeneralSecurityException
+        {
+            mac.update( keys.header );
+
+            for ( int i = 0; i < 8; i++ )
+            {
+                mac.update( (byte) ( index >>> ( 56 - 8 * i ) ) );
+            }
+
+            mac.update( (byte) ( last ? 1 : 0 ) );
+
+            mac.update( in, off, len );
+
+            mac.doFinal( tag, 0 );
+        }
+    }
+}
@@ -0,0 +1,566 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Long lived local process that does the String based encryption and decryption for short lived JVMs, like
+ * ssh-agent: its {@link DefaultPlexusCipher} keeps pass phrases prepared and JCE warm across all the builds that use
+ * it. Clients find it through the agent file, readable by its owner only, which holds the port the agent listens on
+ * and a random key; see {@link AgentPlexusCipher}.
+ * <p>
+ * The agent only listens on the loopback interface. Both sides prove that they know the key with HMACs over fresh
+ * nonces before anything else is sent, so a client never hands a pass phrase to a process that took over the port of
+ * a dead agent. Requests are batches: an operation, a pass phrase and any number of values, answered with a status and
+ * a result or error message per value.
+ * <p>
+ * Run it with <code>java -cp plexus-cipher.jar org.sonatype.plexus.components.cipher.CipherAgent [agent file]</code>.
+ */
+public final class CipherAgent
+{
+    static final int MAGIC = 0x50434147;
+
+    static final int VERSION = 1;
+
+    static final int OP_ENCRYPT = 1;
+
+    static final int OP_DECRYPT = 2;
+
+    static final int OP_DECRYPT_DECORATED = 3;
+
+    static final int STATUS_OK = 0;
+
+    static final int STATUS_FAILED = 1;
+
+    static final int NONCE_SIZE = 16;
+
+    static final int KEY_SIZE = 32;
+
+    static final String MAC_ALG = "HmacSHA256";
+
+    /** longest string on the wire, in bytes */
+    static final int MAX_STRING = 16 * 1024 * 1024;
+
+    static final int MAX_BATCH = 64 * 1024;
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private static final SecureRandom _secureRandom = new SecureRandom();
+
+    private final DefaultPlexusCipher _cipher;
+
+    private final File _agentFile;
+
+    private final byte[] _key = new byte[KEY_SIZE];
+
+    private final Set<Socket> _connections = new HashSet<Socket>();
+
+    private ServerSocket _server;
+
+    private Thread _acceptor;
+
+    private ExecutorService _workers;
+
+    // ---------------------------------------------------------------
+    public CipherAgent( final DefaultPlexusCipher cipher, final File agentFile )
+    {
+        _cipher = cipher;
+        _agentFile = agentFile;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the configured agent file, by default <code>~/.plexus-cipher/agent</code>
+     */
+    public static File getAgentFile( final PlexusCipherConfiguration config )
+    {
+        return config.getAgentFile() != null ? new File( config.getAgentFile() ) : getDefaultAgentFile();
+    }
+
+    // ---------------------------------------------------------------
+    public static File getDefaultAgentFile()
+    {
+        return new File( new File( System.getProperty( "user.home" ), ".plexus-cipher" ), "agent" );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * warm up the cipher, listen on a free loopback port and publish it in the agent file
+     */
+    public synchronized void start()
+        throws IOException, PlexusCipherException
+    {
+        if ( _server != null )
+        {
+            throw new IllegalStateException( "agent already started" );
+        }
+
+        PreparedPassPhrase warmUp = new PreparedPassPhrase( "warm-up" );
+        _cipher.decrypt( _cipher.encrypt( "warm-up", warmUp ), warmUp );
+
+        _secureRandom.nextBytes( _key );
+
+        _server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+
+        _workers = Executors.newCachedThreadPool( new ThreadFactory()
+        {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            public Thread newThread( final Runnable r )
+            {
+                Thread t = new Thread( r, "plexus-cipher-agent-" + _count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+
+        publish();
+
+        _acceptor = new Thread( "plexus-cipher-agent" )
+        {
+            public void run()
+            {
+                accept();
+            }
+        };
+        _acceptor.setDaemon( true );
+        _acceptor.start();
+    }
+
+    // ---------------------------------------------------------------
+    public synchronized int getPort()
+    {
+        return _server == null ? -1 : _server.getLocalPort();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * wait until the agent is stopped
+     */
+    public void await()
+        throws InterruptedException
+    {
+        Thread acceptor;
+
+        synchronized ( this )
+        {
+            acceptor = _acceptor;
+        }
+
+        if ( acceptor != null )
+        {
+            acceptor.join();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * stop listening, drop all connections and remove the agent file
+     */
+    public synchronized void stop()
+    {
+        if ( _server == null )
+        {
+            return;
+        }
+
+        _agentFile.delete();
+
+        try
+        {
+            _server.close();
+        }
+        catch ( IOException e )
+        {
+            // closing anyway
+        }
+
+        synchronized ( _connections )
+        {
+            for ( Iterator<Socket> it = _connections.iterator(); it.hasNext(); )
+            {
+                closeQuietly( it.next() );
+            }
+            _connections.clear();
+        }
+
+        _workers.shutdownNow();
+
+        _server = null;
+    }
+
+    // ---------------------------------------------------------------
+    private void publish()
+        throws IOException
+    {
+        File dir = _agentFile.getAbsoluteFile().getParentFile();
+
+        if ( !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create " + dir );
+        }
+
+        restrictToOwner( dir, true );
+
+        File tmp = new File( dir, _agentFile.getName() + ".tmp" );
+
+        tmp.delete();
+        tmp.createNewFile();
+
+        // before the key is written
+        restrictToOwner( tmp, false );
+
+        OutputStream out = new FileOutputStream( tmp );
+        try
+        {
+            out.write( ( _server.getLocalPort() + "\n" + toHex( _key ) + "\n" ).getBytes( "US-ASCII" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ( !tmp.renameTo( _agentFile ) && !( _agentFile.delete() && tmp.renameTo( _agentFile ) ) )
+        {
+            tmp.delete();
+
+            throw new IOException( "Cannot write " + _agentFile );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * owner only permissions where the runtime supports them (Java 6 and later), the umask has to do on Java 5
+     */
+    private static void restrictToOwner( final File file, final boolean directory )
+    {
+        try
+        {
+            String[] setters = { "setReadable", "setWritable", "setExecutable" };
+
+            for ( int i = 0; i < setters.length; i++ )
+            {
+                Method m = File.class.getMethod( setters[i], new Class[] { boolean.class, boolean.class } );
+
+                m.invoke( file, new Object[] { Boolean.FALSE, Boolean.FALSE } );
+
+                if ( directory || i < 2 )
+                {
+                    m.invoke( file, new Object[] { Boolean.TRUE, Boolean.TRUE } );
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            // not available
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void accept()
+    {
+        ServerSocket server;
+
+        synchronized ( this )
+        {
+            server = _server;
+        }
+
+        while ( !server.isClosed() )
+        {
+            final Socket socket;
+            try
+            {
+                socket = server.accept();
+            }
+            catch ( IOException e )
+            {
+                // closed by stop()
+                break;
+            }
+
+            synchronized ( _connections )
+            {
+                _connections.add( socket );
+            }
+
+            try
+            {
+                _workers.execute( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            serve( socket );
+                        }
+                        catch ( IOException e )
+                        {
+                            // client went away or misbehaved, drop it
+                        }
+                        finally
+                        {
+                            synchronized ( _connections )
+                            {
+                                _connections.remove( socket );
+                            }
+
+                            closeQuietly( socket );
+                        }
+                    }
+                } );
+            }
+            catch ( RuntimeException e )
+            {
+                // stopping
+                closeQuietly( socket );
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void serve( final Socket socket )
+        throws IOException
+    {
+        socket.setTcpNoDelay( true );
+        socket.setSoTimeout( HANDSHAKE_TIMEOUT_MILLIS );
+
+        DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+
+        if ( in.readInt() != MAGIC || in.readUnsignedByte() != VERSION )
+        {
+            return;
+        }
+
+        byte[] clientNonce = new byte[NONCE_SIZE];
+        in.readFully( clientNonce );
+
+        byte[] serverNonce = new byte[NONCE_SIZE];
+        _secureRandom.nextBytes( serverNonce );
+
+        out.write( serverNonce );
+        out.write( mac( _key, 'S', clientNonce, serverNonce ) );
+        out.flush();
+
+        byte[] proof = new byte[mac( _key, 'C', clientNonce, serverNonce ).length];
+        in.readFully( proof );
+
+        if ( !MessageDigest.isEqual( proof, mac( _key, 'C', clientNonce, serverNonce ) ) )
+        {
+            return;
+        }
+
+        // clients keep the connection for their lifetime
+        socket.setSoTimeout( 0 );
+
+        for ( int op; ( op = in.read() ) >= 0; )
+        {
+            String passPhrase = readString( in );
+
+            int count = in.readInt();
+
+            if ( count < 0 || count > MAX_BATCH )
+            {
+                return;
+            }
+
+            String[] values = new String[count];
+
+            for ( int i = 0; i < count; i++ )
+            {
+                values[i] = readString( in );
+            }
+
+            for ( int i = 0; i < count; i++ )
+            {
+                String res;
+                try
+                {
+                    res = apply( op, values[i], passPhrase );
+                }
+                catch ( PlexusCipherException e )
+                {
+                    out.writeByte( STATUS_FAILED );
+                    writeString( out, String.valueOf( e.getMessage() ) );
+                    continue;
+                }
+
+                out.writeByte( STATUS_OK );
+                writeString( out, res );
+            }
+
+            out.flush();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private String apply( final int op, final String value, final String passPhrase )
+        throws PlexusCipherException, IOException
+    {
+        switch ( op )
+        {
+            case OP_ENCRYPT:
+                return _cipher.encrypt( value, passPhrase );
+
+            case OP_DECRYPT:
+                return _cipher.decrypt( value, passPhrase );
+
+            case OP_DECRYPT_DECORATED:
+                return _cipher.decryptDecorated( value, passPhrase );
+
+            default:
+                throw new IOException( "Unknown operation " + op );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    static byte[] mac( final byte[] key, final char side, final byte[] clientNonce, final byte[] serverNonce )
+        throws IOException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance( MAC_ALG );
+
+            mac.init( new SecretKeySpec( key, MAC_ALG ) );
+            mac.update( (byte) side );
+            mac.update( clientNonce );
+            mac.update( serverNonce );
+
+            return mac.doFinal();
+        }
+        catch ( GeneralSecurityException e )
+        {
+            IOException ioe = new IOException( e.getMessage() );
+            ioe.initCause( e );
+            throw ioe;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    static void writeString( final DataOutputStream out, final String str )
+        throws IOException
+    {
+        if ( str == null )
+        {
+            out.writeInt( -1 );
+
+            return;
+        }
+
+        byte[] bytes = Platform.toUtf8( str );
+
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    // ---------------------------------------------------------------
+    static String readString( final DataInputStream in )
+        throws IOException
+    {
+        int len = in.readInt();
+
+        if ( len < 0 )
+        {
+            return null;
+        }
+
+        if ( len > MAX_STRING )
+        {
+            throw new EOFException( "String of " + len + " bytes" );
+        }
+
+        byte[] bytes = new byte[len];
+        in.readFully( bytes );
+
+        return Platform.fromUtf8( bytes, 0, len );
+    }
+
+    // ---------------------------------------------------------------
+    static String toHex( final byte[] bytes )
+    {
+        StringBuffer sb = new StringBuffer( bytes.length * 2 );
+
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            sb.append( Character.forDigit( ( bytes[i] >> 4 ) & 0xf, 16 ) );
+            sb.append( Character.forDigit( bytes[i] & 0xf, 16 ) );
+        }
+
+        return sb.toString();
+    }
+
+    // ---------------------------------------------------------------
+    static void closeQuietly( final Socket socket )
+    {
+        try
+        {
+            socket.close();
+        }
+        catch ( IOException e )
+        {
+            // nothing to do
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public static void main( final String[] args )
+        throws Exception
+    {
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration().override( System.getProperties() );
+
+        File agentFile = args.length > 0 ? new File( args[0] ) : getAgentFile( config );
+
+        final CipherAgent agent = new CipherAgent( new DefaultPlexusCipher( config ), agentFile );
+
+        agent.start();
+
+        Runtime.getRuntime().addShutdownHook( new Thread()
+        {
+            public void run()
+            {
+                agent.stop();
+            }
+        } );
+
+        System.out.println( "plexus-cipher agent listening on 127.0.0.1:" + agent.getPort() + ", see " + agentFile );
+
+        agent.await();
+    }
+}
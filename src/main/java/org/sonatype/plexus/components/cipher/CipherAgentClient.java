@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Connection to a {@link CipherAgent}, for one call at a time; {@link AgentPlexusCipher} keeps a pool of them.
+ */
+final class CipherAgentClient
+{
+    private static final SecureRandom _secureRandom = new SecureRandom();
+
+    private final Socket _socket;
+
+    private final DataInputStream _in;
+
+    private final DataOutputStream _out;
+
+    // ---------------------------------------------------------------
+    private CipherAgentClient( final Socket socket )
+        throws IOException
+    {
+        _socket = socket;
+        _in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        _out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return connection to the agent published in the file, null if there is no such file
+     * @throws IOException if the agent cannot be reached or fails to prove that it knows the key
+     */
+    static CipherAgentClient connect( final File agentFile, final int timeoutMillis )
+        throws IOException
+    {
+        if ( !agentFile.isFile() )
+        {
+            return null;
+        }
+
+        int port;
+        byte[] key;
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( agentFile ), "US-ASCII" ) );
+        try
+        {
+            port = Integer.parseInt( String.valueOf( reader.readLine() ).trim() );
+            key = fromHex( String.valueOf( reader.readLine() ).trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IOException( "Bad agent file " + agentFile );
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        Socket socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay( true );
+            socket.setSoTimeout( timeoutMillis );
+            socket.connect( new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), port ), timeoutMillis );
+
+            CipherAgentClient res = new CipherAgentClient( socket );
+
+            res.handshake( key );
+
+            return res;
+        }
+        catch ( IOException e )
+        {
+            CipherAgent.closeQuietly( socket );
+
+            throw e;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void handshake( final byte[] key )
+        throws IOException
+    {
+        byte[] clientNonce = new byte[CipherAgent.NONCE_SIZE];
+        _secureRandom.nextBytes( clientNonce );
+
+        _out.writeInt( CipherAgent.MAGIC );
+        _out.writeByte( CipherAgent.VERSION );
+        _out.write( clientNonce );
+        _out.flush();
+
+        byte[] serverNonce = new byte[CipherAgent.NONCE_SIZE];
+        _in.readFully( serverNonce );
+
+        byte[] expected = CipherAgent.mac( key, 'S', clientNonce, serverNonce );
+
+        byte[] proof = new byte[expected.length];
+        _in.readFully( proof );
+
+        if ( !MessageDigest.isEqual( proof, expected ) )
+        {
+            throw new IOException( "Agent does not know the key" );
+        }
+
+        _out.write( CipherAgent.mac( key, 'C', clientNonce, serverNonce ) );
+        _out.flush();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return one result per value
+     * @throws PlexusCipherException for the first value the agent failed on
+     * @throws IOException if the connection broke, it must not be used any more
+     */
+    String[] call( final int op, final String passPhrase, final String[] values )
+        throws IOException, PlexusCipherException
+    {
+        _out.writeByte( op );
+        CipherAgent.writeString( _out, passPhrase );
+        _out.writeInt( values.length );
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            CipherAgent.writeString( _out, values[i] );
+        }
+
+        _out.flush();
+
+        String[] res = new String[values.length];
+
+        String failure = null;
+
+        // read every answer, so that the connection stays in step
+        for ( int i = 0; i < values.length; i++ )
+        {
+            int status = _in.readUnsignedByte();
+
+            String str = CipherAgent.readString( _in );
+
+            if ( status == CipherAgent.STATUS_OK )
+            {
+                res[i] = str;
+            }
+            else if ( failure == null )
+            {
+                failure = str;
+            }
+        }
+
+        if ( failure != null )
+        {
+            throw new PlexusCipherException( failure );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    void close()
+    {
+        CipherAgent.closeQuietly( _socket );
+    }
+
+    // ---------------------------------------------------------------
+    private static byte[] fromHex( final String hex )
+        throws IOException
+    {
+        if ( hex.length() % 2 != 0 )
+        {
+            throw new IOException( "Bad agent key" );
+        }
+
+        byte[] res = new byte[hex.length() / 2];
+
+        for ( int i = 0; i < res.length; i++ )
+        {
+            int hi = Character.digit( hex.charAt( 2 * i ), 16 );
+            int lo = Character.digit( hex.charAt( 2 * i + 1 ), 16 );
+
+            if ( hi < 0 || lo < 0 )
+            {
+                throw new IOException( "Bad agent key" );
+            }
+
+            res[i] = (byte) ( hi << 4 | lo );
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named tenant of a {@link CipherContextRegistry}: its pass phrase, prepared once, and its metrics. The prepared pass
+ * phrase is the context's derivation cache: it holds the encoded pass phrase, the digest state after hashing it, which
+ * every key derivation starts from a copy of, and the deterministic mode key once derived. The per call salted part
+ * of the derivation is still done on every call.
+ * <p>
+ * Contexts are immutable apart from their metrics. Changing a tenant's pass phrase registers a new context of the next
+ * generation, which takes over the metrics; calls already running on the old one finish with the old pass phrase.
+ */
+public final class CipherContext
+{
+    private final String _name;
+
+    private final int _generation;
+
+    private final PreparedPassPhrase _passPhrase;
+
+    private final DefaultPlexusCipher _cipher;
+
+    private final Metrics _metrics;
+
+    // ---------------------------------------------------------------
+    CipherContext( final String name, final int generation, final PreparedPassPhrase passPhrase,
+                   final DefaultPlexusCipher cipher, final Metrics metrics )
+    {
+        _name = name;
+        _generation = generation;
+        _passPhrase = passPhrase;
+        _cipher = cipher;
+        _metrics = metrics;
+    }
+
+    // ---------------------------------------------------------------
+    public String getName()
+    {
+        return _name;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return 1 for the first pass phrase of the name, incremented on every change
+     */
+    public int getGeneration()
+    {
+        return _generation;
+    }
+
+    // ---------------------------------------------------------------
+    public PreparedPassPhrase getPassPhrase()
+    {
+        return _passPhrase;
+    }
+
+    // ---------------------------------------------------------------
+    public Metrics getMetrics()
+    {
+        return _metrics;
+    }
+
+    // ---------------------------------------------------------------
+    public String encrypt( final String str )
+        throws PlexusCipherException
+    {
+        long start = System.nanoTime();
+
+        boolean success = false;
+        try
+        {
+            String res = _cipher.encrypt( str, _passPhrase );
+
+            success = true;
+
+            return res;
+        }
+        finally
+        {
+            _metrics.record( _metrics._encrypts, start, success );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public String encryptAndDecorate( final String str )
+        throws PlexusCipherException
+    {
+        return _cipher.decorate( encrypt( str ) );
+    }
+
+    // ---------------------------------------------------------------
+    public String decrypt( final String str )
+        throws PlexusCipherException
+    {
+        long start = System.nanoTime();
+
+        boolean success = false;
+        try
+        {
+            String res = _cipher.decrypt( str, _passPhrase );
+
+            success = true;
+
+            return res;
+        }
+        finally
+        {
+            _metrics.record( _metrics._decrypts, start, success );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * decrypt, charging the context name as caller key for admission control
+     */
+    public String decryptDecorated( final String str )
+        throws PlexusCipherException
+    {
+        long start = System.nanoTime();
+
+        boolean success = false;
+        try
+        {
+            String res = _cipher.decryptDecorated( str, _passPhrase, _name );
+
+            success = true;
+
+            return res;
+        }
+        finally
+        {
+            _metrics.record( _metrics._decrypts, start, success );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public String toString()
+    {
+        return "CipherContext[" + _name + ", generation " + _generation + "]";
+    }
+
+    /**
+     * Counters of a context name, kept across pass phrase changes.
+     */
+    public static final class Metrics
+    {
+        private final AtomicLong _encrypts = new AtomicLong();
+
+        private final AtomicLong _decrypts = new AtomicLong();
+
+        private final AtomicLong _failures = new AtomicLong();
+
+        private final AtomicLong _nanos = new AtomicLong();
+
+        Metrics()
+        {
+        }
+
+        // ---------------------------------------------------------------
+        private void record( final AtomicLong counter, final long start, final boolean success )
+        {
+            _nanos.addAndGet( System.nanoTime() - start );
+
+            counter.incrementAndGet();
+
+            if ( !success )
+            {
+                _failures.incrementAndGet();
+            }
+        }
+
+        // ---------------------------------------------------------------
+        public long getEncrypts()
+        {
+            return _encrypts.get();
+        }
+
+        // ---------------------------------------------------------------
+        public long getDecrypts()
+        {
+            return _decrypts.get();
+        }
+
+        // ---------------------------------------------------------------
+        /**
+         * @return encrypt and decrypt calls that threw, they are included in the other counts
+         */
+        public long getFailures()
+        {
+            return _failures.get();
+        }
+
+        // ---------------------------------------------------------------
+        /**
+         * @return time spent in encrypt and decrypt calls
+         */
+        public long getTotalNanos()
+        {
+            return _nanos.get();
+        }
+
+        // ---------------------------------------------------------------
+        public String toString()
+        {
+            return "encrypts=" + getEncrypts() + ", decrypts=" + getDecrypts() + ", failures=" + getFailures()
+                + ", totalNanos=" + getTotalNanos();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named {@link CipherContext}s, one per tenant. Lookups never lock, and registration and pass phrase changes only
+ * contend within one stripe of the underlying map, so the registry scales to many tenants. A pass phrase change
+ * replaces the context in one atomic step: every caller sees either the old or the new context, never a mix.
+ */
+public final class CipherContextRegistry
+{
+    private final DefaultPlexusCipher _cipher;
+
+    private final ConcurrentMap<String, CipherContext> _contexts;
+
+    // ---------------------------------------------------------------
+    CipherContextRegistry( final DefaultPlexusCipher cipher )
+    {
+        _cipher = cipher;
+
+        // the default 16 stripes would make many cores contend on registration
+        int stripes = Math.max( 16, 4 * Runtime.getRuntime().availableProcessors() );
+
+        _contexts = new ConcurrentHashMap<String, CipherContext>( 64, 0.75f, stripes );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the context of the name, null if there is none
+     */
+    public CipherContext get( final String name )
+    {
+        return _contexts.get( name );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the context of the name
+     * @throws PlexusCipherException if there is none
+     */
+    public CipherContext require( final String name )
+        throws PlexusCipherException
+    {
+        CipherContext res = _contexts.get( name );
+
+        if ( res == null )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.unknownContext: " + name );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * register a name or change its pass phrase
+     *
+     * @return the new context
+     */
+    public CipherContext register( final String name, final String passPhrase )
+        throws PlexusCipherException
+    {
+        if ( name == null )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.nullContextName" );
+        }
+
+        // prepare outside of any map operation, it is the expensive part
+        PreparedPassPhrase prepared = new PreparedPassPhrase( passPhrase );
+
+        while ( true )
+        {
+            CipherContext old = _contexts.get( name );
+
+            if ( old == null )
+            {
+                CipherContext res = new CipherContext( name, 1, prepared, _cipher, new CipherContext.Metrics() );
+
+                if ( _contexts.putIfAbsent( name, res ) == null )
+                {
+                    return res;
+                }
+            }
+            else
+            {
+                CipherContext res = next( old, prepared );
+
+                if ( _contexts.replace( name, old, res ) )
+                {
+                    return res;
+                }
+            }
+            // lost a race with another change, retry against the winner
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * change the pass phrase of a context unless someone else changed it first
+     *
+     * @param expected the context the caller last saw
+     * @return the new context, null if <code>expected</code> is no longer current
+     */
+    public CipherContext replace( final CipherContext expected, final String passPhrase )
+        throws PlexusCipherException
+    {
+        CipherContext res = next( expected, new PreparedPassPhrase( passPhrase ) );
+
+        return _contexts.replace( expected.getName(), expected, res ) ? res : null;
+    }
+
+    // ---------------------------------------------------------------
+    private CipherContext next( final CipherContext old, final PreparedPassPhrase prepared )
+    {
+        return new CipherContext( old.getName(), old.getGeneration() + 1, prepared, _cipher, old.getMetrics() );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the removed context, null if there was none
+     */
+    public CipherContext remove( final String name )
+    {
+        return _contexts.remove( name );
+    }
+
+    // ---------------------------------------------------------------
+    public int size()
+    {
+        return _contexts.size();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return snapshot of the registered contexts
+     */
+    public Collection<CipherContext> getContexts()
+    {
+        List<CipherContext> res = new ArrayList<CipherContext>( _contexts.values() );
+
+        return Collections.unmodifiableList( res );
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.Set;
+
+/**
+ * Encryption engine below {@link PlexusCipher}, working on bytes. Every engine owns one envelope version: the first
+ * byte of everything it encrypts, which is how {@link CipherEngines} finds the engine able to decrypt a value.
+ * <p>
+ * Additional engines are discovered from {@link CipherEngines#SERVICES} files. An engine may take over the envelope
+ * version of a built-in one, e.g. a faster implementation of the same format, by declaring a higher
+ * {@link #getPriority() priority}. Implementations must be thread safe.
+ */
+public interface CipherEngine
+{
+    enum Capability
+    {
+        /** equal clear texts give different results */
+        RANDOMIZED,
+
+        /** equal clear texts give equal results */
+        DETERMINISTIC,
+
+        /** tampering is detected on decryption */
+        AUTHENTICATED
+    }
+
+    /**
+     * @return unique name to select the engine with
+     */
+    String getId();
+
+    /**
+     * @return first byte of the envelopes produced by this engine
+     */
+    byte getVersion();
+
+    /**
+     * @return the engine with the highest priority wins when several claim the same id or version, built-in engines
+     *         have priority 0
+     */
+    int getPriority();
+
+    Set<Capability> getCapabilities();
+
+    byte[] encrypt( byte[] clearBytes, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+
+    byte[] decrypt( byte[] encryptedBytes, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+}
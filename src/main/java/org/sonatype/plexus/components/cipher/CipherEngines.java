@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The available {@link CipherEngine}s: the built-in ones plus those listed in
+ * <code>META-INF/services/org.sonatype.plexus.components.cipher.CipherEngine</code> files, the format
+ * <code>java.util.ServiceLoader</code> uses. Immutable once built.
+ */
+public final class CipherEngines
+{
+    public static final String SERVICES = "META-INF/services/" + CipherEngine.class.getName();
+
+    private final Map<String, CipherEngine> _byId = new LinkedHashMap<String, CipherEngine>();
+
+    private final CipherEngine[] _byVersion = new CipherEngine[256];
+
+    // ---------------------------------------------------------------
+    public CipherEngines( final Collection<? extends CipherEngine> engines )
+    {
+        for ( CipherEngine engine : engines )
+        {
+            CipherEngine old = _byId.get( engine.getId() );
+            if ( old == null || engine.getPriority() > old.getPriority() )
+            {
+                _byId.put( engine.getId(), engine );
+            }
+
+            int version = engine.getVersion() & 0xff;
+            old = _byVersion[version];
+            if ( old == null || engine.getPriority() > old.getPriority() )
+            {
+                _byVersion[version] = engine;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return built-in engines and those registered by services files visible to the given class loader
+     */
+    public static CipherEngines discover( final PBECipher cipher, final ClassLoader loader )
+        throws PlexusCipherException
+    {
+        List<CipherEngine> engines = new ArrayList<CipherEngine>();
+
+        engines.add( new PBECipherEngine( cipher ) );
+        engines.add( new SivCipherEngine() );
+
+        try
+        {
+            for ( Enumeration<URL> e = loader.getResources( SERVICES ); e.hasMoreElements(); )
+            {
+                for ( String name : readServices( e.nextElement() ) )
+                {
+                    engines.add( (CipherEngine) Class.forName( name, true, loader ).newInstance() );
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new PlexusCipherException( "Cannot load cipher engines from " + SERVICES, e );
+        }
+
+        return new CipherEngines( engines );
+    }
+
+    // ---------------------------------------------------------------
+    private static List<String> readServices( final URL url )
+        throws IOException
+    {
+        List<String> res = new ArrayList<String>();
+
+        InputStream in = url.openStream();
+        try
+        {
+            BufferedReader reader = new BufferedReader( new InputStreamReader( in, "UTF-8" ) );
+            for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+            {
+                int comment = line.indexOf( '#' );
+                if ( comment >= 0 )
+                {
+                    line = line.substring( 0, comment );
+                }
+                line = line.trim();
+                if ( line.length() > 0 )
+                {
+                    res.add( line );
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    public Collection<CipherEngine> getEngines()
+    {
+        return Collections.unmodifiableCollection( _byId.values() );
+    }
+
+    // ---------------------------------------------------------------
+    public CipherEngine get( final String id )
+        throws PlexusCipherException
+    {
+        CipherEngine res = _byId.get( id );
+
+        if ( res == null )
+        {
+            throw new PlexusCipherException( "Unknown cipher engine " + id );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the engine able to decrypt the given envelope
+     */
+    public CipherEngine forEnvelope( final byte[] encryptedBytes )
+        throws PlexusCipherException
+    {
+        CipherEngine res = encryptedBytes.length < 1 ? null : _byVersion[encryptedBytes[0] & 0xff];
+
+        if ( res == null )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+/**
+ * Receives a timing event for every {@link CipherPhase} of every cipher call, e.g. to forward them to Java Flight
+ * Recorder or a metrics library. Install it with {@link CipherEvents#setListener(CipherEventListener)}.
+ * <p>
+ * Called on the thread doing the work, so implementations must be thread safe, fast and must not throw.
+ */
+public interface CipherEventListener
+{
+    /**
+     * @param phase what was timed
+     * @param size payload size, see {@link CipherPhase}
+     * @param durationNanos elapsed time
+     * @param success false if the phase failed with an exception
+     */
+    void cipherEvent( CipherPhase phase, int size, long durationNanos, boolean success );
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+/**
+ * Process wide hook for {@link CipherEventListener}. With no listener installed every phase costs a single volatile
+ * read: the clock is not even consulted.
+ */
+public final class CipherEvents
+{
+    private static volatile CipherEventListener _listener;
+
+    private CipherEvents()
+    {
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @param listener receives all subsequent events, <code>null</code> switches events off
+     */
+    public static void setListener( final CipherEventListener listener )
+    {
+        _listener = listener;
+    }
+
+    // ---------------------------------------------------------------
+    public static CipherEventListener getListener()
+    {
+        return _listener;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return start time of a phase for the given listener, 0 if there is none
+     */
+    static long start( final CipherEventListener listener )
+    {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    // ---------------------------------------------------------------
+    static void end( final CipherEventListener listener, final CipherPhase phase, final int size, final long start,
+                     final boolean success )
+    {
+        if ( listener != null )
+        {
+            listener.cipherEvent( phase, size, System.nanoTime() - start, success );
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+/**
+ * The timed phases of an encrypt/decrypt call, reported to a {@link CipherEventListener}.
+ */
+public enum CipherPhase
+{
+    /** pass phrase and salt to key and IV, size is the number of pass phrase bytes */
+    KEY_DERIVATION,
+
+    /** JCE cipher lookup and initialization, size is the key length */
+    CIPHER_INIT,
+
+    /** the actual encryption or decryption, size is the input length */
+    CIPHER_FINAL,
+
+    /** size is the number of bytes encoded */
+    BASE64_ENCODE,
+
+    /** size is the number of characters decoded */
+    BASE64_DECODE,
+
+    /** looking for { } decorations, size is the string length */
+    DECORATION_SCAN
+}
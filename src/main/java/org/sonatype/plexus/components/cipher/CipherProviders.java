@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * JCE providers used for the cipher and the key derivation digest. By default JCE picks the first provider that
+ * supports an algorithm; {@link #select()} instead times every installed candidate once and pins the fastest one that
+ * produces correct results. The choice is process wide, like the JCE provider order itself.
+ */
+public final class CipherProviders
+{
+    private static final int ROUNDS = 3;
+
+    private static final int OPS_PER_ROUND = 500;
+
+    private static volatile Provider _cipherProvider;
+
+    private static volatile Provider _digestProvider;
+
+    private static Selection _selection;
+
+    private CipherProviders()
+    {
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * the outcome of {@link CipherProviders#select()}, timings are nanoseconds per operation by provider name
+     */
+    public static final class Selection
+    {
+        private final Provider _cipher;
+
+        private final Provider _digest;
+
+        private final Map<String, Long> _cipherTimings;
+
+        private final Map<String, Long> _digestTimings;
+
+        Selection( final Provider cipher, final Map<String, Long> cipherTimings, final Provider digest,
+                   final Map<String, Long> digestTimings )
+        {
+            _cipher = cipher;
+            _cipherTimings = cipherTimings;
+            _digest = digest;
+            _digestTimings = digestTimings;
+        }
+
+        public Provider getCipherProvider()
+        {
+            return _cipher;
+        }
+
+        public Provider getDigestProvider()
+        {
+            return _digest;
+        }
+
+        public Map<String, Long> getCipherTimings()
+        {
+            return _cipherTimings;
+        }
+
+        public Map<String, Long> getDigestTimings()
+        {
+            return _digestTimings;
+        }
+
+        public String toString()
+        {
+            return PBECipher.CIPHER_ALG + ": " + name( _cipher ) + " " + _cipherTimings + ", " + PBECipher.DIGEST_ALG
+                + ": " + name( _digest ) + " " + _digestTimings;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * pin the given providers, <code>null</code> goes back to the JCE default
+     */
+    public static void pin( final Provider cipherProvider, final Provider digestProvider )
+    {
+        _cipherProvider = cipherProvider;
+        _digestProvider = digestProvider;
+    }
+
+    // ---------------------------------------------------------------
+    public static Provider getCipherProvider()
+    {
+        return _cipherProvider;
+    }
+
+    // ---------------------------------------------------------------
+    public static Provider getDigestProvider()
+    {
+        return _digestProvider;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * benchmark the installed providers and pin the fastest correct ones. The benchmark runs only once per class
+     * loader, later calls pin its result again, in case other providers have been pinned since, and return it.
+     */
+    public static synchronized Selection select()
+        throws PlexusCipherException
+    {
+        if ( _selection == null )
+        {
+            Map<String, Long> cipherTimings = new LinkedHashMap<String, Long>();
+            Map<String, Long> digestTimings = new LinkedHashMap<String, Long>();
+
+            Provider cipher = fastest( "Cipher", cipherTimings );
+            Provider digest = fastest( "MessageDigest", digestTimings );
+
+            _selection = new Selection( cipher, cipherTimings, digest, digestTimings );
+        }
+
+        pin( _selection.getCipherProvider(), _selection.getDigestProvider() );
+
+        return _selection;
+    }
+
+    // ---------------------------------------------------------------
+    static Cipher newCipher( final String transformation )
+        throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        Provider provider = _cipherProvider;
+
+        return provider == null ? Cipher.getInstance( transformation )
+                        : Cipher.getInstance( transformation, provider );
+    }
+
+    // ---------------------------------------------------------------
+    static MessageDigest newDigest( final String algorithm )
+        throws NoSuchAlgorithmException
+    {
+        Provider provider = _digestProvider;
+
+        return provider == null ? MessageDigest.getInstance( algorithm )
+                        : MessageDigest.getInstance( algorithm, provider );
+    }
+
+    // ---------------------------------------------------------------
+    private static Provider fastest( final String serviceType, final Map<String, Long> timings )
+        throws PlexusCipherException
+    {
+        Provider best = null;
+        long bestTime = Long.MAX_VALUE;
+
+        Provider[] providers = Security.getProviders();
+
+        // one untimed pass first, so that the first provider does not pay for warming up the JIT
+        for ( int i = 0; i < providers.length; i++ )
+        {
+            try
+            {
+                time( serviceType, providers[i] );
+            }
+            catch ( GeneralSecurityException e )
+            {
+                // skipped below as well
+            }
+            catch ( RuntimeException e )
+            {
+                // skipped below as well
+            }
+        }
+
+        for ( int i = 0; i < providers.length; i++ )
+        {
+            long time;
+            try
+            {
+                time = time( serviceType, providers[i] );
+            }
+            catch ( GeneralSecurityException e )
+            {
+                // algorithm not offered, or the provider cannot be used here
+                continue;
+            }
+            catch ( RuntimeException e )
+            {
+                // broken provider
+                continue;
+            }
+
+            if ( time < 0 )
+            {
+                // wrong results
+                continue;
+            }
+
+            timings.put( providers[i].getName(), Long.valueOf( time ) );
+
+            if ( time < bestTime )
+            {
+                best = providers[i];
+                bestTime = time;
+            }
+        }
+
+        if ( best == null )
+        {
+            throw new PlexusCipherException( "No working " + serviceType + " provider found" );
+        }
+
+        return best;
+    }
+
+    // ---------------------------------------------------------------
+    private static long time( final String serviceType, final Provider provider )
+        throws GeneralSecurityException
+    {
+        return "Cipher".equals( serviceType ) ? timeCipher( provider ) : timeDigest( provider );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return best nanoseconds per init + doFinal of one KiB, -1 if the output does not decrypt with the JCE default
+     */
+    private static long timeCipher( final Provider provider )
+        throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance( PBECipher.CIPHER_ALG, provider );
+
+        byte[] keyAndIv = new byte[PBECipher.SPICE_SIZE * 2];
+        for ( int i = 0; i < keyAndIv.length; i++ )
+        {
+            keyAndIv[i] = (byte) i;
+        }
+        SecretKeySpec key = new SecretKeySpec( keyAndIv, 0, PBECipher.SPICE_SIZE, PBECipher.KEY_ALG );
+        IvParameterSpec iv = new IvParameterSpec( keyAndIv, PBECipher.SPICE_SIZE, PBECipher.SPICE_SIZE );
+
+        byte[] clear = new byte[1024];
+        Arrays.fill( clear, (byte) 'x' );
+
+        cipher.init( Cipher.ENCRYPT_MODE, key, iv );
+        byte[] encrypted = cipher.doFinal( clear );
+
+        Cipher reference = Cipher.getInstance( PBECipher.CIPHER_ALG );
+        reference.init( Cipher.DECRYPT_MODE, key, iv );
+        if ( !Arrays.equals( clear, reference.doFinal( encrypted ) ) )
+        {
+            return -1;
+        }
+
+        long best = Long.MAX_VALUE;
+        for ( int r = 0; r < ROUNDS; r++ )
+        {
+            long start = System.nanoTime();
+            for ( int i = 0; i < OPS_PER_ROUND; i++ )
+            {
+                cipher.init( ( i & 1 ) == 0 ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, iv );
+                cipher.doFinal( ( i & 1 ) == 0 ? clear : encrypted );
+            }
+            best = Math.min( best, ( System.nanoTime() - start ) / OPS_PER_ROUND );
+        }
+        return best;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return best nanoseconds per digest of one KiB, -1 if the result differs from the JCE default
+     */
+    private static long timeDigest( final Provider provider )
+        throws GeneralSecurityException
+    {
+        MessageDigest digest = MessageDigest.getInstance( PBECipher.DIGEST_ALG, provider );
+
+        byte[] data = new byte[1024];
+        Arrays.fill( data, (byte) 'x' );
+
+        if ( !Arrays.equals( MessageDigest.getInstance( PBECipher.DIGEST_ALG ).digest( data ), digest.digest( data ) ) )
+        {
+            return -1;
+        }
+
+        long best = Long.MAX_VALUE;
+        for ( int r = 0; r < ROUNDS; r++ )
+        {
+            long start = System.nanoTime();
+            for ( int i = 0; i < OPS_PER_ROUND; i++ )
+            {
+                digest.update( data );
+                digest.digest();
+            }
+            best = Math.min( best, ( System.nanoTime() - start ) / OPS_PER_ROUND );
+        }
+        return best;
+    }
+
+    // ---------------------------------------------------------------
+    private static String name( final Provider provider )
+    {
+        return provider == null ? "JCE default" : provider.getName();
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which encrypted value every clear text was decrypted from, so that saving a document writes back the
+ * original values of all unchanged secrets and only encrypts the ones that changed. Saving a large document then costs
+ * a handful of encryptions rather than one per secret, and unchanged values keep their exact text, including anything
+ * around the braces, so they do not churn in version control.
+ * <p>
+ * Values are best remembered by a key such as their field's path: a keyed value is reused only for the same key, and a
+ * changed one keeps the text around the braces it was loaded with, only the braced part is new. The methods without a
+ * key map by clear text alone, so two fields that held the same secret under different encrypted values may be
+ * written back with the same one; they return the braced part only, as the text around it belongs to the field it was
+ * loaded from.
+ * <p>
+ * A session holds clear texts in memory, like the loaded document does; {@link #clear()} drops them.
+ */
+public final class CipherSession
+{
+    private final PlexusCipher _cipher;
+
+    private final PreparedPassPhrase _passPhrase;
+
+    private final ConcurrentMap<String, Original> _byKey = new ConcurrentHashMap<String, Original>();
+
+    private final ConcurrentMap<String, String> _byClearText = new ConcurrentHashMap<String, String>();
+
+    private final AtomicLong _reused = new AtomicLong();
+
+    private final AtomicLong _encrypted = new AtomicLong();
+
+    // ---------------------------------------------------------------
+    public CipherSession( final PlexusCipher cipher, final PreparedPassPhrase passPhrase )
+    {
+        _cipher = cipher;
+        _passPhrase = passPhrase;
+    }
+
+    // ---------------------------------------------------------------
+    public CipherSession( final PlexusCipher cipher, final String passPhrase )
+        throws PlexusCipherException
+    {
+        this( cipher, new PreparedPassPhrase( passPhrase ) );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * decrypt a value as loaded and remember it under the given key
+     */
+    public String decryptDecorated( final String key, final String str )
+        throws PlexusCipherException
+    {
+        return load( key, str );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * decrypt a value as loaded and remember it by its clear text
+     */
+    public String decryptDecorated( final String str )
+        throws PlexusCipherException
+    {
+        return load( null, str );
+    }
+
+    // ---------------------------------------------------------------
+    private String load( final String key, final String str )
+        throws PlexusCipherException
+    {
+        String res = _cipher.decryptDecorated( str, _passPhrase );
+
+        if ( str != null && res != null )
+        {
+            String token = token( str );
+
+            // the first one loaded stays, so that repeated saves agree
+            _byClearText.putIfAbsent( res, token );
+
+            if ( key != null )
+            {
+                int at = str.indexOf( token );
+                int end = at + token.length();
+
+                _byKey.put( key, new Original( res, str, str.substring( 0, at ), str.substring( end ) ) );
+            }
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the braced part of a loaded value, the value itself if there is nothing around the braces or no braces
+     */
+    private String token( final String str )
+        throws PlexusCipherException
+    {
+        if ( !_cipher.isEncryptedString( str ) )
+        {
+            return str;
+        }
+
+        String token = _cipher.decorate( _cipher.unDecorate( str ) );
+
+        return token.length() == str.length() ? str : token;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the value loaded for the key if its clear text is unchanged, a new encrypted value with the text that
+     *         was around the braces of the loaded one otherwise
+     */
+    public String encryptAndDecorate( final String key, final String clearText )
+        throws PlexusCipherException
+    {
+        if ( key == null || clearText == null )
+        {
+            return encryptAndDecorate( clearText );
+        }
+
+        Original original = _byKey.get( key );
+
+        if ( original != null && original.clearText.equals( clearText ) )
+        {
+            _reused.incrementAndGet();
+
+            return original.encrypted;
+        }
+
+        String prefix = original == null ? "" : original.prefix;
+        String suffix = original == null ? "" : original.suffix;
+
+        String res = prefix + encrypt( clearText ) + suffix;
+
+        _byKey.put( key, new Original( clearText, res, prefix, suffix ) );
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the braced part of a value loaded with this clear text, a new encrypted value if there is none
+     */
+    public String encryptAndDecorate( final String clearText )
+        throws PlexusCipherException
+    {
+        String res = clearText == null ? null : _byClearText.get( clearText );
+
+        if ( res != null )
+        {
+            _reused.incrementAndGet();
+
+            return res;
+        }
+
+        res = encrypt( clearText );
+
+        if ( clearText != null )
+        {
+            _byClearText.putIfAbsent( clearText, res );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    private String encrypt( final String clearText )
+        throws PlexusCipherException
+    {
+        _encrypted.incrementAndGet();
+
+        return _cipher.encryptAndDecorate( clearText, _passPhrase );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return values written back as they were loaded
+     */
+    public long getReused()
+    {
+        return _reused.get();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return values that had to be encrypted
+     */
+    public long getEncrypted()
+    {
+        return _encrypted.get();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * forget all values
+     */
+    public void clear()
+    {
+        _byKey.clear();
+        _byClearText.clear();
+    }
+
+    // ---------------------------------------------------------------
+    private static final class Original
+    {
+        final String clearText;
+
+        final String encrypted;
+
+        /** text around the braces */
+        final String prefix;
+
+        final String suffix;
+
+        Original( final String clearText, final String encrypted, final String prefix, final String suffix )
+        {
+            this.clearText = clearText;
+            this.encrypted = encrypted;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decrypts values like {@link PlexusCipher} does and moves the legacy ones to the preferred format as they are read.
+ * Every value in the format of {@link PBECipher#encrypt64(String, PreparedPassPhrase)} is queued for re-encryption
+ * into that of {@link PBECipher#encryptEnvelope64(String, PreparedPassPhrase)}; a background thread re-encrypts the
+ * queue in batches and hands each batch to a {@link WriteBack} to persist. Stored values thus migrate through normal
+ * traffic, without rewriting everything at once, and reads never wait for it.
+ * <p>
+ * Nothing is queued before {@link #confirmPassPhrase()}: see {@link WriteBack} for why. A legacy value is queued once
+ * while pending. When the queue is full, or the write back fails, the value stays as it is and the next read queues it
+ * again. Queued clear texts are held in memory until their batch is written.
+ */
+public final class CipherUpgrader
+{
+    /**
+     * Persists upgraded values, called on the upgrader's thread one batch at a time.
+     * <p>
+     * Neither format is authenticated, so a wrong pass phrase now and then decrypts a legacy value into garbage
+     * instead of failing, and its upgrade is that garbage encrypted properly: writing it back replaces the only good
+     * copy of the secret. That is why the upgrader waits for {@link CipherUpgrader#confirmPassPhrase()}; where the
+     * store allows it, keeping the legacy values until the upgraded ones have been read back is safer still.
+     */
+    public interface WriteBack
+    {
+        /**
+         * store each {@link Upgrade#getUpgraded()} in place of {@link Upgrade#getLegacy()}, ideally only where the
+         * legacy value is still stored, in case it changed since it was read
+         * 
+         * @throws Exception to leave the whole batch to a later read
+         */
+        void write( List<Upgrade> batch )
+            throws Exception;
+    }
+
+    /**
+     * A value read in the legacy format together with its replacement.
+     */
+    public static final class Upgrade
+    {
+        private final String _key;
+
+        private final String _legacy;
+
+        private final String _token;
+
+        private final String _clearText;
+
+        private String _upgraded;
+
+        Upgrade( final String key, final String legacy, final String token, final String clearText )
+        {
+            _key = key;
+            _legacy = legacy;
+            _token = token;
+            _clearText = clearText;
+        }
+
+        /**
+         * @return the key the value was read with, may be null
+         */
+        public String getKey()
+        {
+            return _key;
+        }
+
+        /**
+         * @return the value exactly as it was read, decorations included
+         */
+        public String getLegacy()
+        {
+            return _legacy;
+        }
+
+        /**
+         * @return the same clear text in the preferred format, decorated like the legacy value
+         */
+        public String getUpgraded()
+        {
+            return _upgraded;
+        }
+    }
+
+    private final PlexusCipher _cipher;
+
+    private final PBECipher _pbeCipher;
+
+    private final PreparedPassPhrase _passPhrase;
+
+    private final WriteBack _writeBack;
+
+    private final int _batchSize;
+
+    private final int _capacity;
+
+    private final Object _lock = new Object();
+
+    private final LinkedList<Upgrade> _queue = new LinkedList<Upgrade>();
+
+    /** legacy tokens queued or being written */
+    private final Set<String> _pending = new HashSet<String>();
+
+    private boolean _closed;
+
+    private volatile boolean _confirmed;
+
+    private final Thread _thread;
+
+    private final AtomicLong _upgraded = new AtomicLong();
+
+    private final AtomicLong _failures = new AtomicLong();
+
+    private final AtomicLong _dropped = new AtomicLong();
+
+    // ---------------------------------------------------------------
+    /**
+     * @param batchSize most values re-encrypted and written back at once
+     * @param capacity most values waiting for their upgrade
+     */
+    public CipherUpgrader( final PlexusCipher cipher, final PreparedPassPhrase passPhrase, final WriteBack writeBack,
+                           final int batchSize, final int capacity )
+        throws PlexusCipherException
+    {
+        if ( batchSize < 1 || capacity < 1 )
+        {
+            throw new IllegalArgumentException( "batchSize and capacity must be positive" );
+        }
+
+        _cipher = cipher;
+        _pbeCipher = new PBECipher();
+        _passPhrase = passPhrase;
+        _writeBack = writeBack;
+        _batchSize = batchSize;
+        _capacity = capacity;
+
+        _thread = new Thread( "plexus-cipher-upgrade" )
+        {
+            public void run()
+            {
+                work();
+            }
+        };
+        _thread.setDaemon( true );
+        _thread.start();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * start upgrading: call once the pass phrase is known to be the right one, e.g. because a {@link SecretStore},
+     * which checks it, opened with it, or a value of known clear text decrypted to that text. Until then values are
+     * decrypted but not upgraded.
+     */
+    public void confirmPassPhrase()
+    {
+        _confirmed = true;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * {@link PlexusCipher#decrypt(String, PreparedPassPhrase)}, queueing a legacy value for its upgrade
+     * 
+     * @param key passed on to the {@link WriteBack}, e.g. where the value is stored
+     */
+    public String decrypt( final String key, final String str )
+        throws PlexusCipherException
+    {
+        String res = _cipher.decrypt( str, _passPhrase );
+
+        if ( _confirmed && str != null && PBECipher.isLegacy64( str ) )
+        {
+            offer( new Upgrade( key, str, str, res ) );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * {@link PlexusCipher#decryptDecorated(String, PreparedPassPhrase)}, queueing a legacy value for its upgrade
+     * 
+     * @param key passed on to the {@link WriteBack}, e.g. where the value is stored
+     */
+    public String decryptDecorated( final String key, final String str )
+        throws PlexusCipherException
+    {
+        String res = _cipher.decryptDecorated( str, _passPhrase );
+
+        if ( _confirmed && str != null && str.length() > 0 )
+        {
+            String token = _cipher.isEncryptedString( str ) ? _cipher.unDecorate( str ) : str;
+
+            if ( PBECipher.isLegacy64( token ) )
+            {
+                offer( new Upgrade( key, str, token, res ) );
+            }
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    private void offer( final Upgrade upgrade )
+    {
+        synchronized ( _lock )
+        {
+            if ( _closed || _pending.contains( upgrade._legacy ) )
+            {
+                return;
+            }
+
+            if ( _queue.size() >= _capacity )
+            {
+                _dropped.incrementAndGet();
+
+                return;
+            }
+
+            _pending.add( upgrade._legacy );
+            _queue.add( upgrade );
+
+            _lock.notifyAll();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void work()
+    {
+        List<Upgrade> batch = new ArrayList<Upgrade>( _batchSize );
+
+        while ( true )
+        {
+            synchronized ( _lock )
+            {
+                // the previous batch is done with
+                for ( Upgrade upgrade : batch )
+                {
+                    _pending.remove( upgrade._legacy );
+                }
+                batch.clear();
+
+                _lock.notifyAll();
+
+                while ( _queue.isEmpty() && !_closed )
+                {
+                    try
+                    {
+                        _lock.wait();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        _closed = true;
+                    }
+                }
+
+                if ( _queue.isEmpty() )
+                {
+                    return;
+                }
+
+                while ( batch.size() < _batchSize && !_queue.isEmpty() )
+                {
+                    batch.add( _queue.removeFirst() );
+                }
+            }
+
+            upgrade( batch );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void upgrade( final List<Upgrade> batch )
+    {
+        List<Upgrade> done = new ArrayList<Upgrade>( batch.size() );
+
+        for ( Upgrade upgrade : batch )
+        {
+            try
+            {
+                String token = _pbeCipher.encryptEnvelope64( upgrade._clearText, _passPhrase );
+
+                upgrade._upgraded = upgrade._legacy.replace( upgrade._token, token );
+
+                done.add( upgrade );
+            }
+            catch ( PlexusCipherException e )
+            {
+                _failures.incrementAndGet();
+            }
+        }
+
+        if ( done.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            _writeBack.write( Collections.unmodifiableList( done ) );
+
+            _upgraded.addAndGet( done.size() );
+        }
+        catch ( Throwable e )
+        {
+            _failures.addAndGet( done.size() );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * wait until every value queued so far has been written back, or has failed to
+     */
+    public void flush()
+        throws InterruptedException
+    {
+        synchronized ( _lock )
+        {
+            while ( !_pending.isEmpty() && _thread.isAlive() )
+            {
+                _lock.wait( 100 );
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * stop queueing, upgrade what is queued and stop the background thread
+     */
+    public void close()
+        throws InterruptedException
+    {
+        synchronized ( _lock )
+        {
+            _closed = true;
+
+            _lock.notifyAll();
+        }
+
+        _thread.join();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return values written back in the preferred format
+     */
+    public long getUpgraded()
+    {
+        return _upgraded.get();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return values whose re-encryption or write back failed
+     */
+    public long getFailures()
+    {
+        return _failures.get();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return legacy values not queued because the queue was full
+     */
+    public long getDropped()
+    {
+        return _dropped.get();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return values waiting for their upgrade, including the batch being written
+     */
+    public int getPending()
+    {
+        synchronized ( _lock )
+        {
+            return _pending.size();
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decrypts a stream of values on a worker pool and hands the results to a {@link Sink} in submission order, each with
+ * the tag it was submitted with, e.g. the record it belongs to.
+ * <p>
+ * Values are batched only while all workers are busy: an idle worker takes whatever is waiting, up to the batch size,
+ * so a trickle of values is decrypted right away and a flood in batches, without a timer. At most
+ * <code>capacity</code> values are in flight between submission and delivery; beyond that {@link #submit} blocks,
+ * which pushes back on the producer whenever the workers or the sink fall behind.
+ * <p>
+ * The sink is called by one thread at a time, never concurrently. A failed value is delivered with its exception and
+ * does not stop the stream. Neither does a sink that throws: the value counts as delivered, the next one follows and
+ * the first such exception is kept for {@link #getSinkFailure()}.
+ */
+public final class DecryptPipeline<T>
+{
+    /**
+     * Receives the results of a {@link DecryptPipeline}.
+     */
+    public interface Sink<T>
+    {
+        /**
+         * @param clearText null if decryption failed
+         * @param failure null if decryption succeeded
+         */
+        void onResult( T tag, String clearText, PlexusCipherException failure );
+
+        /**
+         * called once after the last result, when the pipeline has been closed
+         */
+        void onComplete();
+    }
+
+    private final PlexusCipher _cipher;
+
+    private final PreparedPassPhrase _passPhrase;
+
+    private final Executor _executor;
+
+    private final int _batchSize;
+
+    private final int _parallelism;
+
+    private final Sink<T> _sink;
+
+    /** one per value in flight */
+    private final Semaphore _permits;
+
+    /** values in flight, by sequence number modulo capacity */
+    private final Item<T>[] _ring;
+
+    private final Object _lock = new Object();
+
+    private final LinkedList<Item<T>> _pending = new LinkedList<Item<T>>();
+
+    private int _running;
+
+    private long _nextSeq;
+
+    private long _nextDelivery;
+
+    private boolean _delivering;
+
+    private boolean _closed;
+
+    private boolean _completed;
+
+    private final CountDownLatch _done = new CountDownLatch( 1 );
+
+    private final AtomicLong _delivered = new AtomicLong();
+
+    private final AtomicLong _failures = new AtomicLong();
+
+    private final AtomicReference<RuntimeException> _sinkFailure = new AtomicReference<RuntimeException>();
+
+    private final AtomicLong _batches = new AtomicLong();
+
+    private final AtomicLong _latencyNanos = new AtomicLong();
+
+    private volatile long _maxLatencyNanos;
+
+    // ---------------------------------------------------------------
+    /**
+     * @param executor runs the batches, should be a pool of at least <code>parallelism</code> threads
+     * @param batchSize most values a worker takes at once
+     * @param parallelism most batches running at once
+     * @param capacity most values between submission and delivery
+     */
+    @SuppressWarnings( "unchecked" )
+    public DecryptPipeline( final PlexusCipher cipher, final PreparedPassPhrase passPhrase, final Executor executor,
+                            final int batchSize, final int parallelism, final int capacity, final Sink<T> sink )
+    {
+        if ( batchSize < 1 || parallelism < 1 || capacity < 1 )
+        {
+            throw new IllegalArgumentException( "batchSize, parallelism and capacity must be positive" );
+        }
+
+        _cipher = cipher;
+        _passPhrase = passPhrase;
+        _executor = executor;
+        _batchSize = batchSize;
+        _parallelism = parallelism;
+        _sink = sink;
+
+        _permits = new Semaphore( capacity );
+        _ring = new Item[capacity];
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * queue a value, waiting while the pipeline is full
+     */
+    public void submit( final T tag, final String value )
+        throws InterruptedException
+    {
+        _permits.acquire();
+
+        enqueue( tag, value );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * queue a value, waiting at most the given time while the pipeline is full
+     *
+     * @return false if the value was not queued
+     */
+    public boolean offer( final T tag, final String value, final long timeout, final TimeUnit unit )
+        throws InterruptedException
+    {
+        if ( !_permits.tryAcquire( timeout, unit ) )
+        {
+            return false;
+        }
+
+        enqueue( tag, value );
+
+        return true;
+    }
+
+    // ---------------------------------------------------------------
+    private void enqueue( final T tag, final String value )
+    {
+        synchronized ( _lock )
+        {
+            if ( _closed )
+            {
+                _permits.release();
+
+                throw new IllegalStateException( "pipeline closed" );
+            }
+
+            Item<T> item = new Item<T>( tag, value );
+
+            _ring[(int) ( _nextSeq++ % _ring.length )] = item;
+
+            _pending.add( item );
+
+            dispatch();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * start batches while there are idle workers, called with the lock held
+     */
+    private void dispatch()
+    {
+        while ( _running < _parallelism && !_pending.isEmpty() )
+        {
+            final List<Item<T>> batch = new ArrayList<Item<T>>( Math.min( _batchSize, _pending.size() ) );
+
+            while ( batch.size() < _batchSize && !_pending.isEmpty() )
+            {
+                batch.add( _pending.removeFirst() );
+            }
+
+            _running++;
+            _batches.incrementAndGet();
+
+            _executor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    process( batch );
+                }
+            } );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void process( final List<Item<T>> batch )
+    {
+        for ( int i = 0; i < batch.size(); i++ )
+        {
+            Item<T> item = batch.get( i );
+
+            try
+            {
+                item.clearText = _cipher.decryptDecorated( item.value, _passPhrase );
+            }
+            catch ( PlexusCipherException e )
+            {
+                item.failure = e;
+            }
+            catch ( RuntimeException e )
+            {
+                item.failure = new PlexusCipherException( e );
+            }
+        }
+
+        synchronized ( _lock )
+        {
+            for ( int i = 0; i < batch.size(); i++ )
+            {
+                batch.get( i ).done = true;
+            }
+
+            _running--;
+
+            dispatch();
+        }
+
+        deliver();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * hand every result that is next in order to the sink, unless another thread is doing so already
+     */
+    private void deliver()
+    {
+        synchronized ( _lock )
+        {
+            if ( _delivering )
+            {
+                // the delivering thread checks again under the lock before it stops
+                return;
+            }
+
+            _delivering = true;
+        }
+
+        boolean complete = false;
+
+        boolean stopped = false;
+
+        try
+        {
+            while ( true )
+            {
+                Item<T> item;
+
+                synchronized ( _lock )
+                {
+                    int index = (int) ( _nextDelivery % _ring.length );
+
+                    item = _nextDelivery < _nextSeq ? _ring[index] : null;
+
+                    if ( item == null || !item.done )
+                    {
+                        if ( _closed && _nextDelivery == _nextSeq && !_completed )
+                        {
+                            _completed = true;
+                            complete = true;
+                        }
+
+                        _delivering = false;
+                        stopped = true;
+
+                        break;
+                    }
+
+                    _ring[index] = null;
+                    _nextDelivery++;
+                }
+
+                long latency = System.nanoTime() - item.submitted;
+
+                _latencyNanos.addAndGet( latency );
+
+                if ( latency > _maxLatencyNanos )
+                {
+                    _maxLatencyNanos = latency;
+                }
+
+                if ( item.failure != null )
+                {
+                    _failures.incrementAndGet();
+                }
+
+                try
+                {
+                    _sink.onResult( item.tag, item.clearText, item.failure );
+                }
+                catch ( RuntimeException e )
+                {
+                    // the sink's own problem, the values after this one are still owed to it
+                    _sinkFailure.compareAndSet( null, e );
+                }
+                finally
+                {
+                    _delivered.incrementAndGet();
+
+                    _permits.release();
+                }
+            }
+        }
+        finally
+        {
+            if ( !stopped )
+            {
+                // an error out of the sink, whichever thread gets here next carries on
+                synchronized ( _lock )
+                {
+                    _delivering = false;
+                }
+            }
+        }
+
+        if ( complete )
+        {
+            try
+            {
+                _sink.onComplete();
+            }
+            finally
+            {
+                _done.countDown();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * accept no more values; the sink is completed once everything queued has been delivered
+     */
+    public void close()
+    {
+        synchronized ( _lock )
+        {
+            _closed = true;
+        }
+
+        deliver();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return false if the pipeline was not closed and drained within the given time
+     */
+    public boolean awaitCompletion( final long timeout, final TimeUnit unit )
+        throws InterruptedException
+    {
+        return _done.await( timeout, unit );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return values waiting for a worker
+     */
+    public int getQueueDepth()
+    {
+        synchronized ( _lock )
+        {
+            return _pending.size();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return values submitted and not delivered yet
+     */
+    public int getInFlight()
+    {
+        return _ring.length - _permits.availablePermits();
+    }
+
+    // ---------------------------------------------------------------
+    public long getDelivered()
+    {
+        return _delivered.get();
+    }
+
+    // ---------------------------------------------------------------
+    public long getFailures()
+    {
+        return _failures.get();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return first exception thrown by the sink, null if there was none
+     */
+    public RuntimeException getSinkFailure()
+    {
+        return _sinkFailure.get();
+    }
+
+    // ---------------------------------------------------------------
+    public long getBatches()
+    {
+        return _batches.get();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return mean time from submission to delivery
+     */
+    public long getAverageLatencyNanos()
+    {
+        long delivered = _delivered.get();
+
+        return delivered == 0 ? 0 : _latencyNanos.get() / delivered;
+    }
+
+    // ---------------------------------------------------------------
+    public long getMaxLatencyNanos()
+    {
+        return _maxLatencyNanos;
+    }
+
+    // ---------------------------------------------------------------
+    private static final class Item<T>
+    {
+        final T tag;
+
+        final String value;
+
+        final long submitted = System.nanoTime();
+
+        /** written by the worker, read by the deliverer after the lock handed over <code>done</code> */
+        String clearText;
+
+        PlexusCipherException failure;
+
+        boolean done;
+
+        Item( final T tag, final String value )
+        {
+            this.tag = tag;
+            this.value = value;
+        }
+    }
+}
@@ -16,11 +16,20 @@ import java.security.Provider;
 import java.security.Security;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
 import javax.inject.Named;
 
 /**
@@ -36,11 +45,96 @@ public class DefaultPlexusCipher
 
     private final PBECipher _cipher;
 
+    private final PlexusCipherConfiguration _config;
+
+    private final CipherEngines _engines;
+
+    private final CipherEngine _engine;
+
+    /** null unless limits are configured */
+    private final AdmissionControl _admission;
+
+    /** created on first use, together with its daemon threads */
+    private ChunkedCipher _chunkedCipher;
+
+    /** created on first use, shared by all pipelines */
+    private ExecutorService _pipelineExecutor;
+
+    /** prepared pass phrases for the String based methods, bounded by the configured size */
+    private final Map<String, PreparedPassPhrase> _passPhrases;
+
+    private final CipherContextRegistry _contexts;
+
     // ---------------------------------------------------------------
     public DefaultPlexusCipher()
         throws PlexusCipherException
     {
+        this( new PlexusCipherConfiguration() );
+    }
+
+    // ---------------------------------------------------------------
+    @Inject
+    public DefaultPlexusCipher( final PlexusCipherConfiguration config )
+        throws PlexusCipherException
+    {
+        _config = config.override( System.getProperties() );
+
+        if ( _config.isSelectProviders() )
+        {
+            CipherProviders.select();
+        }
+
         _cipher = new PBECipher();
+
+        _cipher.setCompressionThreshold( _config.getCompressionThreshold() );
+
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+        _engines = CipherEngines.discover( _cipher, loader != null ? loader : getClass().getClassLoader() );
+
+        _engine = _engines.get( _config.getEngine() );
+
+        _admission = AdmissionControl.create( _config );
+
+        _passPhrases = new ConcurrentHashMap<String, PreparedPassPhrase>();
+
+        _contexts = new CipherContextRegistry( this );
+    }
+
+    // ---------------------------------------------------------------
+    public PlexusCipherConfiguration getConfiguration()
+    {
+        return new PlexusCipherConfiguration( _config );
+    }
+
+    // ---------------------------------------------------------------
+    protected PreparedPassPhrase prepare( final String passPhrase )
+        throws PlexusCipherException
+    {
+        int max = _config.getPassPhraseCacheSize();
+
+        if ( passPhrase == null || max < 1 )
+        {
+            return new PreparedPassPhrase( passPhrase );
+        }
+
+        PreparedPassPhrase res = _passPhrases.get( passPhrase );
+
+        if ( res == null )
+        {
+            res = new PreparedPassPhrase( passPhrase );
+
+            // no LRU bookkeeping on the hot path, just make room by evicting whatever comes first
+            for ( Iterator<String> it = _passPhrases.keySet().iterator(); _passPhrases.size() >= max && it.hasNext(); )
+            {
+                it.next();
+                it.remove();
+            }
+
+            _passPhrases.put( passPhrase, res );
+        }
+
+        return res;
     }
 
     // ---------------------------------------------------------------
@@ -52,6 +146,18 @@ public class DefaultPlexusCipher
             return str;
         }
 
+        return _cipher.encrypt64( str, prepare( passPhrase ) );
+    }
+
+    // ---------------------------------------------------------------
+    public String encrypt( final String str, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
         return _cipher.encrypt64( str, passPhrase );
     }
 
@@ -62,6 +168,13 @@ public class DefaultPlexusCipher
         return decorate( encrypt( str, passPhrase ) );
     }
 
+    // ---------------------------------------------------------------
+    public String encryptAndDecorate( final String str, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        return decorate( encrypt( str, passPhrase ) );
+    }
+
     // ---------------------------------------------------------------
     public String decrypt( final String str, final String passPhrase )
         throws PlexusCipherException
@@ -71,24 +184,314 @@ public class DefaultPlexusCipher
             return str;
         }
 
-        return _cipher.decrypt64( str, passPhrase );
+        return decrypt64( str, prepare( passPhrase ), null );
+    }
+
+    // ---------------------------------------------------------------
+    public String decrypt( final String str, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        return decrypt64( str, passPhrase, null );
     }
 
     // ---------------------------------------------------------------
     public String decryptDecorated( final String str, final String passPhrase )
         throws PlexusCipherException
+    {
+        return decryptDecorated( str, passPhrase, null );
+    }
+
+    // ---------------------------------------------------------------
+    public String decryptDecorated( final String str, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        return decryptDecorated( str, passPhrase, null );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * {@link #decryptDecorated(String, String)} charged to the given caller for admission control
+     */
+    public String decryptDecorated( final String str, final String passPhrase, final String callerKey )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        return decryptDecorated( str, prepare( passPhrase ), callerKey );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * {@link #decryptDecorated(String, PreparedPassPhrase)} charged to the given caller for admission control
+     */
+    public String decryptDecorated( final String str, final PreparedPassPhrase passPhrase, final String callerKey )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        String undecorated = scan( str );
+
+        if ( undecorated == null )
+        {
+            undecorated = str;
+        }
+        else if ( undecorated.length() < 1 )
+        {
+            return undecorated;
+        }
+
+        return decrypt64( undecorated, passPhrase, callerKey );
+    }
+
+    // ---------------------------------------------------------------
+    private String decrypt64( final String str, final PreparedPassPhrase passPhrase, final String callerKey )
+        throws PlexusCipherException
+    {
+        if ( !PBECipher.isWellFormed64( str ) )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEncryptedPassword" );
+        }
+
+        if ( _admission == null )
+        {
+            return _cipher.decrypt64( str, passPhrase );
+        }
+
+        _admission.enter( callerKey );
+        try
+        {
+            return _cipher.decrypt64( str, passPhrase );
+        }
+        finally
+        {
+            _admission.exit();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public String encryptDeterministic( final String str, final String passPhrase )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        return _cipher.encryptDeterministic64( str, prepare( passPhrase ) );
+    }
+
+    // ---------------------------------------------------------------
+    public String encryptDeterministic( final String str, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        return _cipher.encryptDeterministic64( str, passPhrase );
+    }
+
+    // ---------------------------------------------------------------
+    public String decryptDeterministic( final String str, final String passPhrase )
+        throws PlexusCipherException
+    {
+        if ( str == null || str.length() < 1 )
+        {
+            return str;
+        }
+
+        return decryptDeterministic( str, prepare( passPhrase ) );
+    }
+
+    // ---------------------------------------------------------------
+    public String decryptDeterministic( final String str, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
     {
         if ( str == null || str.length() < 1 )
         {
             return str;
         }
 
-        if ( isEncryptedString( str ) )
+        if ( _admission == null )
         {
-            return decrypt( unDecorate( str ), passPhrase );
+            return _cipher.decryptDeterministic64( str, passPhrase );
         }
 
-        return decrypt( str, passPhrase );
+        _admission.enter( null );
+        try
+        {
+            return _cipher.decryptDeterministic64( str, passPhrase );
+        }
+        finally
+        {
+            _admission.exit();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return admission control of the decrypt methods, null if no limits are configured
+     */
+    public AdmissionControl getAdmissionControl()
+    {
+        return _admission;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return cipher for large payloads, using the configured segment size and parallelism
+     */
+    public synchronized ChunkedCipher getChunkedCipher()
+    {
+        if ( _chunkedCipher == null )
+        {
+            int parallelism = _config.getChunkParallelism();
+
+            if ( parallelism < 1 )
+            {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            }
+
+            // the calling thread processes one range of segments itself
+            ExecutorService executor =
+                parallelism < 2 ? null : newDaemonPool( "plexus-cipher-chunk-", parallelism - 1 );
+
+            _chunkedCipher = new ChunkedCipher( _config.getChunkSize(), executor, parallelism );
+        }
+
+        return _chunkedCipher;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return pipeline decrypting on a shared pool, with the configured batch size, parallelism and capacity
+     */
+    public <T> DecryptPipeline<T> newDecryptPipeline( final PreparedPassPhrase passPhrase,
+                                                      final DecryptPipeline.Sink<T> sink )
+    {
+        int parallelism = _config.getPipelineParallelism();
+
+        if ( parallelism < 1 )
+        {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+
+        ExecutorService executor;
+
+        synchronized ( this )
+        {
+            if ( _pipelineExecutor == null )
+            {
+                _pipelineExecutor = newDaemonPool( "plexus-cipher-pipeline-", parallelism );
+            }
+
+            executor = _pipelineExecutor;
+        }
+
+        return new DecryptPipeline<T>( this, passPhrase, executor, _config.getPipelineBatchSize(), parallelism,
+                                       _config.getPipelineCapacity(), sink );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return upgrader moving legacy values read through it to the preferred format, with the configured batch size
+     *         and capacity, once {@link CipherUpgrader#confirmPassPhrase()} is called. It runs its own background
+     *         thread until closed.
+     */
+    public CipherUpgrader newUpgrader( final PreparedPassPhrase passPhrase, final CipherUpgrader.WriteBack writeBack )
+        throws PlexusCipherException
+    {
+        return new CipherUpgrader( this, passPhrase, writeBack, _config.getUpgradeBatchSize(),
+                                   _config.getUpgradeCapacity() );
+    }
+
+    // ---------------------------------------------------------------
+    private static ExecutorService newDaemonPool( final String prefix, final int threads )
+    {
+        return new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                                       new ThreadFactory()
+                                       {
+                                           private final AtomicInteger _count = new AtomicInteger();
+
+                                           public Thread newThread( final Runnable r )
+                                           {
+                                               Thread t = new Thread( r, prefix + _count.incrementAndGet() );
+                                               t.setDaemon( true );
+                                               return t;
+                                           }
+                                       } );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return named contexts with their own pass phrases, e.g. one per tenant
+     */
+    public CipherContextRegistry getContexts()
+    {
+        return _contexts;
+    }
+
+    // ---------------------------------------------------------------
+    public CipherEngines getEngines()
+    {
+        return _engines;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * encrypt bytes with the configured {@link CipherEngine}
+     */
+    public byte[] encrypt( final byte[] clearBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        return _engine.encrypt( clearBytes, passPhrase );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * encrypt bytes with the named {@link CipherEngine}
+     */
+    public byte[] encrypt( final byte[] clearBytes, final PreparedPassPhrase passPhrase, final String engine )
+        throws PlexusCipherException
+    {
+        return _engines.get( engine ).encrypt( clearBytes, passPhrase );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * decrypt bytes with whichever {@link CipherEngine} owns their envelope version
+     */
+    public byte[] decrypt( final byte[] encryptedBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        CipherEngine engine = _engines.forEnvelope( encryptedBytes );
+
+        if ( _admission == null )
+        {
+            return engine.decrypt( encryptedBytes, passPhrase );
+        }
+
+        _admission.enter( null );
+        try
+        {
+            return engine.decrypt( encryptedBytes, passPhrase );
+        }
+        finally
+        {
+            _admission.exit();
+        }
     }
 
     // ----------------------------------------------------------------------------
@@ -99,9 +502,7 @@ public class DefaultPlexusCipher
             return false;
         }
 
-        Matcher matcher = ENCRYPTED_STRING_PATTERN.matcher( str );
-
-        return matcher.matches() || matcher.find();
+        return scan( str ) != null;
     }
 
     // ----------------------------------------------------------------------------
@@ -109,11 +510,11 @@ public class DefaultPlexusCipher
     public String unDecorate( final String str )
         throws PlexusCipherException
     {
-        Matcher matcher = ENCRYPTED_STRING_PATTERN.matcher( str );
+        String res = scan( str );
 
-        if ( matcher.matches() || matcher.find() )
+        if ( res != null )
         {
-            return matcher.group( 1 );
+            return res;
         }
         else
         {
@@ -121,6 +522,25 @@ public class DefaultPlexusCipher
         }
     }
 
+    // ----------------------------------------------------------------------------
+    /**
+     * @return string inside decorations, null if there are none
+     */
+    private static String scan( final String str )
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+
+        long start = CipherEvents.start( listener );
+
+        Matcher matcher = ENCRYPTED_STRING_PATTERN.matcher( str );
+
+        String res = matcher.matches() || matcher.find() ? matcher.group( 1 ) : null;
+
+        CipherEvents.end( listener, CipherPhase.DECORATION_SCAN, str.length(), start, res != null );
+
+        return res;
+    }
+
     // ----------------------------------------------------------------------------
     // -------------------
     public String decorate( final String str )
@@ -195,6 +615,7 @@ public class DefaultPlexusCipher
 
     // ---------------------------------------------------------------
     public static void main( final String[] args )
+        throws PlexusCipherException
     {
         // Security.addProvider( new BouncyCastleProvider() );
 
@@ -220,6 +641,8 @@ public class DefaultPlexusCipher
                 }
             }
         }
+
+        System.out.println( "fastest providers: " + CipherProviders.select() );
     }
     // ---------------------------------------------------------------
     // ---------------------------------------------------------------
@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Master pass phrase kept in a PKCS12 or JCEKS key store instead of plain configuration. The key store is loaded and
+ * the key unlocked once, and the result is cached as a {@link PreparedPassPhrase}: calls neither reload the key store
+ * nor encode and hash the pass phrase again, though each one still does the salted part of its key derivation. With
+ * <code>deriveEagerly</code> the deterministic mode key, which has no such part, is derived right away as well. The
+ * file is checked for changes at most once per check interval and reloaded when its time stamp or size changed.
+ * <p>
+ * The entry must be a secret key. Password entries, as created by <code>keytool -importpass</code>, give the stored
+ * password; any other secret key gives the Base64 encoding of its bytes.
+ * <p>
+ * If a reload fails, e.g. because the file is being rewritten, the previous pass phrase stays in use and the reload
+ * is retried after the next check interval. Only the first load throws.
+ */
+public final class KeyStoreMasterKeySource
+{
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final File _file;
+
+    private final String _type;
+
+    private final char[] _storePassword;
+
+    private final String _alias;
+
+    private final char[] _keyPassword;
+
+    private final boolean _deriveEagerly;
+
+    private final long _checkIntervalNanos;
+
+    private volatile PreparedPassPhrase _passPhrase;
+
+    /** time stamp and size of the loaded file */
+    private long _lastModified;
+
+    private long _length;
+
+    private volatile long _checkedAt;
+
+    // ---------------------------------------------------------------
+    /**
+     * @param type <code>PKCS12</code> or <code>JCEKS</code>, null to go by the file extension
+     * @param keyPassword null if it is the store password
+     */
+    public KeyStoreMasterKeySource( final File file, final String type, final char[] storePassword,
+                                    final String alias, final char[] keyPassword )
+    {
+        this( file, type, storePassword, alias, keyPassword, false, DEFAULT_CHECK_INTERVAL_MILLIS );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @param deriveEagerly also derive the deterministic mode key on load
+     * @param checkIntervalMillis how long the file is trusted not to have changed, 0 checks on every call
+     */
+    public KeyStoreMasterKeySource( final File file, final String type, final char[] storePassword,
+                                    final String alias, final char[] keyPassword, final boolean deriveEagerly,
+                                    final long checkIntervalMillis )
+    {
+        _file = file;
+        _type = type != null ? type : typeOf( file );
+        _storePassword = storePassword == null ? null : (char[]) storePassword.clone();
+        _alias = alias;
+        _keyPassword = keyPassword == null ? _storePassword : (char[]) keyPassword.clone();
+        _deriveEagerly = deriveEagerly;
+        _checkIntervalNanos = checkIntervalMillis * 1000000L;
+    }
+
+    // ---------------------------------------------------------------
+    private static String typeOf( final File file )
+    {
+        String name = file.getName().toLowerCase();
+
+        return name.endsWith( ".p12" ) || name.endsWith( ".pfx" ) ? "PKCS12" : "JCEKS";
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the master pass phrase, loaded on first use and whenever the key store changed
+     */
+    public PreparedPassPhrase getPassPhrase()
+        throws PlexusCipherException
+    {
+        PreparedPassPhrase res = _passPhrase;
+
+        if ( res != null && System.nanoTime() - _checkedAt < _checkIntervalNanos )
+        {
+            return res;
+        }
+
+        return refresh();
+    }
+
+    // ---------------------------------------------------------------
+    private synchronized PreparedPassPhrase refresh()
+        throws PlexusCipherException
+    {
+        long now = System.nanoTime();
+
+        // another thread may have refreshed meanwhile
+        if ( _passPhrase != null && now - _checkedAt < _checkIntervalNanos )
+        {
+            return _passPhrase;
+        }
+
+        long lastModified = _file.lastModified();
+        long length = _file.length();
+
+        if ( _passPhrase == null || lastModified != _lastModified || length != _length )
+        {
+            try
+            {
+                _passPhrase = load();
+
+                _lastModified = lastModified;
+                _length = length;
+            }
+            catch ( PlexusCipherException e )
+            {
+                if ( _passPhrase == null )
+                {
+                    throw e;
+                }
+                // keep the old one, the time stamp is left alone so that the next check retries
+            }
+        }
+
+        _checkedAt = now;
+
+        return _passPhrase;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * force a reload on the next call, e.g. after rotating the key without changing the file's time stamp
+     */
+    public synchronized void invalidate()
+    {
+        _lastModified = -1;
+        _checkedAt = System.nanoTime() - _checkIntervalNanos;
+    }
+
+    // ---------------------------------------------------------------
+    private PreparedPassPhrase load()
+        throws PlexusCipherException
+    {
+        Key key;
+        try
+        {
+            KeyStore store = KeyStore.getInstance( _type );
+
+            InputStream in = new FileInputStream( _file );
+            try
+            {
+                store.load( in, _storePassword );
+            }
+            finally
+            {
+                in.close();
+            }
+
+            key = store.getKey( _alias, _keyPassword );
+        }
+        catch ( IOException e )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badKeyStore: " + _file, e );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badKeyStore: " + _file, e );
+        }
+
+        if ( !( key instanceof SecretKey ) )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.noSecretKey: " + _alias );
+        }
+
+        byte[] encoded = key.getEncoded();
+
+        if ( encoded == null )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.noSecretKey: " + _alias );
+        }
+
+        try
+        {
+            PreparedPassPhrase res = new PreparedPassPhrase( toPassPhrase( key.getAlgorithm(), encoded ) );
+
+            if ( _deriveEagerly )
+            {
+                PBECipher.getSivKey( res );
+            }
+
+            return res;
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+        finally
+        {
+            Arrays.fill( encoded, (byte) 0 );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static String toPassPhrase( final String algorithm, final byte[] encoded )
+    {
+        if ( algorithm != null && algorithm.toUpperCase().startsWith( "PBE" ) )
+        {
+            // PBE keys encode their password one byte per character
+            char[] chars = new char[encoded.length];
+
+            for ( int i = 0; i < chars.length; i++ )
+            {
+                chars[i] = (char) ( encoded[i] & 0xff );
+            }
+
+            return new String( chars );
+        }
+
+        return new String( Base64.encodeBase64( encoded ) );
+    }
+}
@@ -24,13 +24,23 @@ under the License.
 
 package org.sonatype.plexus.components.cipher;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
@@ -61,17 +71,43 @@ public class PBECipher
 
     protected static int PBE_ITERATIONS = 1000;
 
-    protected MessageDigest _digester;
-    
+    /** first byte of a binary envelope, see {@link #encrypt(byte[], int, int, PreparedPassPhrase, byte[], int)} */
+    protected static final byte BINARY_VERSION = 1;
+
+    protected static final int BINARY_HEADER_SIZE = 1 + SALT_SIZE;
+
+    /** fixed salt of the deterministic mode, keeps its key apart from the randomly salted ones */
+    private static final byte[] SIV_SALT = { 'p', 'c', '-', 's', 'i', 'v', 0, 1 };
+
+    private static final byte[][] NO_ASSOCIATED_DATA = new byte[0][];
+
+    /** set in the pad length byte of {@link #encrypt64(String, PreparedPassPhrase)} output holding deflated text */
+    protected static final int COMPRESSED = 0x40;
+
+    /** first byte of {@link #encrypt(InputStream, OutputStream, PreparedPassPhrase)} output */
+    protected static final byte STREAM_VERSION = 4;
+
+    /** version, flags and salt */
+    protected static final int STREAM_HEADER_SIZE = 2 + SALT_SIZE;
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    /** stream prefix compressed to decide whether compressing the stream pays off */
+    private static final int STREAM_PROBE_SIZE = 64 * 1024;
+
     private static final SecureRandom _secureRandom = new SecureRandom();
 
+    /** clear text bytes from which compression is attempted, 0 never compresses */
+    private int _compressionThreshold;
+
     //---------------------------------------------------------------
     public PBECipher()
     throws PlexusCipherException
     {
         try
         {
-            _digester = MessageDigest.getInstance( DIGEST_ALG );
+            // fail early if the environment cannot derive keys
+            CipherProviders.newDigest( DIGEST_ALG );
         }
         catch ( NoSuchAlgorithmException e )
         {
@@ -79,6 +115,22 @@ public class PBECipher
         }
     }
     //---------------------------------------------------------------
+    /**
+     * compress clear texts of at least the given number of bytes before encrypting them, whenever that makes them
+     * shorter. Decryption handles compressed and uncompressed values alike, whatever the setting.
+     * 
+     * @param compressionThreshold size in bytes, 0 to never compress
+     */
+    public void setCompressionThreshold( final int compressionThreshold )
+    {
+        _compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionThreshold()
+    {
+        return _compressionThreshold;
+    }
+    //---------------------------------------------------------------
     private byte[] getSalt( final int sz )
     {
         byte[] res = new byte[ sz ];
@@ -91,149 +143,1222 @@ public class PBECipher
     public String encrypt64( final String clearText, final String password )
     throws PlexusCipherException
     {
+        return encrypt64( clearText, new PreparedPassPhrase( password ) );
+    }
+    //-------------------------------------------------------------------------------
+    public String encrypt64( final String clearText, final PreparedPassPhrase password )
+    throws PlexusCipherException
+    {
+        Scratch scratch = Scratch.acquire();
+        
+        byte[] clearBytes = null;
+        
+        int clearLen = 0;
+        
         try
         {
-            byte[] clearBytes = clearText.getBytes( STRING_ENCODING );
-    
-            byte[] salt = getSalt( SALT_SIZE );
+            clearBytes = scratch.clear( clearText.length() * 3 );
             
-            Cipher cipher = createCipher( password.getBytes( STRING_ENCODING ), salt, Cipher.ENCRYPT_MODE  );
-    
-            byte [] encryptedBytes = cipher.doFinal( clearBytes );
+            clearLen = encodeUtf8( clearText, clearBytes );
+            
+            boolean compressed = false;
+            
+            if ( shouldCompress( clearLen ) )
+            {
+                byte[] deflated = deflate( clearBytes, clearLen );
+                
+                if ( deflated != null )
+                {
+                    Arrays.fill( clearBytes, 0, clearLen, WIPER );
+                    
+                    clearBytes = deflated;
+                    
+                    clearLen = deflated.length;
+                    
+                    compressed = true;
+                }
+            }
             
-            int len = encryptedBytes.length;
+            int len = ( clearLen / CHUNK_SIZE + 1 ) * CHUNK_SIZE;
             
-            byte padLen = (byte) ( CHUNK_SIZE - (SALT_SIZE + len + 1) % CHUNK_SIZE );
+            int padLen = CHUNK_SIZE - (SALT_SIZE + len + 1) % CHUNK_SIZE;
             
             int totalLen = SALT_SIZE + len + padLen + 1;
             
-            byte [] allEncryptedBytes = getSalt( totalLen );
+            byte [] allEncryptedBytes = scratch.bytes( totalLen );
             
-            System.arraycopy( salt, 0, allEncryptedBytes, 0, SALT_SIZE );
+            _secureRandom.nextBytes( scratch.saltAndPad );
             
-            allEncryptedBytes[ SALT_SIZE ] = padLen;
+            System.arraycopy( scratch.saltAndPad, 0, allEncryptedBytes, 0, SALT_SIZE );
             
-            System.arraycopy( encryptedBytes, 0, allEncryptedBytes, SALT_SIZE + 1, len );
+            Cipher cipher = createCipher( password, allEncryptedBytes, 0, Cipher.ENCRYPT_MODE, scratch );
             
-            byte [] encryptedTextBytes = Base64.encodeBase64( allEncryptedBytes );
+            allEncryptedBytes[ SALT_SIZE ] = (byte) ( compressed ? padLen | COMPRESSED : padLen );
             
-            String encryptedText = new String( encryptedTextBytes, STRING_ENCODING );
-    
-            return encryptedText;
+            doFinal( cipher, clearBytes, 0, clearLen, allEncryptedBytes, SALT_SIZE + 1 );
+            
+            System.arraycopy( scratch.saltAndPad, SALT_SIZE, allEncryptedBytes, SALT_SIZE + 1 + len, padLen );
+            
+            return encodeBase64( allEncryptedBytes, totalLen, scratch );
         }
         catch( Exception e)
         {
             throw new PlexusCipherException(e);
         }
+        finally
+        {
+            if ( clearBytes != null )
+            {
+                Arrays.fill( clearBytes, 0, clearLen, WIPER );
+            }
+            
+            scratch.release();
+        }
     }
 
     // -------------------------------------------------------------------------------
     public String decrypt64( final String encryptedText, final String password )
     throws PlexusCipherException
     {
+        return decrypt64( encryptedText, new PreparedPassPhrase( password ) );
+    }
+
+    // -------------------------------------------------------------------------------
+    public String decrypt64( final String encryptedText, final PreparedPassPhrase password )
+    throws PlexusCipherException
+    {
+        Scratch scratch = Scratch.acquire();
+        
+        byte[] clearBytes = null;
+        
+        int clearLen = 0;
+        
         try
         {
-            byte[] allEncryptedBytes = Base64.decodeBase64( encryptedText.getBytes() );
+            int totalLen = getStrictDecodedLength( encryptedText );
+            
+            byte[] allEncryptedBytes;
             
-            int totalLen = allEncryptedBytes.length;
+            if ( totalLen >= 0 )
+            {
+                allEncryptedBytes = scratch.bytes( totalLen );
+                
+                decodeBase64( encryptedText, allEncryptedBytes );
+            }
+            else
+            {
+                // whitespace or other oddities, leave them to the lenient decoder
+                allEncryptedBytes = decodeBase64( encryptedText );
+                
+                totalLen = allEncryptedBytes.length;
+            }
             
-            byte [] salt = new byte[ SALT_SIZE ];
+            if ( totalLen % CHUNK_SIZE == BINARY_HEADER_SIZE && allEncryptedBytes[ 0 ] == BINARY_VERSION )
+            {
+                // an upgraded value, see encryptEnvelope64 - never a legacy one, those are whole blocks long
+                clearBytes = scratch.clear( getDecryptedLength( totalLen ) );
+                
+                clearLen = decrypt( allEncryptedBytes, 0, totalLen, password, clearBytes, 0, scratch );
+                
+                return Platform.fromUtf8( clearBytes, 0, clearLen );
+            }
             
-            System.arraycopy( allEncryptedBytes, 0, salt, 0, SALT_SIZE );
+            int padLen = totalLen > SALT_SIZE ? allEncryptedBytes[ SALT_SIZE ] : -1;
             
-            byte padLen = allEncryptedBytes[ SALT_SIZE ]; 
-    
-            byte [] encryptedBytes = new byte[ totalLen - SALT_SIZE - 1 - padLen ];
+            boolean compressed = padLen > 0 && ( padLen & COMPRESSED ) != 0;
             
-            System.arraycopy( allEncryptedBytes, SALT_SIZE + 1, encryptedBytes, 0, encryptedBytes.length );
+            if ( compressed )
+            {
+                padLen &= ~COMPRESSED;
+            }
             
-            Cipher cipher = createCipher( password.getBytes( STRING_ENCODING ), salt, Cipher.DECRYPT_MODE  );
-    
-            byte [] clearBytes = cipher.doFinal( encryptedBytes );
+            int encryptedLen = totalLen - SALT_SIZE - 1 - padLen;
             
-            String clearText = new String( clearBytes, STRING_ENCODING ); 
-    
-            return clearText;
+            // reject garbage before spending a key derivation on it
+            if ( padLen < 0 || padLen > CHUNK_SIZE || encryptedLen < CHUNK_SIZE || encryptedLen % CHUNK_SIZE != 0 )
+            {
+                throw new PlexusCipherException( "default.plexus.cipher.badEncryptedPassword" );
+            }
+            
+            Cipher cipher = createCipher( password, allEncryptedBytes, 0, Cipher.DECRYPT_MODE, scratch );
+            
+            clearBytes = scratch.clear( encryptedLen );
+            
+            clearLen = doFinal( cipher, allEncryptedBytes, SALT_SIZE + 1, encryptedLen, clearBytes, 0 );
+            
+            if ( compressed )
+            {
+                byte[] inflated = inflate( clearBytes, clearLen );
+                
+                Arrays.fill( clearBytes, 0, clearLen, WIPER );
+                
+                clearBytes = inflated;
+                
+                clearLen = inflated.length;
+            }
+            
+            return Platform.fromUtf8( clearBytes, 0, clearLen );
+        }
+        catch( PlexusCipherException e)
+        {
+            throw e;
         }
         catch( Exception e)
         {
             throw new PlexusCipherException(e);
         }
+        finally
+        {
+            if ( clearBytes != null )
+            {
+                Arrays.fill( clearBytes, 0, clearLen, WIPER );
+            }
+            
+            scratch.release();
+        }
     }
     //-------------------------------------------------------------------------------
-    private Cipher createCipher( final byte [] pwdAsBytes, byte [] salt, final int mode )
-    throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException
+    /**
+     * encrypt into the Base64 encoded binary envelope, the preferred format for new values:
+     * {@link #decrypt64(String, PreparedPassPhrase)} reads it as well, it carries a version byte and it is up to 16
+     * bytes shorter, lacking the pad length byte and the random padding of
+     * {@link #encrypt64(String, PreparedPassPhrase)}. It is never compressed.
+     */
+    public String encryptEnvelope64( final String clearText, final PreparedPassPhrase password )
+    throws PlexusCipherException
     {
-        _digester.reset();
-        
-        byte[] keyAndIv = new byte[ SPICE_SIZE * 2 ];
-        
-        if( salt == null || salt.length == 0 )
-        {
-            // Unsalted!  Bad idea!
-            salt = null;
-        }
+        Scratch scratch = Scratch.acquire();
         
-        byte[] result;
+        byte[] clearBytes = null;
         
-        int currentPos = 0;
+        int clearLen = 0;
         
-        while (currentPos < keyAndIv.length)
+        try
         {
-            _digester.update(pwdAsBytes);
+            clearBytes = scratch.clear( clearText.length() * 3 );
             
-            if (salt != null)
-            {
-                // First 8 bytes of salt ONLY!  That wasn't obvious to me
-                // when using AES encrypted private keys in "Traditional
-                // SSLeay Format".
-                //
-                // Example:
-                // DEK-Info: AES-128-CBC,8DA91D5A71988E3D4431D9C2C009F249
-                //
-                // Only the first 8 bytes are salt, but the whole thing is
-                // re-used again later as the IV.  MUCH gnashing of teeth!
-                _digester.update( salt, 0, 8 );
-            }
-            result = _digester.digest();
+            clearLen = encodeUtf8( clearText, clearBytes );
             
-            int stillNeed = keyAndIv.length - currentPos;
+            byte[] encryptedBytes = scratch.bytes( getEncryptedLength( clearLen ) );
             
-            // Digest gave us more than we need.  Let's truncate it.
-            if (result.length > stillNeed)
+            int len = encrypt( clearBytes, 0, clearLen, password, encryptedBytes, 0, scratch );
+            
+            return encodeBase64( encryptedBytes, len, scratch );
+        }
+        catch( PlexusCipherException e)
+        {
+            throw e;
+        }
+        catch( Exception e)
+        {
+            throw new PlexusCipherException(e);
+        }
+        finally
+        {
+            if ( clearBytes != null )
             {
-                byte[] b = new byte[stillNeed];
-                
-                System.arraycopy(result, 0, b, 0, b.length);
-                
-                result = b;
+                Arrays.fill( clearBytes, 0, clearLen, WIPER );
             }
             
-            System.arraycopy(result, 0, keyAndIv, currentPos, result.length);
-            
-            currentPos += result.length;
-            
-            if (currentPos < keyAndIv.length)
+            scratch.release();
+        }
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * exact size of the binary envelope produced for the given number of clear bytes
+     */
+    public static int getEncryptedLength( final int clearLength )
+    {
+        // PKCS5 always adds between 1 and CHUNK_SIZE bytes of padding
+        return BINARY_HEADER_SIZE + ( clearLength / CHUNK_SIZE + 1 ) * CHUNK_SIZE;
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * size of the buffer needed to decrypt a binary envelope of the given size. The actual clear text is 1 to
+     * CHUNK_SIZE bytes shorter, the exact figure is only known once the padding has been decrypted.
+     */
+    public static int getDecryptedLength( final int encryptedLength )
+    {
+        return Math.max( 0, encryptedLength - BINARY_HEADER_SIZE );
+    }
+
+    //-------------------------------------------------------------------------------
+    public byte[] encrypt( final byte[] clearBytes, final String password )
+    throws PlexusCipherException
+    {
+        return encrypt( clearBytes, new PreparedPassPhrase( password ) );
+    }
+
+    //-------------------------------------------------------------------------------
+    public byte[] encrypt( final byte[] clearBytes, final PreparedPassPhrase password )
+    throws PlexusCipherException
+    {
+        byte[] res = new byte[ getEncryptedLength( clearBytes.length ) ];
+
+        encrypt( clearBytes, 0, clearBytes.length, password, res, 0 );
+
+        return res;
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * encrypt into a compact binary envelope: a version byte, the salt and the raw cipher text, without Base64 or
+     * random padding. <code>out</code> must have room for {@link #getEncryptedLength(int)} bytes.
+     * 
+     * @return number of bytes written to <code>out</code>
+     */
+    public int encrypt( final byte[] clearBytes, final int offset, final int length, final PreparedPassPhrase password,
+                        final byte[] out, final int outOffset )
+    throws PlexusCipherException
+    {
+        Scratch scratch = Scratch.acquire();
+
+        try
+        {
+            return encrypt( clearBytes, offset, length, password, out, outOffset, scratch );
+        }
+        finally
+        {
+            scratch.release();
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    private int encrypt( final byte[] clearBytes, final int offset, final int length, final PreparedPassPhrase password,
+                         final byte[] out, final int outOffset, final Scratch scratch )
+    throws PlexusCipherException
+    {
+        try
+        {
+            _secureRandom.nextBytes( scratch.salt );
+
+            Cipher cipher = createCipher( password, scratch.salt, 0, Cipher.ENCRYPT_MODE, scratch );
+
+            out[ outOffset ] = BINARY_VERSION;
+
+            System.arraycopy( scratch.salt, 0, out, outOffset + 1, SALT_SIZE );
+
+            return BINARY_HEADER_SIZE
+                + doFinal( cipher, clearBytes, offset, length, out, outOffset + BINARY_HEADER_SIZE );
+        }
+        catch( Exception e)
+        {
+            throw new PlexusCipherException(e);
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    public byte[] decrypt( final byte[] encryptedBytes, final String password )
+    throws PlexusCipherException
+    {
+        return decrypt( encryptedBytes, new PreparedPassPhrase( password ) );
+    }
+
+    //-------------------------------------------------------------------------------
+    public byte[] decrypt( final byte[] encryptedBytes, final PreparedPassPhrase password )
+    throws PlexusCipherException
+    {
+        byte[] buf = new byte[ getDecryptedLength( encryptedBytes.length ) ];
+
+        int len = decrypt( encryptedBytes, 0, encryptedBytes.length, password, buf, 0 );
+
+        if ( len == buf.length )
+        {
+            return buf;
+        }
+
+        byte[] res = new byte[ len ];
+
+        System.arraycopy( buf, 0, res, 0, len );
+
+        Arrays.fill( buf, WIPER );
+
+        return res;
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * decrypt a binary envelope produced by {@link #encrypt(byte[], int, int, PreparedPassPhrase, byte[], int)}.
+     * <code>out</code> must have room for {@link #getDecryptedLength(int)} bytes.
+     * 
+     * @return number of clear bytes written to <code>out</code>
+     */
+    public int decrypt( final byte[] encryptedBytes, final int offset, final int length,
+                        final PreparedPassPhrase password, final byte[] out, final int outOffset )
+    throws PlexusCipherException
+    {
+        Scratch scratch = Scratch.acquire();
+
+        try
+        {
+            return decrypt( encryptedBytes, offset, length, password, out, outOffset, scratch );
+        }
+        finally
+        {
+            scratch.release();
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    private int decrypt( final byte[] encryptedBytes, final int offset, final int length,
+                         final PreparedPassPhrase password, final byte[] out, final int outOffset,
+                         final Scratch scratch )
+    throws PlexusCipherException
+    {
+        if ( length < BINARY_HEADER_SIZE + CHUNK_SIZE || ( length - BINARY_HEADER_SIZE ) % CHUNK_SIZE != 0
+            || encryptedBytes[ offset ] != BINARY_VERSION )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        try
+        {
+            Cipher cipher = createCipher( password, encryptedBytes, offset + 1, Cipher.DECRYPT_MODE, scratch );
+
+            return doFinal( cipher, encryptedBytes, offset + BINARY_HEADER_SIZE, length - BINARY_HEADER_SIZE, out,
+                            outOffset );
+        }
+        catch( Exception e)
+        {
+            throw new PlexusCipherException(e);
+        }
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * encrypt a stream of any size: {@link #STREAM_VERSION}, a flags byte and the salt, followed by the cipher text.
+     * With a compression threshold set, a stream at least that long is compressed if its first
+     * {@value #STREAM_PROBE_SIZE} bytes compress. Neither stream is closed.
+     * 
+     * @return number of clear bytes read
+     */
+    public long encrypt( final InputStream in, final OutputStream out, final PreparedPassPhrase password )
+    throws IOException, PlexusCipherException
+    {
+        byte[] probe = new byte[ STREAM_PROBE_SIZE ];
+
+        int probeLen = readFully( in, probe );
+
+        boolean compress = shouldCompress( probeLen == probe.length ? Integer.MAX_VALUE : probeLen )
+            && deflate( probe, probeLen ) != null;
+
+        byte[] salt = getSalt( SALT_SIZE );
+
+        Cipher cipher;
+        try
+        {
+            // a private cipher: the streams may call back into this class
+            cipher = createCipher( password, salt, 0, Cipher.ENCRYPT_MODE, null );
+        }
+        catch( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+
+        out.write( STREAM_VERSION );
+        out.write( compress ? COMPRESSED : 0 );
+        out.write( salt );
+
+        Deflater deflater = compress ? new Deflater() : null;
+        byte[] buf = new byte[ STREAM_BUFFER_SIZE ];
+        byte[] encrypted = new byte[ STREAM_BUFFER_SIZE + CHUNK_SIZE ];
+
+        try
+        {
+            long total = probeLen;
+
+            encryptChunk( cipher, deflater, probe, probeLen, buf, encrypted, out );
+
+            for ( int n = in.read( probe ); n >= 0; n = in.read( probe ) )
+            {
+                total += n;
+
+                encryptChunk( cipher, deflater, probe, n, buf, encrypted, out );
+            }
+
+            if ( deflater != null )
+            {
+                deflater.finish();
+
+                while ( !deflater.finished() )
+                {
+                    int n = deflater.deflate( buf );
+
+                    out.write( encrypted, 0, cipher.update( buf, 0, n, encrypted ) );
+                }
+            }
+
+            out.write( encrypted, 0, cipher.doFinal( encrypted, 0 ) );
+
+            return total;
+        }
+        catch( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+        finally
+        {
+            if ( deflater != null )
             {
-                // Next round starts with a hash of the hash.
-                _digester.reset();
-                _digester.update(result);
+                deflater.end();
             }
+
+            Arrays.fill( probe, WIPER );
+            Arrays.fill( buf, WIPER );
         }
+    }
 
-        byte[] key = new byte[ SPICE_SIZE ];
-        
-        byte[] iv = new byte[ SPICE_SIZE ];
-        
-        System.arraycopy(keyAndIv, 0, key, 0, key.length);
-        
-        System.arraycopy(keyAndIv, key.length, iv, 0, iv.length);
+    //-------------------------------------------------------------------------------
+    private static void encryptChunk( final Cipher cipher, final Deflater deflater, final byte[] in, final int len,
+                                      final byte[] buf, final byte[] encrypted, final OutputStream out )
+    throws GeneralSecurityException, IOException
+    {
+        if ( deflater == null )
+        {
+            for ( int off = 0; off < len; off += STREAM_BUFFER_SIZE )
+            {
+                int n = Math.min( STREAM_BUFFER_SIZE, len - off );
+
+                out.write( encrypted, 0, cipher.update( in, off, n, encrypted ) );
+            }
+            return;
+        }
 
-        Cipher cipher = Cipher.getInstance( CIPHER_ALG );
+        deflater.setInput( in, 0, len );
 
-        cipher.init( mode, new SecretKeySpec( key, KEY_ALG ), new IvParameterSpec( iv ) );
+        while ( !deflater.needsInput() )
+        {
+            int n = deflater.deflate( buf );
+
+            out.write( encrypted, 0, cipher.update( buf, 0, n, encrypted ) );
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * decrypt a stream produced by {@link #encrypt(InputStream, OutputStream, PreparedPassPhrase)}, undoing the
+     * compression if it was applied. Neither stream is closed.
+     * 
+     * @return number of clear bytes written
+     */
+    public long decrypt( final InputStream in, final OutputStream out, final PreparedPassPhrase password )
+    throws IOException, PlexusCipherException
+    {
+        byte[] header = new byte[ STREAM_HEADER_SIZE ];
+
+        if ( readFully( in, header ) < STREAM_HEADER_SIZE || header[ 0 ] != STREAM_VERSION
+            || ( header[ 1 ] & ~COMPRESSED ) != 0 )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        byte[] salt = new byte[ SALT_SIZE ];
+
+        System.arraycopy( header, 2, salt, 0, SALT_SIZE );
+
+        Inflater inflater = header[ 1 ] != 0 ? new Inflater() : null;
+        byte[] buf = new byte[ STREAM_BUFFER_SIZE ];
+        byte[] decrypted = new byte[ STREAM_BUFFER_SIZE + CHUNK_SIZE ];
+        byte[] inflated = inflater == null ? null : new byte[ STREAM_BUFFER_SIZE ];
+
+        try
+        {
+            Cipher cipher = createCipher( password, salt, 0, Cipher.DECRYPT_MODE, null );
+
+            long total = 0;
+
+            for ( int n = in.read( buf ); n >= 0; n = in.read( buf ) )
+            {
+                total += decryptChunk( inflater, decrypted, cipher.update( buf, 0, n, decrypted ), inflated, out );
+            }
+
+            total += decryptChunk( inflater, decrypted, cipher.doFinal( decrypted, 0 ), inflated, out );
+
+            if ( inflater != null && !inflater.finished() )
+            {
+                throw new EOFException( "Compressed data truncated" );
+            }
+
+            return total;
+        }
+        catch( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+        catch( DataFormatException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+        finally
+        {
+            if ( inflater != null )
+            {
+                inflater.end();
+
+                Arrays.fill( inflated, WIPER );
+            }
+
+            Arrays.fill( decrypted, WIPER );
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    private static int decryptChunk( final Inflater inflater, final byte[] decrypted, final int len,
+                                     final byte[] inflated, final OutputStream out )
+    throws IOException, DataFormatException
+    {
+        if ( inflater == null )
+        {
+            out.write( decrypted, 0, len );
+
+            return len;
+        }
+
+        inflater.setInput( decrypted, 0, len );
+
+        int total = 0;
+
+        for ( int n = inflater.inflate( inflated ); n > 0; n = inflater.inflate( inflated ) )
+        {
+            out.write( inflated, 0, n );
+
+            total += n;
+        }
+
+        if ( inflater.needsDictionary() )
+        {
+            throw new DataFormatException( "Unexpected preset dictionary" );
+        }
+
+        return total;
+    }
+
+    //-------------------------------------------------------------------------------
+    private static int readFully( final InputStream in, final byte[] buf )
+    throws IOException
+    {
+        int len = 0;
+
+        while ( len < buf.length )
+        {
+            int n = in.read( buf, len, buf.length - len );
+
+            if ( n < 0 )
+            {
+                break;
+            }
+
+            len += n;
+        }
+
+        return len;
+    }
+
+    //-------------------------------------------------------------------------------
+    private boolean shouldCompress( final int clearLength )
+    {
+        return _compressionThreshold > 0 && clearLength >= _compressionThreshold;
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * @return zlib compressed bytes, null if they are not shorter than the input
+     */
+    private static byte[] deflate( final byte[] clearBytes, final int length )
+    {
+        Deflater deflater = new Deflater();
+        try
+        {
+            deflater.setInput( clearBytes, 0, length );
+            deflater.finish();
+
+            // output that is not shorter than the input is useless
+            byte[] buf = new byte[ length ];
+
+            int len = 0;
+            while ( !deflater.finished() && len < buf.length )
+            {
+                len += deflater.deflate( buf, len, buf.length - len );
+            }
+
+            if ( !deflater.finished() || len >= length )
+            {
+                Arrays.fill( buf, WIPER );
+
+                return null;
+            }
+
+            byte[] res = new byte[ len ];
+
+            System.arraycopy( buf, 0, res, 0, len );
+
+            Arrays.fill( buf, WIPER );
+
+            return res;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    private static byte[] inflate( final byte[] compressed, final int length )
+    throws DataFormatException, EOFException
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput( compressed, 0, length );
+
+            ByteArrayOutputStream res = new ByteArrayOutputStream( length * 4 );
+
+            byte[] buf = new byte[ STREAM_BUFFER_SIZE ];
+
+            while ( !inflater.finished() )
+            {
+                int n = inflater.inflate( buf );
+
+                if ( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+                {
+                    throw new EOFException( "Compressed data truncated" );
+                }
+
+                res.write( buf, 0, n );
+            }
+
+            Arrays.fill( buf, WIPER );
+
+            return res.toByteArray();
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * cheap structural check of a {@link #encrypt64(String, PreparedPassPhrase)} result, without decoding it
+     * 
+     * @return false if the text cannot possibly be decrypted
+     */
+    public static boolean isWellFormed64( final String encryptedText )
+    {
+        // salt, pad length and at least one cipher block - the binary envelope's version byte stands in for the latter
+        return getDecodedLength64( encryptedText ) >= SALT_SIZE + 1 + CHUNK_SIZE;
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * @return length the decoder would produce, -1 if the text is not Base64
+     */
+    private static int getDecodedLength64( final String encryptedText )
+    {
+        int chars = 0;
+        int pads = 0;
+
+        for ( int i = 0, n = encryptedText.length(); i < n; i++ )
+        {
+            char c = encryptedText.charAt( i );
+
+            if ( c == '=' )
+            {
+                pads++;
+            }
+            else if ( ( c >= 'A' && c <= 'Z' ) || ( c >= 'a' && c <= 'z' ) || ( c >= '0' && c <= '9' ) || c == '+'
+                || c == '/' )
+            {
+                if ( pads > 0 )
+                {
+                    // data after padding
+                    return -1;
+                }
+                chars++;
+            }
+            // anything else is skipped by the decoder
+        }
+
+        if ( ( chars + pads ) % 4 != 0 || pads > 2 )
+        {
+            return -1;
+        }
+
+        return ( chars + pads ) / 4 * 3 - pads;
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * @return true for the format of {@link #encrypt64(String, PreparedPassPhrase)}, false for that of
+     *         {@link #encryptEnvelope64(String, PreparedPassPhrase)} or anything malformed. The former always decodes
+     *         to whole cipher blocks, the latter never does, so the length alone tells them apart.
+     */
+    public static boolean isLegacy64( final String encryptedText )
+    {
+        int len = getDecodedLength64( encryptedText );
+
+        return len > 0 && len % CHUNK_SIZE == 0;
+    }
+
+    //-------------------------------------------------------------------------------
+    public String encryptDeterministic64( final String clearText, final String password )
+    throws PlexusCipherException
+    {
+        return encryptDeterministic64( clearText, new PreparedPassPhrase( password ) );
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * encrypt with AES-SIV (RFC 5297) and encode into base64. Unlike {@link #encrypt64(String, PreparedPassPhrase)}
+     * the result is the same every time for the same clear text and password, so encrypted values can be compared,
+     * indexed and joined without decrypting them. That is also what it gives away: equal values are recognizable.
+     */
+    public String encryptDeterministic64( final String clearText, final PreparedPassPhrase password )
+    throws PlexusCipherException
+    {
+        try
+        {
+            byte[] clearBytes = Platform.toUtf8( clearText );
+
+            byte[] encryptedBytes = AesSiv.encrypt( getSivKey( password ), NO_ASSOCIATED_DATA, clearBytes );
+
+            return encodeBase64( encryptedBytes );
+        }
+        catch( Exception e)
+        {
+            throw new PlexusCipherException(e);
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    public String decryptDeterministic64( final String encryptedText, final String password )
+    throws PlexusCipherException
+    {
+        return decryptDeterministic64( encryptedText, new PreparedPassPhrase( password ) );
+    }
+
+    //-------------------------------------------------------------------------------
+    public String decryptDeterministic64( final String encryptedText, final PreparedPassPhrase password )
+    throws PlexusCipherException
+    {
+        try
+        {
+            byte[] encryptedBytes = decodeBase64( encryptedText );
+
+            byte[] clearBytes = AesSiv.decrypt( getSivKey( password ), NO_ASSOCIATED_DATA, encryptedBytes );
+
+            return Platform.fromUtf8( clearBytes, 0, clearBytes.length );
+        }
+        catch( Exception e)
+        {
+            throw new PlexusCipherException(e);
+        }
+    }
+
+    //-------------------------------------------------------------------------------
+    static byte[] getSivKey( final PreparedPassPhrase password )
+    throws NoSuchAlgorithmException, DigestException
+    {
+        byte[] key = password.getSivKey();
+
+        if ( key == null )
+        {
+            // a racing thread may derive it as well, same result
+            CipherEventListener listener = CipherEvents.getListener();
+
+            long start = CipherEvents.start( listener );
+
+            key = deriveKeyAndIv( password, SIV_SALT );
+
+            CipherEvents.end( listener, CipherPhase.KEY_DERIVATION, password.getBytes().length, start, true );
+
+            password.setSivKey( key );
+        }
+
+        return key;
+    }
+
+    //-------------------------------------------------------------------------------
+    /**
+     * @param salt holds the salt at <code>saltOffset</code>
+     * @param scratch acquired by the caller, whose cipher to initialize and return, null for a new cipher
+     */
+    private Cipher createCipher( final PreparedPassPhrase password, final byte[] salt, final int saltOffset,
+                                 final int mode, final Scratch scratch )
+    throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException,
+    DigestException
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+        
+        long start = CipherEvents.start( listener );
+        
+        boolean success = false;
+        
+        // the listener is called before keyAndIv has been used, so it has to be held until then
+        Scratch derivation = scratch != null ? scratch : Scratch.acquire();
+        
+        byte[] keyAndIv;
+        
+        try
+        {
+            MessageDigest digester = derivation.digest( password );
+            
+            keyAndIv = derivation.keyAndIv;
+            
+            deriveKeyAndIv( digester, password, salt, saltOffset, keyAndIv );
+            
+            success = true;
+        }
+        finally
+        {
+            CipherEvents.end( listener, CipherPhase.KEY_DERIVATION, password.getBytes().length, start, success );
+            
+            if ( !success )
+            {
+                release( derivation, scratch );
+            }
+        }
+        
+        start = CipherEvents.start( listener );
+        
+        success = false;
+        
+        try
+        {
+            Cipher cipher = scratch != null ? scratch.cipher() : CipherProviders.newCipher( CIPHER_ALG );
+
+            cipher.init( mode, new SecretKeySpec( keyAndIv, 0, SPICE_SIZE, KEY_ALG ),
+                         new IvParameterSpec( keyAndIv, SPICE_SIZE, SPICE_SIZE ) );
+            
+            success = true;
+            
+            return cipher;
+        }
+        finally
+        {
+            Arrays.fill( keyAndIv, WIPER );
+            
+            release( derivation, scratch );
+            
+            CipherEvents.end( listener, CipherPhase.CIPHER_INIT, SPICE_SIZE, start, success );
+        }
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * release a scratch acquired for the key derivation only
+     */
+    private static void release( final Scratch derivation, final Scratch callers )
+    {
+        if ( derivation != callers )
+        {
+            derivation.release();
+        }
+    }
+    //-------------------------------------------------------------------------------
+    static byte[] deriveKeyAndIv( final PreparedPassPhrase password, final byte [] salt )
+    throws NoSuchAlgorithmException, DigestException
+    {
+        // private copy of the digest, already fed the password - keeps this method thread safe
+        MessageDigest digester = password.newDigest();
+        
+        int digestLen = digester.getDigestLength();
+        
+        // whole digests only, so that no round has to be truncated
+        byte[] keyAndIv = new byte[ ( ( SPICE_SIZE * 2 + digestLen - 1 ) / digestLen ) * digestLen ];
+        
+        deriveKeyAndIv( digester, password, salt, 0, keyAndIv );
+        
+        return keyAndIv;
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * @param digester already fed the password
+     * @param keyAndIv receives the key and IV, a whole number of digests long
+     */
+    private static void deriveKeyAndIv( final MessageDigest digester, final PreparedPassPhrase password,
+                                        byte [] salt, final int saltOffset, final byte[] keyAndIv )
+    throws DigestException
+    {
+        int digestLen = digester.getDigestLength();
+        
+        if( salt == null || salt.length == 0 )
+        {
+            // Unsalted!  Bad idea!
+            salt = null;
+        }
+        
+        int currentPos = 0;
+        
+        while (true)
+        {
+            if (salt != null)
+            {
+                // First 8 bytes of salt ONLY!  That wasn't obvious to me
+                // when using AES encrypted private keys in "Traditional
+                // SSLeay Format".
+                //
+                // Example:
+                // DEK-Info: AES-128-CBC,8DA91D5A71988E3D4431D9C2C009F249
+                //
+                // Only the first 8 bytes are salt, but the whole thing is
+                // re-used again later as the IV.  MUCH gnashing of teeth!
+                digester.update( salt, saltOffset, 8 );
+            }
+            
+            // digest() also resets the digester for the next round
+            digester.digest( keyAndIv, currentPos, digestLen );
+            
+            currentPos += digestLen;
+            
+            if (currentPos >= SPICE_SIZE * 2)
+            {
+                break;
+            }
+            
+            // Next round starts with a hash of the hash.
+            digester.update( keyAndIv, currentPos - digestLen, digestLen );
+            digester.update( password.getBytes() );
+        }
+    }
+    //-------------------------------------------------------------------------------
+    private static int doFinal( final Cipher cipher, final byte[] in, final int offset, final int length,
+                                final byte[] out, final int outOffset )
+    throws GeneralSecurityException
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+        
+        long start = CipherEvents.start( listener );
+        
+        boolean success = false;
+        
+        try
+        {
+            int res = cipher.doFinal( in, offset, length, out, outOffset );
+            
+            success = true;
+            
+            return res;
+        }
+        finally
+        {
+            CipherEvents.end( listener, CipherPhase.CIPHER_FINAL, length, start, success );
+        }
+    }
+    //-------------------------------------------------------------------------------
+    private static String encodeBase64( final byte[] bytes )
+    throws UnsupportedEncodingException
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+        
+        long start = CipherEvents.start( listener );
+        
+        boolean success = false;
+        
+        try
+        {
+            String res = Platform.encodeBase64String( bytes );
+            
+            success = true;
+            
+            return res;
+        }
+        finally
+        {
+            CipherEvents.end( listener, CipherPhase.BASE64_ENCODE, bytes.length, start, success );
+        }
+    }
+    //-------------------------------------------------------------------------------
+    private static byte[] decodeBase64( final String chars )
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+        
+        long start = CipherEvents.start( listener );
+        
+        boolean success = false;
+        
+        try
+        {
+            byte[] res = Platform.decodeBase64( chars );
+            
+            success = true;
+            
+            return res;
+        }
+        finally
+        {
+            CipherEvents.end( listener, CipherPhase.BASE64_DECODE, chars.length(), start, success );
+        }
+    }
+    //-------------------------------------------------------------------------------
+    private static final char[] BASE64_CHARS =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final byte[] BASE64_VALUES = new byte[ 128 ];
+
+    static
+    {
+        Arrays.fill( BASE64_VALUES, (byte) -1 );
+
+        for ( int i = 0; i < BASE64_CHARS.length; i++ )
+        {
+            BASE64_VALUES[ BASE64_CHARS[ i ] ] = (byte) i;
+        }
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * Base64 through the thread's char buffer, the result is the only allocation
+     */
+    static String encodeBase64( final byte[] bytes, final int length, final Scratch scratch )
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+        
+        long start = CipherEvents.start( listener );
+        
+        char[] chars = scratch.chars( ( length + 2 ) / 3 * 4 );
+        
+        int o = 0;
+        
+        int i = 0;
+        
+        for ( int full = length - length % 3; i < full; i += 3 )
+        {
+            int b = ( bytes[ i ] & 0xff ) << 16 | ( bytes[ i + 1 ] & 0xff ) << 8 | ( bytes[ i + 2 ] & 0xff );
+            
+            chars[ o++ ] = BASE64_CHARS[ b >>> 18 ];
+            chars[ o++ ] = BASE64_CHARS[ ( b >>> 12 ) & 0x3f ];
+            chars[ o++ ] = BASE64_CHARS[ ( b >>> 6 ) & 0x3f ];
+            chars[ o++ ] = BASE64_CHARS[ b & 0x3f ];
+        }
+        
+        if ( i < length )
+        {
+            int b = ( bytes[ i ] & 0xff ) << 16 | ( i + 1 < length ? ( bytes[ i + 1 ] & 0xff ) << 8 : 0 );
+            
+            chars[ o++ ] = BASE64_CHARS[ b >>> 18 ];
+            chars[ o++ ] = BASE64_CHARS[ ( b >>> 12 ) & 0x3f ];
+            chars[ o++ ] = i + 1 < length ? BASE64_CHARS[ ( b >>> 6 ) & 0x3f ] : '=';
+            chars[ o++ ] = '=';
+        }
+        
+        String res = new String( chars, 0, o );
+        
+        CipherEvents.end( listener, CipherPhase.BASE64_ENCODE, length, start, true );
+        
+        return res;
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * @return decoded length of canonical Base64 - nothing but the alphabet and at most two trailing pads, in groups of
+     *         four - or -1 for anything else
+     */
+    static int getStrictDecodedLength( final String chars )
+    {
+        int len = chars.length();
+        
+        if ( len % 4 != 0 )
+        {
+            return -1;
+        }
+        
+        int pads = len > 0 && chars.charAt( len - 1 ) == '=' ? ( chars.charAt( len - 2 ) == '=' ? 2 : 1 ) : 0;
+        
+        for ( int i = len - pads - 1; i >= 0; i-- )
+        {
+            char c = chars.charAt( i );
+            
+            if ( c >= 128 || BASE64_VALUES[ c ] < 0 )
+            {
+                return -1;
+            }
+        }
+        
+        return len / 4 * 3 - pads;
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * decode canonical Base64, see {@link #getStrictDecodedLength(String)}, into <code>out</code>
+     */
+    static void decodeBase64( final String chars, final byte[] out )
+    {
+        CipherEventListener listener = CipherEvents.getListener();
+        
+        long start = CipherEvents.start( listener );
+        
+        int len = chars.length();
+        
+        int o = 0;
+        
+        for ( int i = 0; i < len; i += 4 )
+        {
+            int b = BASE64_VALUES[ chars.charAt( i ) ] << 18 | BASE64_VALUES[ chars.charAt( i + 1 ) ] << 12;
+            
+            char c2 = chars.charAt( i + 2 );
+            char c3 = chars.charAt( i + 3 );
+            
+            out[ o++ ] = (byte) ( b >>> 16 );
+            
+            if ( c2 != '=' )
+            {
+                b |= BASE64_VALUES[ c2 ] << 6;
+                
+                out[ o++ ] = (byte) ( b >>> 8 );
+                
+                if ( c3 != '=' )
+                {
+                    out[ o++ ] = (byte) ( b | BASE64_VALUES[ c3 ] );
+                }
+            }
+        }
+        
+        CipherEvents.end( listener, CipherPhase.BASE64_DECODE, len, start, true );
+    }
+    //-------------------------------------------------------------------------------
+    /**
+     * the same bytes as <code>String.getBytes( "UTF-8" )</code>, lone surrogates included, without allocating
+     * 
+     * @param out room for 3 bytes per char
+     * @return number of bytes written
+     */
+    static int encodeUtf8( final String str, final byte[] out )
+    {
+        int o = 0;
+        
+        for ( int i = 0, n = str.length(); i < n; i++ )
+        {
+            char c = str.charAt( i );
+            
+            if ( c < 0x80 )
+            {
+                out[ o++ ] = (byte) c;
+            }
+            else if ( c < 0x800 )
+            {
+                out[ o++ ] = (byte) ( 0xc0 | c >> 6 );
+                out[ o++ ] = (byte) ( 0x80 | c & 0x3f );
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < n && Character.isLowSurrogate( str.charAt( i + 1 ) ) )
+            {
+                int cp = Character.toCodePoint( c, str.charAt( ++i ) );
+                
+                out[ o++ ] = (byte) ( 0xf0 | cp >> 18 );
+                out[ o++ ] = (byte) ( 0x80 | cp >> 12 & 0x3f );
+                out[ o++ ] = (byte) ( 0x80 | cp >> 6 & 0x3f );
+                out[ o++ ] = (byte) ( 0x80 | cp & 0x3f );
+            }
+            else if ( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c ) )
+            {
+                // what the JDK encoder substitutes for malformed input
+                out[ o++ ] = (byte) '?';
+            }
+            else
+            {
+                out[ o++ ] = (byte) ( 0xe0 | c >> 12 );
+                out[ o++ ] = (byte) ( 0x80 | c >> 6 & 0x3f );
+                out[ o++ ] = (byte) ( 0x80 | c & 0x3f );
+            }
+        }
         
-        return cipher;
+        return o;
     }
     //-------------------------------------------------------------------------------
     //-------------------------------------------------------------------------------
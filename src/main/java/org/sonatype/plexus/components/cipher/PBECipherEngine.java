@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Built-in engine for the binary envelope of {@link PBECipher}: salted key derivation and AES/CBC.
+ */
+final class PBECipherEngine
+    implements CipherEngine
+{
+    static final String ID = "pbe-aes-cbc";
+
+    private final PBECipher _cipher;
+
+    PBECipherEngine( final PBECipher cipher )
+    {
+        _cipher = cipher;
+    }
+
+    public String getId()
+    {
+        return ID;
+    }
+
+    public byte getVersion()
+    {
+        return PBECipher.BINARY_VERSION;
+    }
+
+    public int getPriority()
+    {
+        return 0;
+    }
+
+    public Set<Capability> getCapabilities()
+    {
+        return EnumSet.of( Capability.RANDOMIZED );
+    }
+
+    public byte[] encrypt( final byte[] clearBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        return _cipher.encrypt( clearBytes, passPhrase );
+    }
+
+    public byte[] decrypt( final byte[] encryptedBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        return _cipher.decrypt( encryptedBytes, passPhrase );
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The few operations that have faster replacements in newer JDKs. This is the baseline version for old runtimes,
+ * <code>src/main/java11</code> holds the overlay that the multi-release jar serves to Java 11 and later. Both must
+ * behave exactly the same.
+ */
+final class Platform
+{
+    private Platform()
+    {
+    }
+
+    // ---------------------------------------------------------------
+    static String name()
+    {
+        return "baseline";
+    }
+
+    // ---------------------------------------------------------------
+    static byte[] toUtf8( final String str )
+        throws UnsupportedEncodingException
+    {
+        return str.getBytes( PBECipher.STRING_ENCODING );
+    }
+
+    // ---------------------------------------------------------------
+    static String fromUtf8( final byte[] bytes, final int offset, final int length )
+        throws UnsupportedEncodingException
+    {
+        return new String( bytes, offset, length, PBECipher.STRING_ENCODING );
+    }
+
+    // ---------------------------------------------------------------
+    static String encodeBase64String( final byte[] bytes )
+        throws UnsupportedEncodingException
+    {
+        return new String( Base64.encodeBase64( bytes ), PBECipher.STRING_ENCODING );
+    }
+
+    // ---------------------------------------------------------------
+    static byte[] decodeBase64( final String chars )
+    {
+        return Base64.decodeBase64( chars.getBytes() );
+    }
+}
@@ -67,6 +67,98 @@ public interface PlexusCipher
     String decryptDecorated( String str, String passPhrase )
         throws PlexusCipherException;
 
+    /**
+     * encrypt given string with the given prepared passPhrase and encode it into base64
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String encrypt( String str, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+
+    /**
+     * encrypt given string with the given prepared passPhrase, encode it into base64 and return result, wrapped into
+     * { } decorations
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String encryptAndDecorate( String str, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+
+    /**
+     * decrypt given base64 encrypted string with the given prepared passPhrase
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String decrypt( String str, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+
+    /**
+     * decrypt given base64 encoded encrypted string with the given prepared passPhrase. If string is decorated,
+     * decrypt base64 encoded string inside decorations
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String decryptDecorated( String str, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+
+    /**
+     * encrypt given string with the given passPhrase in deterministic mode and encode it into base64. Equal strings
+     * give equal results, so encrypted values can be compared without decrypting them - and can be recognized as
+     * equal by anybody else, too.
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String encryptDeterministic( String str, String passPhrase )
+        throws PlexusCipherException;
+
+    /**
+     * same as {@link #encryptDeterministic(String, String)} with a prepared passPhrase
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String encryptDeterministic( String str, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+
+    /**
+     * decrypt given base64 string produced by {@link #encryptDeterministic(String, String)}
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String decryptDeterministic( String str, String passPhrase )
+        throws PlexusCipherException;
+
+    /**
+     * same as {@link #decryptDeterministic(String, String)} with a prepared passPhrase
+     * 
+     * @param str
+     * @param passPhrase
+     * @return
+     * @throws PlexusCipherException
+     */
+    String decryptDeterministic( String str, PreparedPassPhrase passPhrase )
+        throws PlexusCipherException;
+
     /**
      * check if given string is decorated
      * 
@@ -0,0 +1,379 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.Properties;
+
+/**
+ * Tuning knobs of {@link DefaultPlexusCipher}. The container injects an instance (bind your own to change the
+ * defaults); every value can then be overridden per deployment with a system property named
+ * <code>plexus.cipher.&lt;property&gt;</code>, e.g. <code>-Dplexus.cipher.passPhraseCacheSize=64</code>.
+ * <p>
+ * The cipher algorithms are deliberately not configurable: they define the format of the stored values.
+ */
+public class PlexusCipherConfiguration
+{
+    public static final String PROPERTY_PREFIX = "plexus.cipher.";
+
+    public static final int DEFAULT_PASS_PHRASE_CACHE_SIZE = 8;
+
+    /** number of pass phrases kept prepared for the String based methods, 0 disables the cache */
+    private int passPhraseCacheSize = DEFAULT_PASS_PHRASE_CACHE_SIZE;
+
+    /** benchmark the installed JCE providers at startup and pin the fastest, see {@link CipherProviders#select()} */
+    private boolean selectProviders;
+
+    /** {@link CipherEngine} used to encrypt bytes when the caller does not name one */
+    private String engine = PBECipherEngine.ID;
+
+    /** decryptions running at once, further callers queue; 0 disables admission control */
+    private int maxConcurrentDecrypts = 0;
+
+    /** callers allowed to wait for a decryption slot, beyond that they are rejected at once */
+    private int maxQueuedDecrypts = 64;
+
+    /** longest wait for a decryption slot */
+    private int admissionTimeoutMillis = 1000;
+
+    /** decryptions per second allowed per caller key, 0 for no limit */
+    private int callerRate = 0;
+
+    /** decryptions a caller key may do in a burst */
+    private int callerBurst = 10;
+
+    /** clear text bytes from which values are compressed before encryption, 0 never compresses */
+    private int compressionThreshold = 0;
+
+    /** clear text bytes per segment of {@link ChunkedCipher} payloads */
+    private int chunkSize = ChunkedCipher.DEFAULT_SEGMENT_SIZE;
+
+    /** threads processing the segments of one {@link ChunkedCipher} payload, 0 for one per processor */
+    private int chunkParallelism = 0;
+
+    /** most values one worker of a {@link DecryptPipeline} takes at once */
+    private int pipelineBatchSize = 64;
+
+    /** batches a {@link DecryptPipeline} runs at once, 0 for one per processor */
+    private int pipelineParallelism = 0;
+
+    /** values a {@link DecryptPipeline} holds between submission and delivery before producers block */
+    private int pipelineCapacity = 1024;
+
+    /** where {@link CipherAgent} publishes its port and key, null for {@link CipherAgent#getDefaultAgentFile()} */
+    private String agentFile;
+
+    /** longest wait for the agent to connect or answer before {@link AgentPlexusCipher} works in process */
+    private int agentTimeoutMillis = 2000;
+
+    /** most legacy values a {@link CipherUpgrader} re-encrypts and writes back at once */
+    private int upgradeBatchSize = 32;
+
+    /** legacy values a {@link CipherUpgrader} queues, more are left for a later read to pick up */
+    private int upgradeCapacity = 1024;
+
+    // ---------------------------------------------------------------
+    public PlexusCipherConfiguration()
+    {
+    }
+
+    // ---------------------------------------------------------------
+    public PlexusCipherConfiguration( final PlexusCipherConfiguration other )
+    {
+        passPhraseCacheSize = other.passPhraseCacheSize;
+        selectProviders = other.selectProviders;
+        engine = other.engine;
+        maxConcurrentDecrypts = other.maxConcurrentDecrypts;
+        maxQueuedDecrypts = other.maxQueuedDecrypts;
+        admissionTimeoutMillis = other.admissionTimeoutMillis;
+        callerRate = other.callerRate;
+        callerBurst = other.callerBurst;
+        compressionThreshold = other.compressionThreshold;
+        chunkSize = other.chunkSize;
+        chunkParallelism = other.chunkParallelism;
+        pipelineBatchSize = other.pipelineBatchSize;
+        pipelineParallelism = other.pipelineParallelism;
+        pipelineCapacity = other.pipelineCapacity;
+        agentFile = other.agentFile;
+        agentTimeoutMillis = other.agentTimeoutMillis;
+        upgradeBatchSize = other.upgradeBatchSize;
+        upgradeCapacity = other.upgradeCapacity;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * preset for services that handle many calls with a large number of distinct pass phrases
+     */
+    public static PlexusCipherConfiguration highThroughput()
+    {
+        PlexusCipherConfiguration res = new PlexusCipherConfiguration();
+
+        res.setPassPhraseCacheSize( 256 );
+        res.setSelectProviders( true );
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    public int getPassPhraseCacheSize()
+    {
+        return passPhraseCacheSize;
+    }
+
+    public void setPassPhraseCacheSize( final int passPhraseCacheSize )
+    {
+        this.passPhraseCacheSize = passPhraseCacheSize;
+    }
+
+    public boolean isSelectProviders()
+    {
+        return selectProviders;
+    }
+
+    public void setSelectProviders( final boolean selectProviders )
+    {
+        this.selectProviders = selectProviders;
+    }
+
+    public String getEngine()
+    {
+        return engine;
+    }
+
+    public void setEngine( final String engine )
+    {
+        this.engine = engine;
+    }
+
+    public int getMaxConcurrentDecrypts()
+    {
+        return maxConcurrentDecrypts;
+    }
+
+    public void setMaxConcurrentDecrypts( final int maxConcurrentDecrypts )
+    {
+        this.maxConcurrentDecrypts = maxConcurrentDecrypts;
+    }
+
+    public int getMaxQueuedDecrypts()
+    {
+        return maxQueuedDecrypts;
+    }
+
+    public void setMaxQueuedDecrypts( final int maxQueuedDecrypts )
+    {
+        this.maxQueuedDecrypts = maxQueuedDecrypts;
+    }
+
+    public int getAdmissionTimeoutMillis()
+    {
+        return admissionTimeoutMillis;
+    }
+
+    public void setAdmissionTimeoutMillis( final int admissionTimeoutMillis )
+    {
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+    }
+
+    public int getCallerRate()
+    {
+        return callerRate;
+    }
+
+    public void setCallerRate( final int callerRate )
+    {
+        this.callerRate = callerRate;
+    }
+
+    public int getCallerBurst()
+    {
+        return callerBurst;
+    }
+
+    public void setCallerBurst( final int callerBurst )
+    {
+        this.callerBurst = callerBurst;
+    }
+
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold( final int compressionThreshold )
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public void setChunkSize( final int chunkSize )
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkParallelism()
+    {
+        return chunkParallelism;
+    }
+
+    public void setChunkParallelism( final int chunkParallelism )
+    {
+        this.chunkParallelism = chunkParallelism;
+    }
+
+    public int getPipelineBatchSize()
+    {
+        return pipelineBatchSize;
+    }
+
+    public void setPipelineBatchSize( final int pipelineBatchSize )
+    {
+        this.pipelineBatchSize = pipelineBatchSize;
+    }
+
+    public int getPipelineParallelism()
+    {
+        return pipelineParallelism;
+    }
+
+    public void setPipelineParallelism( final int pipelineParallelism )
+    {
+        this.pipelineParallelism = pipelineParallelism;
+    }
+
+    public int getPipelineCapacity()
+    {
+        return pipelineCapacity;
+    }
+
+    public void setPipelineCapacity( final int pipelineCapacity )
+    {
+        this.pipelineCapacity = pipelineCapacity;
+    }
+
+    public String getAgentFile()
+    {
+        return agentFile;
+    }
+
+    public void setAgentFile( final String agentFile )
+    {
+        this.agentFile = agentFile;
+    }
+
+    public int getAgentTimeoutMillis()
+    {
+        return agentTimeoutMillis;
+    }
+
+    public void setAgentTimeoutMillis( final int agentTimeoutMillis )
+    {
+        this.agentTimeoutMillis = agentTimeoutMillis;
+    }
+
+    public int getUpgradeBatchSize()
+    {
+        return upgradeBatchSize;
+    }
+
+    public void setUpgradeBatchSize( final int upgradeBatchSize )
+    {
+        this.upgradeBatchSize = upgradeBatchSize;
+    }
+
+    public int getUpgradeCapacity()
+    {
+        return upgradeCapacity;
+    }
+
+    public void setUpgradeCapacity( final int upgradeCapacity )
+    {
+        this.upgradeCapacity = upgradeCapacity;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return a copy of this configuration with the values found in <code>props</code> applied on top
+     */
+    public PlexusCipherConfiguration override( final Properties props )
+        throws PlexusCipherException
+    {
+        PlexusCipherConfiguration res = new PlexusCipherConfiguration( this );
+
+        res.passPhraseCacheSize = getInt( props, "passPhraseCacheSize", passPhraseCacheSize );
+        res.selectProviders = getBoolean( props, "selectProviders", selectProviders );
+        res.engine = props.getProperty( PROPERTY_PREFIX + "engine", engine ).trim();
+        res.maxConcurrentDecrypts = getInt( props, "maxConcurrentDecrypts", maxConcurrentDecrypts );
+        res.maxQueuedDecrypts = getInt( props, "maxQueuedDecrypts", maxQueuedDecrypts );
+        res.admissionTimeoutMillis = getInt( props, "admissionTimeoutMillis", admissionTimeoutMillis );
+        res.callerRate = getInt( props, "callerRate", callerRate );
+        res.callerBurst = getInt( props, "callerBurst", callerBurst );
+        res.compressionThreshold = getInt( props, "compressionThreshold", compressionThreshold );
+        res.chunkSize = getInt( props, "chunkSize", chunkSize );
+        res.chunkParallelism = getInt( props, "chunkParallelism", chunkParallelism );
+        res.pipelineBatchSize = getInt( props, "pipelineBatchSize", pipelineBatchSize );
+        res.pipelineParallelism = getInt( props, "pipelineParallelism", pipelineParallelism );
+        res.pipelineCapacity = getInt( props, "pipelineCapacity", pipelineCapacity );
+        res.agentFile = props.getProperty( PROPERTY_PREFIX + "agentFile", agentFile );
+        res.agentTimeoutMillis = getInt( props, "agentTimeoutMillis", agentTimeoutMillis );
+        res.upgradeBatchSize = getInt( props, "upgradeBatchSize", upgradeBatchSize );
+        res.upgradeCapacity = getInt( props, "upgradeCapacity", upgradeCapacity );
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    protected static int getInt( final Properties props, final String name, final int defaultValue )
+        throws PlexusCipherException
+    {
+        String value = props.getProperty( PROPERTY_PREFIX + name );
+
+        if ( value == null )
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Integer.parseInt( value.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new PlexusCipherException( "Invalid value of " + PROPERTY_PREFIX + name + ": " + value, e );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    protected static boolean getBoolean( final Properties props, final String name, final boolean defaultValue )
+    {
+        String value = props.getProperty( PROPERTY_PREFIX + name );
+
+        return value == null ? defaultValue : Boolean.valueOf( value.trim() ).booleanValue();
+    }
+
+    // ---------------------------------------------------------------
+    public String toString()
+    {
+        return "PlexusCipherConfiguration[passPhraseCacheSize=" + passPhraseCacheSize + ", selectProviders="
+            + selectProviders + ", engine=" + engine + ", maxConcurrentDecrypts=" + maxConcurrentDecrypts
+            + ", maxQueuedDecrypts=" + maxQueuedDecrypts + ", admissionTimeoutMillis=" + admissionTimeoutMillis
+            + ", callerRate=" + callerRate + ", callerBurst=" + callerBurst + ", compressionThreshold="
+            + compressionThreshold + ", chunkSize=" + chunkSize + ", chunkParallelism=" + chunkParallelism
+            + ", pipelineBatchSize=" + pipelineBatchSize + ", pipelineParallelism=" + pipelineParallelism
+            + ", pipelineCapacity=" + pipelineCapacity + ", agentFile=" + agentFile + ", agentTimeoutMillis="
+            + agentTimeoutMillis + ", upgradeBatchSize=" + upgradeBatchSize + ", upgradeCapacity=" + upgradeCapacity + "]";
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A pass phrase that has already been encoded and fed into the key derivation digest. Preparing the pass phrase once
+ * and reusing it saves re-encoding and re-hashing it on every encrypt/decrypt call. Instances may be shared between
+ * threads.
+ */
+public final class PreparedPassPhrase
+{
+    private final byte[] _pwdAsBytes;
+
+    /** digest state after hashing the pass phrase; only ever cloned, never updated after construction */
+    private final MessageDigest _digester;
+
+    private final boolean _cloneable;
+
+    /** key of the deterministic mode, depends on the pass phrase only and is derived on first use */
+    private volatile byte[] _sivKey;
+
+    // ---------------------------------------------------------------
+    public PreparedPassPhrase( final String passPhrase )
+        throws PlexusCipherException
+    {
+        if ( passPhrase == null )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.nullPassPhrase" );
+        }
+
+        try
+        {
+            _pwdAsBytes = Platform.toUtf8( passPhrase );
+
+            _digester = CipherProviders.newDigest( PBECipher.DIGEST_ALG );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+
+        _digester.update( _pwdAsBytes );
+
+        _cloneable = isCloneable( _digester );
+    }
+
+    // ---------------------------------------------------------------
+    private static boolean isCloneable( final MessageDigest digester )
+    {
+        try
+        {
+            digester.clone();
+
+            return true;
+        }
+        catch ( CloneNotSupportedException e )
+        {
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return encoded pass phrase, callers must not modify it
+     */
+    byte[] getBytes()
+    {
+        return _pwdAsBytes;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return a private digest that has already been fed the pass phrase
+     */
+    MessageDigest newDigest()
+        throws NoSuchAlgorithmException
+    {
+        if ( _cloneable )
+        {
+            try
+            {
+                return (MessageDigest) _digester.clone();
+            }
+            catch ( CloneNotSupportedException e )
+            {
+                // checked in the constructor, fall through
+            }
+        }
+
+        MessageDigest digester = CipherProviders.newDigest( PBECipher.DIGEST_ALG );
+
+        digester.update( _pwdAsBytes );
+
+        return digester;
+    }
+
+    // ---------------------------------------------------------------
+    byte[] getSivKey()
+    {
+        return _sivKey;
+    }
+
+    void setSivKey( final byte[] sivKey )
+    {
+        _sivKey = sivKey;
+    }
+}
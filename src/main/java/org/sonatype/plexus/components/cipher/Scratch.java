@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Per thread working memory of {@link PBECipher}, so that a steady state call allocates little more than its result:
+ * the key derivation output, a cipher instance and growable byte and char buffers. Buffers larger than
+ * {@link #MAX_RETAINED} are handed out but not kept, so that one big value does not pin memory to the thread.
+ * <p>
+ * A call {@link #acquire() acquires} the thread's scratch and {@link #release() releases} it when done. Foreign code
+ * called in between, such as a {@link CipherEventListener}, may re-enter the cipher on the same thread: it then gets
+ * fresh buffers of its own instead of overwriting those still in use.
+ */
+final class Scratch
+{
+    static final int MAX_RETAINED = 16 * 1024;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>()
+    {
+        protected Scratch initialValue()
+        {
+            return new Scratch();
+        }
+    };
+
+    final byte[] salt = new byte[PBECipher.SALT_SIZE];
+
+    /** salt followed by random padding, filled in one go */
+    final byte[] saltAndPad = new byte[PBECipher.SALT_SIZE + PBECipher.CHUNK_SIZE];
+
+    byte[] keyAndIv;
+
+    private Cipher _cipher;
+
+    private Provider _cipherProvider;
+
+    private byte[] _bytes = new byte[256];
+
+    private byte[] _clear = new byte[256];
+
+    private char[] _chars = new char[256];
+
+    private boolean _busy;
+
+    private Scratch()
+    {
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the thread's scratch, or fresh buffers if the thread is already using it further up the stack
+     */
+    static Scratch acquire()
+    {
+        Scratch res = SCRATCH.get();
+
+        if ( res._busy )
+        {
+            return new Scratch();
+        }
+
+        res._busy = true;
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    void release()
+    {
+        _busy = false;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return key derivation digest holding the pass phrase's prepared state, a clone rather than a re-hash, with
+     *         {@link #keyAndIv} sized for it
+     */
+    MessageDigest digest( final PreparedPassPhrase password )
+        throws NoSuchAlgorithmException
+    {
+        MessageDigest res = password.newDigest();
+
+        int digestLen = res.getDigestLength();
+
+        // whole digests only, so that no round has to be truncated
+        int size = ( ( PBECipher.SPICE_SIZE * 2 + digestLen - 1 ) / digestLen ) * digestLen;
+
+        if ( keyAndIv == null || keyAndIv.length != size )
+        {
+            keyAndIv = new byte[size];
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the thread's cipher, to be initialized by the caller
+     */
+    Cipher cipher()
+        throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        Provider provider = CipherProviders.getCipherProvider();
+
+        if ( _cipher == null || provider != _cipherProvider )
+        {
+            _cipher = CipherProviders.newCipher( PBECipher.CIPHER_ALG );
+            _cipherProvider = provider;
+        }
+
+        return _cipher;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return buffer for encoded or encrypted data of at least the given size
+     */
+    byte[] bytes( final int size )
+    {
+        if ( _bytes.length >= size )
+        {
+            return _bytes;
+        }
+
+        byte[] res = new byte[size];
+
+        if ( size <= MAX_RETAINED )
+        {
+            _bytes = res;
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return buffer for clear data of at least the given size, callers wipe what they wrote
+     */
+    byte[] clear( final int size )
+    {
+        if ( _clear.length >= size )
+        {
+            return _clear;
+        }
+
+        byte[] res = new byte[size];
+
+        if ( size <= MAX_RETAINED )
+        {
+            _clear = res;
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    char[] chars( final int size )
+    {
+        if ( _chars.length >= size )
+        {
+            return _chars;
+        }
+
+        char[] res = new char[size];
+
+        if ( size <= MAX_RETAINED )
+        {
+            _chars = res;
+        }
+
+        return res;
+    }
+}
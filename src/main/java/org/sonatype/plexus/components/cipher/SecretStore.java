@@ -0,0 +1,995 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persistent store of named secrets: an append-only, memory-mapped file of records holding {@link PBECipher} binary
+ * envelopes, with an open addressing hash index at the start of the file. A lookup probes the index and compares the
+ * name in place, and only the record found is read and decrypted, so the store holds very many secrets without
+ * loading them onto the heap.
+ * <p>
+ * Layout, big endian: a header of {@value #HEADER_SIZE} bytes (magic, version, number of index slots, end of the
+ * committed records, a random salt and a check value), the index of 8 byte record offsets, 0 for an empty slot, then the records. A record is its
+ * length, the CRC32 of the rest of it, the name hash, the name length as an unsigned short, the UTF-8 name and the
+ * envelope; an empty envelope marks the name as removed.
+ * <p>
+ * The envelopes are not authenticated, so a wrong pass phrase would now and then decrypt a record into garbage
+ * instead of failing. The check value is an HMAC of a constant under a key derived from the pass phrase and the
+ * salt, and opening the store with a pass phrase that does not reproduce it fails.
+ * <p>
+ * Updates append a record and force it to disk before the index and the header point at it. When the file is opened,
+ * records past the header's end that pass their CRC are indexed again and anything after the first that does not is
+ * discarded, so an append interrupted by a crash either happened completely or not at all. Superseded records stay in
+ * the file until {@link #compact()}, which rewrites the live ones into a new file and renames it over the old one.
+ * Where a file cannot be renamed over another, the old one is deleted first; should that be the last thing that
+ * happens, the next open renames the complete new file into place.
+ * <p>
+ * Any number of threads may read at the same time, writers are serialized and encrypt before taking the lock. The
+ * whole file is mapped at once, which limits it to 2 GB.
+ */
+public final class SecretStore
+{
+    static final int MAGIC = 0x50435353;
+
+    static final int VERSION = 1;
+
+    private static final int TAIL_POS = 16;
+
+    private static final int SALT_POS = 24;
+
+    private static final int CHECK_POS = SALT_POS + PBECipher.SALT_SIZE;
+
+    private static final int CHECK_SIZE = 32;
+
+    static final int HEADER_SIZE = CHECK_POS + CHECK_SIZE;
+
+    private static final String CHECK_ALG = "HmacSHA256";
+
+    private static final byte[] CHECK_INPUT = { 'S', 'e', 'c', 'r', 'e', 't', 'S', 't', 'o', 'r', 'e' };
+
+    /** length, CRC, hash and name length */
+    static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 2;
+
+    private static final int MIN_SLOTS = 1024;
+
+    private static final int MIN_GROWTH = 64 * 1024;
+
+    private static final int MAX_NAME_LENGTH = 0xffff;
+
+    private static final SecureRandom _secureRandom = new SecureRandom();
+
+    private final File _file;
+
+    private final PBECipher _cipher;
+
+    private final PreparedPassPhrase _passPhrase;
+
+    private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+    private RandomAccessFile _raf;
+
+    private FileChannel _channel;
+
+    private MappedByteBuffer _map;
+
+    private int _slots;
+
+    private long _tail;
+
+    /** slots in use, including removed names */
+    private int _used;
+
+    private int _count;
+
+    private long _garbage;
+
+    // ---------------------------------------------------------------
+    /**
+     * open the store, creating the file if it does not exist
+     */
+    public SecretStore( final File file, final PreparedPassPhrase passPhrase )
+        throws IOException, PlexusCipherException
+    {
+        this( file, new PBECipher(), passPhrase );
+    }
+
+    // ---------------------------------------------------------------
+    public SecretStore( final File file, final PBECipher cipher, final PreparedPassPhrase passPhrase )
+        throws IOException, PlexusCipherException
+    {
+        _file = file;
+        _cipher = cipher;
+        _passPhrase = passPhrase;
+
+        open();
+    }
+
+    // ---------------------------------------------------------------
+    private void open()
+        throws IOException, PlexusCipherException
+    {
+        File tmp = compactFile();
+
+        if ( tmp.exists() )
+        {
+            if ( _file.exists() )
+            {
+                // a rebuild that did not get as far as deleting the old file, which is still good
+                tmp.delete();
+            }
+            else if ( !tmp.renameTo( _file ) )
+            {
+                throw new IOException( "default.plexus.cipher.badStore: cannot replace " + _file );
+            }
+        }
+
+        _raf = new RandomAccessFile( _file, "rw" );
+        try
+        {
+            _channel = _raf.getChannel();
+
+            long length = _channel.size();
+
+            if ( length == 0 )
+            {
+                _slots = MIN_SLOTS;
+                _tail = dataStart( _slots );
+                _map = _channel.map( FileChannel.MapMode.READ_WRITE, 0, _tail + MIN_GROWTH );
+
+                byte[] salt = new byte[PBECipher.SALT_SIZE];
+                _secureRandom.nextBytes( salt );
+
+                _map.putInt( 0, MAGIC );
+                _map.putInt( 4, VERSION );
+                _map.putInt( 8, _slots );
+                _map.putLong( TAIL_POS, _tail );
+                put( _map, SALT_POS, salt );
+                put( _map, CHECK_POS, check( _passPhrase, salt ) );
+                _map.force();
+            }
+            else
+            {
+                if ( length < HEADER_SIZE || length > Integer.MAX_VALUE )
+                {
+                    throw new IOException( "default.plexus.cipher.badStore: " + _file );
+                }
+
+                _map = _channel.map( FileChannel.MapMode.READ_WRITE, 0, length );
+
+                _slots = _map.getInt( 8 );
+                _tail = _map.getLong( TAIL_POS );
+
+                if ( _map.getInt( 0 ) != MAGIC || _map.getInt( 4 ) != VERSION || _slots < 1
+                    || ( _slots & ( _slots - 1 ) ) != 0 || _tail < dataStart( _slots ) || _tail > length )
+                {
+                    throw new IOException( "default.plexus.cipher.badStore: " + _file );
+                }
+
+                checkPassPhrase();
+
+                recover();
+            }
+
+            recount();
+        }
+        catch ( IOException e )
+        {
+            closeQuietly();
+
+            throw e;
+        }
+        catch ( PlexusCipherException e )
+        {
+            closeQuietly();
+
+            throw e;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void checkPassPhrase()
+        throws PlexusCipherException
+    {
+        byte[] salt = new byte[PBECipher.SALT_SIZE];
+        copy( _map, SALT_POS, salt, 0, salt.length );
+
+        byte[] check = check( _passPhrase, salt );
+
+        int diff = 0;
+        for ( int i = 0; i < CHECK_SIZE; i++ )
+        {
+            diff |= check[i] ^ _map.get( CHECK_POS + i );
+        }
+
+        if ( diff != 0 )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.wrongPassPhrase: " + _file );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return HMAC of a constant, keyed like the MAC of {@link ChunkedCipher} from the pass phrase and the salt
+     */
+    private static byte[] check( final PreparedPassPhrase passPhrase, final byte[] salt )
+        throws PlexusCipherException
+    {
+        byte[] keyBytes = null;
+        try
+        {
+            keyBytes = PBECipher.deriveKeyAndIv( passPhrase, salt );
+
+            Mac mac = Mac.getInstance( CHECK_ALG );
+            mac.init( new SecretKeySpec( keyBytes, PBECipher.SPICE_SIZE, PBECipher.SPICE_SIZE, CHECK_ALG ) );
+
+            return mac.doFinal( CHECK_INPUT );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+        finally
+        {
+            if ( keyBytes != null )
+            {
+                Arrays.fill( keyBytes, PBECipher.WIPER );
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static long dataStart( final int slots )
+    {
+        return HEADER_SIZE + 8L * slots;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * index the records that were forced to disk but not committed in the header, discard the rest
+     */
+    private void recover()
+        throws IOException
+    {
+        int capacity = _map.capacity();
+
+        long tail = _tail;
+
+        while ( tail + RECORD_HEADER_SIZE <= capacity )
+        {
+            int pos = (int) tail;
+            int len = _map.getInt( pos );
+
+            if ( len < RECORD_HEADER_SIZE || len > capacity - tail || !checksum( _map, pos, len ) )
+            {
+                break;
+            }
+
+            int nameLen = _map.getShort( pos + 12 ) & 0xffff;
+
+            if ( nameLen > len - RECORD_HEADER_SIZE )
+            {
+                break;
+            }
+
+            byte[] name = new byte[nameLen];
+            copy( _map, pos + RECORD_HEADER_SIZE, name, 0, nameLen );
+
+            _map.putLong( slotPos( findSlot( _map, _slots, name, _map.getInt( pos + 8 ) ) ), tail );
+
+            tail += len;
+        }
+
+        if ( tail + 4 <= capacity && _map.getInt( (int) tail ) != 0 )
+        {
+            // a torn append, wipe it so that it cannot be mistaken for a record later
+            for ( int i = (int) tail; i < capacity; i++ )
+            {
+                _map.put( i, (byte) 0 );
+            }
+        }
+
+        if ( tail != _tail )
+        {
+            _tail = tail;
+            _map.putLong( TAIL_POS, _tail );
+        }
+
+        _map.force();
+    }
+
+    // ---------------------------------------------------------------
+    private void recount()
+        throws IOException
+    {
+        _used = 0;
+        _count = 0;
+
+        long live = 0;
+
+        for ( int i = 0; i < _slots; i++ )
+        {
+            int off = (int) _map.getLong( slotPos( i ) );
+
+            if ( off != 0 )
+            {
+                if ( off < dataStart( _slots ) || off > _tail - RECORD_HEADER_SIZE )
+                {
+                    throw new IOException( "default.plexus.cipher.badStore: " + _file );
+                }
+
+                _used++;
+
+                if ( isLive( _map, off ) )
+                {
+                    _count++;
+                    live += _map.getInt( off );
+                }
+            }
+        }
+
+        _garbage = _tail - dataStart( _slots ) - live;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the decrypted secret, null if there is none of that name
+     */
+    public String get( final String name )
+        throws IOException, PlexusCipherException
+    {
+        byte[] nameBytes = encodeName( name );
+
+        byte[] record;
+
+        int nameLen = nameBytes.length;
+
+        _lock.readLock().lock();
+        try
+        {
+            checkOpen();
+
+            int off = (int) _map.getLong( slotPos( findSlot( _map, _slots, nameBytes, hash( nameBytes ) ) ) );
+
+            if ( off == 0 || !isLive( _map, off ) )
+            {
+                return null;
+            }
+
+            int len = _map.getInt( off );
+
+            // the only copy: everything after the CRC, to check it and decrypt from
+            record = new byte[len - 8];
+            copy( _map, off + 8, record, 0, record.length );
+
+            CRC32 crc = new CRC32();
+            crc.update( record );
+
+            if ( (int) crc.getValue() != _map.getInt( off + 4 ) )
+            {
+                throw new IOException( "default.plexus.cipher.badRecord: " + name );
+            }
+        }
+        finally
+        {
+            _lock.readLock().unlock();
+        }
+
+        int envelopeOff = RECORD_HEADER_SIZE - 8 + nameLen;
+        int envelopeLen = record.length - envelopeOff;
+
+        byte[] clear = new byte[PBECipher.getDecryptedLength( envelopeLen )];
+        try
+        {
+            int clearLen = _cipher.decrypt( record, envelopeOff, envelopeLen, _passPhrase, clear, 0 );
+
+            return Platform.fromUtf8( clear, 0, clearLen );
+        }
+        finally
+        {
+            Arrays.fill( clear, PBECipher.WIPER );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public boolean contains( final String name )
+        throws IOException
+    {
+        byte[] nameBytes = encodeName( name );
+
+        _lock.readLock().lock();
+        try
+        {
+            checkOpen();
+
+            int off = (int) _map.getLong( slotPos( findSlot( _map, _slots, nameBytes, hash( nameBytes ) ) ) );
+
+            return off != 0 && isLive( _map, off );
+        }
+        finally
+        {
+            _lock.readLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * store a secret, replacing any previous one of that name
+     */
+    public void put( final String name, final String value )
+        throws IOException, PlexusCipherException
+    {
+        byte[] nameBytes = encodeName( name );
+
+        if ( value == null )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.nullValue" );
+        }
+
+        byte[] clear;
+        try
+        {
+            clear = Platform.toUtf8( value );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new PlexusCipherException( e );
+        }
+
+        byte[] envelope = new byte[PBECipher.getEncryptedLength( clear.length )];
+        try
+        {
+            _cipher.encrypt( clear, 0, clear.length, _passPhrase, envelope, 0 );
+        }
+        finally
+        {
+            Arrays.fill( clear, PBECipher.WIPER );
+        }
+
+        _lock.writeLock().lock();
+        try
+        {
+            checkOpen();
+
+            append( nameBytes, envelope );
+        }
+        finally
+        {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return false if there was no secret of that name
+     */
+    public boolean remove( final String name )
+        throws IOException, PlexusCipherException
+    {
+        byte[] nameBytes = encodeName( name );
+
+        _lock.writeLock().lock();
+        try
+        {
+            checkOpen();
+
+            int off = (int) _map.getLong( slotPos( findSlot( _map, _slots, nameBytes, hash( nameBytes ) ) ) );
+
+            if ( off == 0 || !isLive( _map, off ) )
+            {
+                return false;
+            }
+
+            append( nameBytes, new byte[0] );
+
+            return true;
+        }
+        finally
+        {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void append( final byte[] name, final byte[] envelope )
+        throws IOException, PlexusCipherException
+    {
+        int hash = hash( name );
+
+        int slot = findSlot( _map, _slots, name, hash );
+
+        if ( _map.getLong( slotPos( slot ) ) == 0 && ( _used + 1 ) * 2L > _slots )
+        {
+            // keep the index at most half full, so that probe sequences stay short
+            rebuild( slotsFor( _count + 1 ) );
+
+            slot = findSlot( _map, _slots, name, hash );
+        }
+
+        int len = RECORD_HEADER_SIZE + name.length + envelope.length;
+
+        ensureCapacity( _tail + len );
+
+        int pos = (int) _tail;
+
+        _map.putInt( pos, len );
+        _map.putInt( pos + 8, hash );
+        _map.putShort( pos + 12, (short) name.length );
+
+        ByteBuffer dup = _map.duplicate();
+        dup.position( pos + RECORD_HEADER_SIZE );
+        dup.put( name );
+        dup.put( envelope );
+
+        _map.putInt( pos + 4, crc( _map, pos, len ) );
+
+        // the record must be on disk before anything points at it
+        _map.force();
+
+        int old = (int) _map.getLong( slotPos( slot ) );
+
+        if ( old == 0 )
+        {
+            _used++;
+        }
+        else
+        {
+            _garbage += _map.getInt( old );
+
+            if ( isLive( _map, old ) )
+            {
+                _count--;
+            }
+        }
+
+        if ( envelope.length > 0 )
+        {
+            _count++;
+        }
+        else
+        {
+            // nothing but a marker
+            _garbage += len;
+        }
+
+        _map.putLong( slotPos( slot ), _tail );
+
+        _tail += len;
+        _map.putLong( TAIL_POS, _tail );
+
+        _map.force();
+    }
+
+    // ---------------------------------------------------------------
+    private void ensureCapacity( final long needed )
+        throws IOException
+    {
+        int capacity = _map.capacity();
+
+        if ( needed <= capacity )
+        {
+            return;
+        }
+
+        if ( needed > Integer.MAX_VALUE )
+        {
+            throw new IOException( "default.plexus.cipher.storeFull: " + _file );
+        }
+
+        long size = Math.min( Integer.MAX_VALUE, Math.max( needed, capacity + Math.max( capacity, MIN_GROWTH ) ) );
+
+        // readers are locked out, the old mapping goes away with the garbage
+        _map = _channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * rewrite the live secrets into a new file, dropping superseded and removed records and resizing the index
+     * <p>
+     * If the new file cannot replace the old one, for instance on Windows while the old mapping has not been
+     * collected yet, this fails and the store carries on with the old file.
+     */
+    public void compact()
+        throws IOException, PlexusCipherException
+    {
+        _lock.writeLock().lock();
+        try
+        {
+            checkOpen();
+
+            rebuild( slotsFor( _count ) );
+        }
+        finally
+        {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static int slotsFor( final int count )
+    {
+        int slots = MIN_SLOTS;
+
+        // a quarter full after a rebuild, so that the next one is far away
+        while ( slots < count * 4L && slots < 1 << 30 )
+        {
+            slots <<= 1;
+        }
+
+        return slots;
+    }
+
+    // ---------------------------------------------------------------
+    private void rebuild( final int slots )
+        throws IOException, PlexusCipherException
+    {
+        File tmp = compactFile();
+
+        tmp.delete();
+
+        long size = dataStart( slots ) + ( _tail - dataStart( _slots ) - _garbage ) + MIN_GROWTH;
+
+        if ( size > Integer.MAX_VALUE )
+        {
+            throw new IOException( "default.plexus.cipher.storeFull: " + _file );
+        }
+
+        RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+        try
+        {
+            MappedByteBuffer map = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+
+            map.putInt( 0, MAGIC );
+            map.putInt( 4, VERSION );
+            map.putInt( 8, slots );
+
+            for ( int i = SALT_POS; i < HEADER_SIZE; i++ )
+            {
+                map.put( i, _map.get( i ) );
+            }
+
+            long tail = dataStart( slots );
+
+            ByteBuffer src = _map.duplicate();
+
+            for ( int i = 0; i < _slots; i++ )
+            {
+                int off = (int) _map.getLong( slotPos( i ) );
+
+                if ( off == 0 || !isLive( _map, off ) )
+                {
+                    continue;
+                }
+
+                int len = _map.getInt( off );
+
+                // names are unique, the first free slot will do
+                int mask = slots - 1;
+                int slot = _map.getInt( off + 8 ) & mask;
+
+                while ( map.getLong( slotPos( slot ) ) != 0 )
+                {
+                    slot = ( slot + 1 ) & mask;
+                }
+
+                map.putLong( slotPos( slot ), tail );
+
+                src.limit( off + len );
+                src.position( off );
+
+                map.position( (int) tail );
+                map.put( src );
+
+                src.limit( src.capacity() );
+
+                tail += len;
+            }
+
+            map.putLong( TAIL_POS, tail );
+            map.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        closeQuietly();
+
+        if ( !tmp.renameTo( _file ) && !( _file.delete() && tmp.renameTo( _file ) ) )
+        {
+            // back to the old file, or on to the new one if only the rename after the delete failed
+            open();
+
+            throw new IOException( "default.plexus.cipher.badStore: cannot replace " + _file );
+        }
+
+        open();
+    }
+
+    // ---------------------------------------------------------------
+    private File compactFile()
+    {
+        return new File( _file.getPath() + ".compact" );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return number of secrets
+     */
+    public int size()
+    {
+        _lock.readLock().lock();
+        try
+        {
+            return _count;
+        }
+        finally
+        {
+            _lock.readLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return bytes taken by superseded and removed records, which {@link #compact()} would reclaim
+     */
+    public long getGarbage()
+    {
+        _lock.readLock().lock();
+        try
+        {
+            return _garbage;
+        }
+        finally
+        {
+            _lock.readLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return names of all secrets, in no particular order
+     */
+    public List<String> getNames()
+        throws IOException
+    {
+        _lock.readLock().lock();
+        try
+        {
+            checkOpen();
+
+            List<String> res = new ArrayList<String>( _count );
+
+            for ( int i = 0; i < _slots; i++ )
+            {
+                int off = (int) _map.getLong( slotPos( i ) );
+
+                if ( off != 0 && isLive( _map, off ) )
+                {
+                    byte[] name = new byte[_map.getShort( off + 12 ) & 0xffff];
+                    copy( _map, off + RECORD_HEADER_SIZE, name, 0, name.length );
+
+                    res.add( Platform.fromUtf8( name, 0, name.length ) );
+                }
+            }
+
+            return res;
+        }
+        finally
+        {
+            _lock.readLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    public void close()
+        throws IOException
+    {
+        _lock.writeLock().lock();
+        try
+        {
+            if ( _map != null )
+            {
+                _map.force();
+            }
+
+            closeQuietly();
+        }
+        finally
+        {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void closeQuietly()
+    {
+        _map = null;
+
+        try
+        {
+            _raf.close();
+        }
+        catch ( IOException e )
+        {
+            // nothing left to lose
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void checkOpen()
+        throws IOException
+    {
+        if ( _map == null )
+        {
+            throw new IOException( "default.plexus.cipher.storeClosed: " + _file );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static int slotPos( final int slot )
+    {
+        return HEADER_SIZE + 8 * slot;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return slot holding the name, or the empty slot where it would go
+     */
+    private static int findSlot( final ByteBuffer map, final int slots, final byte[] name, final int hash )
+    {
+        int mask = slots - 1;
+
+        for ( int slot = hash & mask;; slot = ( slot + 1 ) & mask )
+        {
+            int off = (int) map.getLong( slotPos( slot ) );
+
+            if ( off == 0 || ( map.getInt( off + 8 ) == hash && nameEquals( map, off, name ) ) )
+            {
+                return slot;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static boolean nameEquals( final ByteBuffer map, final int off, final byte[] name )
+    {
+        if ( ( map.getShort( off + 12 ) & 0xffff ) != name.length )
+        {
+            return false;
+        }
+
+        for ( int i = 0, pos = off + RECORD_HEADER_SIZE; i < name.length; i++, pos++ )
+        {
+            if ( map.get( pos ) != name[i] )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // ---------------------------------------------------------------
+    private static boolean isLive( final ByteBuffer map, final int off )
+    {
+        return map.getInt( off ) > RECORD_HEADER_SIZE + ( map.getShort( off + 12 ) & 0xffff );
+    }
+
+    // ---------------------------------------------------------------
+    static int hash( final byte[] name )
+    {
+        int h = 0;
+
+        for ( int i = 0; i < name.length; i++ )
+        {
+            h = 31 * h + name[i];
+        }
+
+        // spread the bits, the low ones pick the slot
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+
+        return h;
+    }
+
+    // ---------------------------------------------------------------
+    private static int crc( final ByteBuffer map, final int off, final int len )
+    {
+        CRC32 crc = new CRC32();
+
+        byte[] buf = new byte[Math.min( len - 8, 4096 )];
+
+        for ( int pos = off + 8, end = off + len; pos < end; )
+        {
+            int n = Math.min( buf.length, end - pos );
+
+            copy( map, pos, buf, 0, n );
+            crc.update( buf, 0, n );
+
+            pos += n;
+        }
+
+        return (int) crc.getValue();
+    }
+
+    // ---------------------------------------------------------------
+    private static boolean checksum( final ByteBuffer map, final int off, final int len )
+    {
+        return crc( map, off, len ) == map.getInt( off + 4 );
+    }
+
+    // ---------------------------------------------------------------
+    private static void copy( final ByteBuffer map, final int off, final byte[] dst, final int dstOff, final int len )
+    {
+        ByteBuffer dup = map.duplicate();
+
+        dup.position( off );
+        dup.get( dst, dstOff, len );
+    }
+
+    // ---------------------------------------------------------------
+    private static void put( final ByteBuffer map, final int off, final byte[] src )
+    {
+        ByteBuffer dup = map.duplicate();
+
+        dup.position( off );
+        dup.put( src );
+    }
+
+    // ---------------------------------------------------------------
+    private static byte[] encodeName( final String name )
+        throws IOException
+    {
+        if ( name == null )
+        {
+            throw new IOException( "default.plexus.cipher.nullName" );
+        }
+
+        byte[] res;
+        try
+        {
+            res = Platform.toUtf8( name );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IOException( e.getMessage() );
+        }
+
+        if ( res.length > MAX_NAME_LENGTH )
+        {
+            throw new IOException( "default.plexus.cipher.nameTooLong" );
+        }
+
+        return res;
+    }
+}
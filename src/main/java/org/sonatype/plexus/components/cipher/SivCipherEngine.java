@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Built-in engine for deterministic AES-SIV, the binary counterpart of
+ * {@link PBECipher#encryptDeterministic64(String, PreparedPassPhrase)}: the version byte followed by the synthetic IV
+ * and the cipher text.
+ */
+final class SivCipherEngine
+    implements CipherEngine
+{
+    static final String ID = "aes-siv";
+
+    static final byte VERSION = 2;
+
+    private static final byte[][] NO_ASSOCIATED_DATA = new byte[0][];
+
+    public String getId()
+    {
+        return ID;
+    }
+
+    public byte getVersion()
+    {
+        return VERSION;
+    }
+
+    public int getPriority()
+    {
+        return 0;
+    }
+
+    public Set<Capability> getCapabilities()
+    {
+        return EnumSet.of( Capability.DETERMINISTIC, Capability.AUTHENTICATED );
+    }
+
+    public byte[] encrypt( final byte[] clearBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        try
+        {
+            byte[] siv = AesSiv.encrypt( PBECipher.getSivKey( passPhrase ), NO_ASSOCIATED_DATA, clearBytes );
+
+            byte[] res = new byte[1 + siv.length];
+
+            res[0] = VERSION;
+
+            System.arraycopy( siv, 0, res, 1, siv.length );
+
+            return res;
+        }
+        catch ( Exception e )
+        {
+            throw new PlexusCipherException( e );
+        }
+    }
+
+    public byte[] decrypt( final byte[] encryptedBytes, final PreparedPassPhrase passPhrase )
+        throws PlexusCipherException
+    {
+        if ( encryptedBytes.length < 1 + AesSiv.BLOCK_SIZE || encryptedBytes[0] != VERSION )
+        {
+            throw new PlexusCipherException( "default.plexus.cipher.badEnvelope" );
+        }
+
+        try
+        {
+            byte[] siv = new byte[encryptedBytes.length - 1];
+
+            System.arraycopy( encryptedBytes, 1, siv, 0, siv.length );
+
+            return AesSiv.decrypt( PBECipher.getSivKey( passPhrase ), NO_ASSOCIATED_DATA, siv );
+        }
+        catch ( Exception e )
+        {
+            throw new PlexusCipherException( e );
+        }
+    }
+}
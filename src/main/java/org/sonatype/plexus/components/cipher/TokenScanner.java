@@ -0,0 +1,587 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Inventories the decorated <code>{...}</code> tokens of whole file trees, e.g. before rotating a pass phrase. The
+ * rules are those of {@link DefaultPlexusCipher#unDecorate(String)}: a token starts at a brace and ends at the first
+ * closing brace not escaped by a backslash, both on the same line, with at least one character in between. Unlike
+ * {@link DefaultPlexusCipher#unDecorate(String)}, which stops at the first token, every token of a file is reported.
+ * <p>
+ * Files are scanned as raw UTF-8 in parallel, one task per file, without decoding them: braces, backslashes and line
+ * breaks are ASCII and never occur inside a multi-byte sequence, so only the tokens found are turned into strings.
+ * Files from {@link #MAP_THRESHOLD} bytes on are memory-mapped, smaller ones are read, which is cheaper than setting up
+ * a mapping.
+ * <p>
+ * Given a cipher, each token is also checked to decrypt with the pass phrase. Tokens that are not Base64 at all, such
+ * as <code>${property}</code> references, fail that check without any key derivation. A legacy token decrypting with
+ * the wrong pass phrase by chance, which its unauthenticated format allows, is reported as decryptable.
+ */
+public final class TokenScanner
+{
+    /** files at least this long are memory-mapped */
+    public static final int MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * Receives the results of a scan, concurrently from the scanning threads.
+     */
+    public interface Listener
+    {
+        void onToken( Token token );
+
+        /**
+         * a file could not be read, the scan goes on with the others
+         */
+        void onError( File file, IOException e );
+    }
+
+    /**
+     * A decorated token and where it was found.
+     */
+    public static final class Token
+    {
+        private final File _file;
+
+        private final long _offset;
+
+        private final int _line;
+
+        private final String _value;
+
+        private final Boolean _decryptable;
+
+        Token( final File file, final long offset, final int line, final String value, final Boolean decryptable )
+        {
+            _file = file;
+            _offset = offset;
+            _line = line;
+            _value = value;
+            _decryptable = decryptable;
+        }
+
+        public File getFile()
+        {
+            return _file;
+        }
+
+        /**
+         * @return byte offset of the opening brace in the file
+         */
+        public long getOffset()
+        {
+            return _offset;
+        }
+
+        /**
+         * @return line of the token, starting at 1
+         */
+        public int getLine()
+        {
+            return _line;
+        }
+
+        /**
+         * @return what is between the braces
+         */
+        public String getValue()
+        {
+            return _value;
+        }
+
+        /**
+         * @return whether the token decrypts with the pass phrase, null if the scan had no cipher
+         */
+        public Boolean getDecryptable()
+        {
+            return _decryptable;
+        }
+
+        public String toString()
+        {
+            return _file + ":" + _line + ":" + _offset + " {" + _value + "}"
+                + ( _decryptable == null ? "" : _decryptable.booleanValue() ? " ok" : " undecryptable" );
+        }
+    }
+
+    private final PlexusCipher _cipher;
+
+    private final PreparedPassPhrase _passPhrase;
+
+    private final int _parallelism;
+
+    private FileFilter _filter;
+
+    // ---------------------------------------------------------------
+    /**
+     * @param parallelism files scanned at once, 0 for one per processor
+     */
+    public TokenScanner( final int parallelism )
+    {
+        this( null, null, parallelism );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @param cipher to check every token with, null to only find them
+     * @param parallelism files scanned at once, 0 for one per processor
+     */
+    public TokenScanner( final PlexusCipher cipher, final PreparedPassPhrase passPhrase, final int parallelism )
+    {
+        _cipher = cipher;
+        _passPhrase = passPhrase;
+        _parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @param filter files and directories below the roots to scan, null for all of them
+     */
+    public void setFilter( final FileFilter filter )
+    {
+        _filter = filter;
+    }
+
+    public FileFilter getFilter()
+    {
+        return _filter;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the tokens of the given files and of all files below the given directories, by file in the order found
+     *         and by offset within a file
+     * @throws IOException the first file that could not be read, once all the others have been scanned
+     */
+    public List<Token> scan( final File... roots )
+        throws IOException, InterruptedException
+    {
+        final List<File> files = listFiles( roots );
+
+        final List<List<Token>> byFile = new ArrayList<List<Token>>( files.size() );
+        final IOException[] errors = new IOException[files.size()];
+
+        for ( int i = 0; i < files.size(); i++ )
+        {
+            byFile.add( new ArrayList<Token>() );
+        }
+
+        run( files, new Task()
+        {
+            public void scan( final int index )
+            {
+                try
+                {
+                    scanFile( files.get( index ), byFile.get( index ) );
+                }
+                catch ( IOException e )
+                {
+                    errors[index] = e;
+                }
+            }
+        } );
+
+        for ( IOException e : errors )
+        {
+            if ( e != null )
+            {
+                throw e;
+            }
+        }
+
+        List<Token> res = new ArrayList<Token>();
+
+        for ( List<Token> tokens : byFile )
+        {
+            res.addAll( tokens );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * scan the given files and all files below the given directories, streaming the results
+     */
+    public void scan( final Listener listener, final File... roots )
+        throws InterruptedException
+    {
+        final List<File> files = listFiles( roots );
+
+        run( files, new Task()
+        {
+            public void scan( final int index )
+            {
+                File file = files.get( index );
+
+                List<Token> tokens = new ArrayList<Token>();
+
+                try
+                {
+                    scanFile( file, tokens );
+                }
+                catch ( IOException e )
+                {
+                    listener.onError( file, e );
+
+                    return;
+                }
+
+                for ( Token token : tokens )
+                {
+                    listener.onToken( token );
+                }
+            }
+        } );
+    }
+
+    // ---------------------------------------------------------------
+    private interface Task
+    {
+        void scan( int index );
+    }
+
+    // ---------------------------------------------------------------
+    private void run( final List<File> files, final Task task )
+        throws InterruptedException
+    {
+        if ( _parallelism < 2 || files.size() < 2 )
+        {
+            for ( int i = 0; i < files.size(); i++ )
+            {
+                task.scan( i );
+            }
+
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( _parallelism, files.size() ) );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>( files.size() );
+
+            for ( int i = 0; i < files.size(); i++ )
+            {
+                final int index = i;
+
+                futures.add( executor.submit( new Runnable()
+                {
+                    public void run()
+                    {
+                        task.scan( index );
+                    }
+                } ) );
+            }
+
+            for ( Future<?> future : futures )
+            {
+                try
+                {
+                    future.get();
+                }
+                catch ( ExecutionException e )
+                {
+                    Throwable cause = e.getCause();
+
+                    if ( cause instanceof RuntimeException )
+                    {
+                        throw (RuntimeException) cause;
+                    }
+
+                    throw (Error) cause;
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return regular files below the roots in a stable order, each one once
+     */
+    private List<File> listFiles( final File[] roots )
+    {
+        List<File> res = new ArrayList<File>();
+
+        Set<String> seen = new HashSet<String>();
+
+        for ( File root : roots )
+        {
+            listFiles( root, res, seen );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    private void listFiles( final File file, final List<File> res, final Set<String> seen )
+    {
+        String path;
+        try
+        {
+            path = file.getCanonicalPath();
+        }
+        catch ( IOException e )
+        {
+            path = file.getAbsolutePath();
+        }
+
+        // links may lead to the same file twice, or into a loop
+        if ( !seen.add( path ) )
+        {
+            return;
+        }
+
+        if ( file.isDirectory() )
+        {
+            File[] children = _filter == null ? file.listFiles() : file.listFiles( _filter );
+
+            if ( children != null )
+            {
+                Arrays.sort( children );
+
+                for ( File child : children )
+                {
+                    listFiles( child, res, seen );
+                }
+            }
+        }
+        else if ( file.isFile() )
+        {
+            res.add( file );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private void scanFile( final File file, final List<Token> tokens )
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+
+            long size = channel.size();
+
+            if ( size > Integer.MAX_VALUE )
+            {
+                throw new IOException( file + " is too large to scan" );
+            }
+
+            ByteBuffer buf;
+
+            if ( size >= MAP_THRESHOLD )
+            {
+                buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            }
+            else
+            {
+                buf = ByteBuffer.allocate( (int) size );
+
+                while ( buf.hasRemaining() && channel.read( buf ) >= 0 )
+                {
+                    // until full
+                }
+
+                buf.flip();
+            }
+
+            findTokens( file, buf, tokens );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * find the tokens between the buffer's position and limit
+     */
+    void findTokens( final File file, final ByteBuffer buf, final List<Token> tokens )
+        throws IOException
+    {
+        int line = 1;
+
+        for ( int i = buf.position(), n = buf.limit(); i < n; i++ )
+        {
+            byte c = buf.get( i );
+
+            if ( c == '\n' )
+            {
+                line++;
+            }
+            else if ( c == '{' )
+            {
+                int close = findClose( buf, i, n );
+
+                if ( close > 0 )
+                {
+                    byte[] value = new byte[close - i - 1];
+
+                    for ( int j = 0; j < value.length; j++ )
+                    {
+                        value[j] = buf.get( i + 1 + j );
+                    }
+
+                    String str = Platform.fromUtf8( value, 0, value.length );
+
+                    tokens.add( newToken( file, i - buf.position(), line, str ) );
+
+                    i = close;
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return index of the brace closing the token opened at <code>open</code>, -1 if there is none on its line
+     */
+    private static int findClose( final ByteBuffer buf, final int open, final int limit )
+    {
+        for ( int j = open + 1; j < limit; j++ )
+        {
+            byte c = buf.get( j );
+
+            if ( c == '}' && j > open + 1 && buf.get( j - 1 ) != '\\' )
+            {
+                return j;
+            }
+
+            if ( isLineTerminator( buf, j, limit ) )
+            {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return whether a line terminator in the sense of {@link java.util.regex.Pattern} starts at <code>i</code>:
+     *         CR, LF, NEL, LS or PS
+     */
+    private static boolean isLineTerminator( final ByteBuffer buf, final int i, final int limit )
+    {
+        byte c = buf.get( i );
+
+        if ( c == '\n' || c == '\r' )
+        {
+            return true;
+        }
+
+        if ( c == (byte) 0xC2 )
+        {
+            return i + 1 < limit && buf.get( i + 1 ) == (byte) 0x85;
+        }
+
+        if ( c == (byte) 0xE2 )
+        {
+            return i + 2 < limit && buf.get( i + 1 ) == (byte) 0x80
+                && ( buf.get( i + 2 ) == (byte) 0xA8 || buf.get( i + 2 ) == (byte) 0xA9 );
+        }
+
+        return false;
+    }
+
+    // ---------------------------------------------------------------
+    private Token newToken( final File file, final long offset, final int line, final String value )
+    {
+        Boolean decryptable = null;
+
+        if ( _cipher != null )
+        {
+            try
+            {
+                _cipher.decrypt( value, _passPhrase );
+
+                decryptable = Boolean.TRUE;
+            }
+            catch ( PlexusCipherException e )
+            {
+                decryptable = Boolean.FALSE;
+            }
+        }
+
+        return new Token( file, offset, line, value, decryptable );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * lists the tokens below the given files or directories, checking them with the pass phrase in system property
+     * <code>passPhrase</code> if set
+     */
+    public static void main( final String[] args )
+        throws Exception
+    {
+        if ( args.length < 1 )
+        {
+            System.out.println( "usage: java -DpassPhrase=... " + TokenScanner.class.getName() + " file|dir ..." );
+
+            return;
+        }
+
+        String passPhrase = System.getProperty( "passPhrase" );
+
+        TokenScanner scanner;
+
+        if ( passPhrase == null )
+        {
+            scanner = new TokenScanner( 0 );
+        }
+        else
+        {
+            scanner = new TokenScanner( new DefaultPlexusCipher(), new PreparedPassPhrase( passPhrase ), 0 );
+        }
+
+        File[] roots = new File[args.length];
+
+        for ( int i = 0; i < args.length; i++ )
+        {
+            roots[i] = new File( args[i] );
+        }
+
+        scanner.scan( new Listener()
+        {
+            public synchronized void onToken( final Token token )
+            {
+                System.out.println( token );
+            }
+
+            public synchronized void onError( final File file, final IOException e )
+            {
+                System.err.println( file + ": " + e.getMessage() );
+            }
+        }, roots );
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Java 11+ overlay of the baseline <code>Platform</code>: intrinsified java.util.Base64 and charset constants instead
+ * of charset lookups by name.
+ */
+final class Platform
+{
+    private static final java.util.Base64.Encoder ENCODER = java.util.Base64.getEncoder();
+
+    private static final java.util.Base64.Decoder DECODER = java.util.Base64.getDecoder();
+
+    private Platform()
+    {
+    }
+
+    // ---------------------------------------------------------------
+    static String name()
+    {
+        return "java11";
+    }
+
+    // ---------------------------------------------------------------
+    static byte[] toUtf8( final String str )
+    {
+        return str.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    // ---------------------------------------------------------------
+    static String fromUtf8( final byte[] bytes, final int offset, final int length )
+    {
+        return new String( bytes, offset, length, StandardCharsets.UTF_8 );
+    }
+
+    // ---------------------------------------------------------------
+    static String encodeBase64String( final byte[] bytes )
+    {
+        // Base64 output is ASCII, latin-1 lets compact strings take the bytes as they are
+        return new String( ENCODER.encode( bytes ), StandardCharsets.ISO_8859_1 );
+    }
+
+    // ---------------------------------------------------------------
+    static byte[] decodeBase64( final String chars )
+    {
+        if ( chars.length() % 4 == 0 )
+        {
+            try
+            {
+                return DECODER.decode( chars );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // whitespace or other characters the lenient legacy decoder skips
+            }
+        }
+
+        return Base64.decodeBase64( chars.getBytes() );
+    }
+}
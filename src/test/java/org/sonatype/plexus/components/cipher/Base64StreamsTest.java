@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class Base64StreamsTest
+    extends InjectedTestCase
+{
+    private static final int[] LENGTHS = { 0, 1, 2, 3, 56, 57, 58, 4095, 4096, 4097, 3 * 4096 + 1, 100000 };
+
+    // -------------------------------------------------------------
+    private static byte[] random( final int len )
+    {
+        byte[] res = new byte[len];
+        new Random( len ).nextBytes( res );
+        return res;
+    }
+
+    // -------------------------------------------------------------
+    private static byte[] encode( final byte[] data, final boolean chunked, final int step )
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Base64OutputStream out = new Base64OutputStream( bout, chunked );
+
+        for ( int i = 0; i < data.length; i += step )
+        {
+            if ( step == 1 )
+            {
+                out.write( data[i] );
+            }
+            else
+            {
+                out.write( data, i, Math.min( step, data.length - i ) );
+            }
+        }
+        out.close();
+
+        return bout.toByteArray();
+    }
+
+    // -------------------------------------------------------------
+    private static byte[] decode( final byte[] encoded, final int step )
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        InputStream in = new Base64InputStream( new ByteArrayInputStream( encoded ) );
+
+        byte[] buf = new byte[step];
+        if ( step == 1 )
+        {
+            for ( int b; ( b = in.read() ) >= 0; )
+            {
+                bout.write( b );
+            }
+        }
+        else
+        {
+            for ( int n; ( n = in.read( buf ) ) >= 0; )
+            {
+                bout.write( buf, 0, n );
+            }
+        }
+        in.close();
+
+        return bout.toByteArray();
+    }
+
+    // -------------------------------------------------------------
+    public void testEncode()
+        throws Exception
+    {
+        int[] steps = { 1, 2, 7, 1000, 5000 };
+
+        for ( int i = 0; i < LENGTHS.length; i++ )
+        {
+            byte[] data = random( LENGTHS[i] );
+
+            for ( int s = 0; s < steps.length; s++ )
+            {
+                String msg = "length " + LENGTHS[i] + ", step " + steps[s];
+
+                assertTrue( msg, Arrays.equals( Base64.encodeBase64( data ), encode( data, false, steps[s] ) ) );
+                assertTrue( msg, Arrays.equals( Base64.encodeBase64Chunked( data ), encode( data, true, steps[s] ) ) );
+            }
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testDecode()
+        throws Exception
+    {
+        int[] steps = { 1, 2, 3, 1000, 5000 };
+
+        for ( int i = 0; i < LENGTHS.length; i++ )
+        {
+            byte[] data = random( LENGTHS[i] );
+
+            for ( int s = 0; s < steps.length; s++ )
+            {
+                String msg = "length " + LENGTHS[i] + ", step " + steps[s];
+
+                assertTrue( msg, Arrays.equals( data, decode( Base64.encodeBase64( data ), steps[s] ) ) );
+                assertTrue( msg, Arrays.equals( data, decode( Base64.encodeBase64Chunked( data ), steps[s] ) ) );
+            }
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testDecodeLenient()
+        throws Exception
+    {
+        byte[] data = random( 1000 );
+        byte[] encoded = Base64.encodeBase64( data );
+
+        // whitespace anywhere
+        ByteArrayOutputStream spaced = new ByteArrayOutputStream();
+        for ( int i = 0; i < encoded.length; i++ )
+        {
+            spaced.write( encoded[i] );
+            if ( i % 7 == 0 )
+            {
+                spaced.write( ' ' );
+                spaced.write( '\n' );
+                spaced.write( '\t' );
+            }
+        }
+        assertTrue( Arrays.equals( data, decode( spaced.toByteArray(), 100 ) ) );
+        assertTrue( Arrays.equals( data, decode( spaced.toByteArray(), 1 ) ) );
+
+        // missing padding
+        for ( int len = 1; len <= 3; len++ )
+        {
+            byte[] part = random( len );
+            String unpadded = new String( Base64.encodeBase64( part ), "US-ASCII" ).replaceAll( "=", "" );
+            assertTrue( Arrays.equals( part, decode( unpadded.getBytes( "US-ASCII" ), 10 ) ) );
+        }
+
+        assertEquals( "abcd", new String( decode( " YWJj\r\nZA==\r\n".getBytes( "US-ASCII" ), 10 ), "US-ASCII" ) );
+
+        // available() never promises more than is there, whitespace and padding are not data
+        for ( int len = 0; len < 200; len += 7 )
+        {
+            byte[] part = random( len );
+            byte[] chunked = Base64.encodeBase64Chunked( part );
+
+            DataInputStream in = new DataInputStream( new Base64InputStream( new ByteArrayInputStream( chunked ) ) );
+            ByteArrayOutputStream res = new ByteArrayOutputStream();
+
+            int b = in.read();
+            while ( b >= 0 )
+            {
+                res.write( b );
+
+                byte[] buf = new byte[in.available()];
+                assertTrue( res.size() + buf.length <= len );
+                in.readFully( buf );
+                res.write( buf );
+
+                b = in.read();
+            }
+
+            assertTrue( Arrays.equals( part, res.toByteArray() ) );
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testFinish()
+        throws Exception
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Base64OutputStream out = new Base64OutputStream( bout );
+
+        out.write( "abcd".getBytes( "US-ASCII" ) );
+        out.flush();
+        assertEquals( "YWJj", bout.toString( "US-ASCII" ) );
+
+        out.finish();
+        assertEquals( "YWJjZA==", bout.toString( "US-ASCII" ) );
+
+        try
+        {
+            out.write( 1 );
+            fail( "write after finish" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class ChunkedCipherTest
+    extends InjectedTestCase
+{
+    private static final int SEGMENT = 1000;
+
+    PreparedPassPhrase _passPhrase;
+
+    ExecutorService _executor;
+
+    ChunkedCipher _cipher;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        _passPhrase = new PreparedPassPhrase( "testtest" );
+        _executor = Executors.newFixedThreadPool( 3 );
+        _cipher = new ChunkedCipher( SEGMENT, _executor, 4 );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        _executor.shutdownNow();
+
+        super.tearDown();
+    }
+
+    // -------------------------------------------------------------
+    private static byte[] random( final int len )
+    {
+        byte[] res = new byte[len];
+        new Random( len ).nextBytes( res );
+        return res;
+    }
+
+    // -------------------------------------------------------------
+    public void testRoundTrip()
+        throws Exception
+    {
+        int[] lengths = { 0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 7 * SEGMENT + 3 };
+
+        for ( int i = 0; i < lengths.length; i++ )
+        {
+            byte[] clear = random( lengths[i] );
+
+            byte[] enc = _cipher.encrypt( clear, _passPhrase );
+
+            assertEquals( _cipher.getEncryptedLength( clear.length ), enc.length );
+            assertEquals( clear.length, ChunkedCipher.getDecryptedLength( enc.length, SEGMENT ) );
+            assertEquals( ChunkedCipher.VERSION, enc[0] );
+
+            assertTrue( "length " + lengths[i], Arrays.equals( clear, _cipher.decrypt( enc, _passPhrase ) ) );
+
+            // any segment size and parallelism reads it
+            assertTrue( Arrays.equals( clear, new ChunkedCipher().decrypt( enc, _passPhrase ) ) );
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testTampering()
+        throws Exception
+    {
+        byte[] enc = _cipher.encrypt( random( 3 * SEGMENT + 10 ), _passPhrase );
+
+        byte[] flipped = enc.clone();
+        flipped[ChunkedCipher.HEADER_SIZE + SEGMENT + 20] ^= 1;
+        assertRejected( flipped );
+
+        // drop the last segment
+        byte[] truncated = new byte[ChunkedCipher.HEADER_SIZE + 3 * ( SEGMENT + ChunkedCipher.TAG_SIZE )];
+        System.arraycopy( enc, 0, truncated, 0, truncated.length );
+        assertRejected( truncated );
+
+        // swap the first two segments
+        byte[] swapped = enc.clone();
+        int full = SEGMENT + ChunkedCipher.TAG_SIZE;
+        System.arraycopy( enc, ChunkedCipher.HEADER_SIZE, swapped, ChunkedCipher.HEADER_SIZE + full, full );
+        System.arraycopy( enc, ChunkedCipher.HEADER_SIZE + full, swapped, ChunkedCipher.HEADER_SIZE, full );
+        assertRejected( swapped );
+
+        try
+        {
+            _cipher.decrypt( enc, new PreparedPassPhrase( "wrong" ) );
+            fail( "wrong pass phrase accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+    }
+
+    private void assertRejected( final byte[] enc )
+    {
+        try
+        {
+            _cipher.decrypt( enc, _passPhrase );
+            fail( "modified payload accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testFailureWaitsForAllRanges()
+        throws Exception
+    {
+        int segments = 4000;
+        byte[] clear = random( segments * SEGMENT );
+        byte[] enc = _cipher.encrypt( clear, _passPhrase );
+
+        // in the middle of the calling thread's range, the other ranges are busy when it fails
+        enc[ChunkedCipher.HEADER_SIZE + segments / 8 * ( SEGMENT + ChunkedCipher.TAG_SIZE ) + 5] ^= 1;
+
+        File encFile = File.createTempFile( "chunked", ".enc" );
+        File decFile = File.createTempFile( "chunked", ".dec" );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( encFile );
+            out.write( enc );
+            out.close();
+
+            RandomAccessFile in = new RandomAccessFile( encFile, "r" );
+            RandomAccessFile dec = new RandomAccessFile( decFile, "rw" );
+            try
+            {
+                try
+                {
+                    _cipher.decrypt( in.getChannel(), dec.getChannel(), _passPhrase );
+                    fail( "corrupt segment decrypted" );
+                }
+                catch ( PlexusCipherException e )
+                {
+                    // expected
+                }
+
+                // nothing is written once the failure has been reported
+                byte[] before = new byte[(int) dec.length()];
+                dec.seek( 0 );
+                dec.readFully( before );
+
+                Thread.sleep( 200 );
+
+                byte[] after = new byte[(int) dec.length()];
+                dec.seek( 0 );
+                dec.readFully( after );
+
+                assertTrue( Arrays.equals( before, after ) );
+            }
+            finally
+            {
+                in.close();
+                dec.close();
+            }
+        }
+        finally
+        {
+            encFile.delete();
+            decFile.delete();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testFiles()
+        throws Exception
+    {
+        byte[] clear = random( 25 * SEGMENT + 17 );
+
+        File clearFile = File.createTempFile( "chunked", ".clear" );
+        File encFile = File.createTempFile( "chunked", ".enc" );
+        File decFile = File.createTempFile( "chunked", ".dec" );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( clearFile );
+            out.write( clear );
+            out.close();
+
+            RandomAccessFile in = new RandomAccessFile( clearFile, "r" );
+            RandomAccessFile enc = new RandomAccessFile( encFile, "rw" );
+            _cipher.encrypt( in.getChannel(), enc.getChannel(), _passPhrase );
+            in.close();
+            enc.close();
+
+            assertEquals( _cipher.getEncryptedLength( clear.length ), encFile.length() );
+
+            enc = new RandomAccessFile( encFile, "r" );
+            RandomAccessFile dec = new RandomAccessFile( decFile, "rw" );
+            _cipher.decrypt( enc.getChannel(), dec.getChannel(), _passPhrase );
+            enc.close();
+
+            byte[] res = new byte[(int) dec.length()];
+            dec.readFully( res );
+            dec.close();
+
+            assertTrue( Arrays.equals( clear, res ) );
+
+            ChunkedCipher.DecryptingChannel channel =
+                ChunkedCipher.open( new RandomAccessFile( encFile, "r" ).getChannel(), _passPhrase );
+            try
+            {
+                assertEquals( clear.length, channel.size() );
+
+                // a range across a segment boundary
+                ByteBuffer buf = ByteBuffer.allocate( 50 );
+                assertEquals( 50, channel.read( buf, 3 * SEGMENT - 20 ) );
+                assertRange( clear, 3 * SEGMENT - 20, buf );
+
+                // sequential reads from a position up to the end
+                channel.position( clear.length - 30 );
+                buf = ByteBuffer.allocate( 100 );
+                assertEquals( 30, channel.read( buf ) );
+                assertEquals( -1, channel.read( buf ) );
+                assertRange( clear, clear.length - 30, buf );
+
+                // whole file
+                buf = ByteBuffer.allocate( clear.length );
+                assertEquals( clear.length, channel.read( buf, 0 ) );
+                assertRange( clear, 0, buf );
+            }
+            finally
+            {
+                channel.close();
+            }
+            assertFalse( channel.isOpen() );
+
+            // corrupt one segment: only reads touching it fail
+            RandomAccessFile raf = new RandomAccessFile( encFile, "rw" );
+            long pos = ChunkedCipher.HEADER_SIZE + 10 * ( SEGMENT + ChunkedCipher.TAG_SIZE ) + 5;
+            raf.seek( pos );
+            int b = raf.read();
+            raf.seek( pos );
+            raf.write( b ^ 1 );
+            raf.close();
+
+            channel = ChunkedCipher.open( new RandomAccessFile( encFile, "r" ).getChannel(), _passPhrase );
+            try
+            {
+                ByteBuffer buf = ByteBuffer.allocate( 10 );
+                assertEquals( 10, channel.read( buf, 2 * SEGMENT ) );
+                assertRange( clear, 2 * SEGMENT, buf );
+
+                try
+                {
+                    channel.read( ByteBuffer.allocate( 10 ), 10 * SEGMENT );
+                    fail( "corrupt segment read" );
+                }
+                catch ( IOException e )
+                {
+                    // expected
+                }
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        finally
+        {
+            clearFile.delete();
+            encFile.delete();
+            decFile.delete();
+        }
+    }
+
+    private static void assertRange( final byte[] expected, final int off, final ByteBuffer actual )
+    {
+        actual.flip();
+        for ( int i = 0; actual.hasRemaining(); i++ )
+        {
+            assertEquals( expected[off + i], actual.get() );
+        }
+    }
+}
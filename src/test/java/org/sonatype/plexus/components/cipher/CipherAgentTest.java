@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class CipherAgentTest
+    extends InjectedTestCase
+{
+    private String passPhrase = "testtest";
+
+    String str = "my testing phrase";
+
+    String encStr = "LFulS0pAlmMHpDtm+81oPcqctcwpco5p4Fo7640/gqDRifCahXBefG4FxgKcu17v";
+
+    File _agentFile;
+
+    CipherAgent _agent;
+
+    AgentPlexusCipher _cipher;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        _agentFile = File.createTempFile( "cipher", ".agent" );
+        _agentFile.delete();
+
+        _agent = new CipherAgent( new DefaultPlexusCipher(), _agentFile );
+
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration();
+        config.setAgentFile( _agentFile.getPath() );
+        _cipher = new AgentPlexusCipher( config );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        _agent.stop();
+        _agentFile.delete();
+
+        super.tearDown();
+    }
+
+    // -------------------------------------------------------------
+    public void testThroughAgent()
+        throws Exception
+    {
+        _agent.start();
+        assertTrue( _agentFile.isFile() );
+
+        assertEquals( str, _cipher.decrypt( encStr, passPhrase ) );
+        assertTrue( _cipher.isAgentConnected() );
+
+        assertEquals( str, _cipher.decryptDecorated( _cipher.encryptAndDecorate( str, passPhrase ), passPhrase ) );
+
+        String[] encrypted = _cipher.encrypt( new String[] { "a", "b", "", "c" }, passPhrase );
+        assertEquals( "", encrypted[2] );
+
+        String[] decrypted = _cipher.decrypt( encrypted, passPhrase );
+        assertEquals( "a", decrypted[0] );
+        assertEquals( "b", decrypted[1] );
+        assertEquals( "", decrypted[2] );
+        assertEquals( "c", decrypted[3] );
+
+        try
+        {
+            _cipher.decryptDecorated( "{not base64 at all!}", passPhrase );
+            fail( "garbage accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            assertEquals( "default.plexus.cipher.badEncryptedPassword", e.getMessage() );
+        }
+
+        // the connection is still usable after an error
+        assertEquals( str, _cipher.decrypt( encStr, passPhrase ) );
+        assertTrue( _cipher.isAgentConnected() );
+
+        _agent.stop();
+        assertFalse( _agentFile.exists() );
+
+        // falls back once the agent is gone
+        assertEquals( str, _cipher.decrypt( encStr, passPhrase ) );
+        assertFalse( _cipher.isAgentConnected() );
+    }
+
+    // -------------------------------------------------------------
+    public void testLargeBatch()
+        throws Exception
+    {
+        _agent.start();
+
+        // more values than the agent takes in one request
+        String[] values = new String[CipherAgent.MAX_BATCH + 10];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            values[i] = "v" + i;
+        }
+
+        String[] decrypted = _cipher.decrypt( _cipher.encrypt( values, passPhrase ), passPhrase );
+        assertTrue( _cipher.isAgentConnected() );
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            assertEquals( values[i], decrypted[i] );
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testConcurrentCallers()
+        throws Exception
+    {
+        _agent.start();
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            final String value = "value of thread " + t;
+
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( int i = 0; i < 50; i++ )
+                        {
+                            assertEquals( value, _cipher.decrypt( _cipher.encrypt( value, passPhrase ), passPhrase ) );
+                        }
+                    }
+                    catch ( Throwable e )
+                    {
+                        failure.set( e );
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            threads[t].join();
+        }
+
+        assertNull( String.valueOf( failure.get() ), failure.get() );
+        assertTrue( _cipher.isAgentConnected() );
+    }
+
+    // -------------------------------------------------------------
+    public void testNoAgent()
+        throws Exception
+    {
+        assertEquals( str, _cipher.decrypt( encStr, passPhrase ) );
+        assertFalse( _cipher.isAgentConnected() );
+
+        // an impostor that does not know the key gets nothing
+        _agent.start();
+
+        FileOutputStream out = new FileOutputStream( _agentFile );
+        out.write( ( _agent.getPort() + "\n" + CipherAgent.toHex( new byte[CipherAgent.KEY_SIZE] ) + "\n" ).getBytes() );
+        out.close();
+
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration();
+        config.setAgentFile( _agentFile.getPath() );
+        AgentPlexusCipher cipher = new AgentPlexusCipher( config );
+
+        assertEquals( str, cipher.decrypt( encStr, passPhrase ) );
+        assertFalse( cipher.isAgentConnected() );
+    }
+}
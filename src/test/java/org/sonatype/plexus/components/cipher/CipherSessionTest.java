@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class CipherSessionTest
+    extends InjectedTestCase
+{
+    private String passPhrase = "testtest";
+
+    DefaultPlexusCipher pc;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        pc = new DefaultPlexusCipher();
+    }
+
+    // -------------------------------------------------------------
+    public void testKeyed()
+        throws Exception
+    {
+        String user = pc.encryptAndDecorate( "alice", passPhrase ) + " managed by ops";
+        String password = pc.encryptAndDecorate( "secret", passPhrase );
+        String other = pc.encryptAndDecorate( "secret", passPhrase );
+
+        CipherSession session = new CipherSession( pc, passPhrase );
+
+        assertEquals( "alice", session.decryptDecorated( "server/username", user ) );
+        assertEquals( "secret", session.decryptDecorated( "server/password", password ) );
+        assertEquals( "secret", session.decryptDecorated( "other/password", other ) );
+
+        // unchanged values come back exactly as loaded
+        assertSame( user, session.encryptAndDecorate( "server/username", "alice" ) );
+        assertSame( password, session.encryptAndDecorate( "server/password", "secret" ) );
+        assertSame( other, session.encryptAndDecorate( "other/password", "secret" ) );
+        assertEquals( 3, session.getReused() );
+        assertEquals( 0, session.getEncrypted() );
+
+        String changed = session.encryptAndDecorate( "server/password", "changed" );
+        assertEquals( "changed", pc.decryptDecorated( changed, passPhrase ) );
+        assertEquals( 1, session.getEncrypted() );
+
+        // the new value is stable from now on
+        assertSame( changed, session.encryptAndDecorate( "server/password", "changed" ) );
+        assertEquals( 1, session.getEncrypted() );
+
+        // a changed value keeps the text around the braces
+        String renamed = session.encryptAndDecorate( "server/username", "bob" );
+        assertTrue( renamed, renamed.startsWith( "{" ) && renamed.endsWith( "} managed by ops" ) );
+        assertEquals( "bob", pc.decryptDecorated( renamed, passPhrase ) );
+        assertSame( renamed, session.encryptAndDecorate( "server/username", "bob" ) );
+    }
+
+    // -------------------------------------------------------------
+    public void testByClearText()
+        throws Exception
+    {
+        String password = pc.encryptAndDecorate( "secret", passPhrase );
+
+        CipherSession session = new CipherSession( pc, passPhrase );
+
+        assertEquals( "secret", session.decryptDecorated( password ) );
+        assertSame( password, session.encryptAndDecorate( "secret" ) );
+
+        String added = session.encryptAndDecorate( "new" );
+        assertSame( added, session.encryptAndDecorate( "new" ) );
+        assertEquals( 1, session.getEncrypted() );
+
+        // without a key, only the braced part of a value is reused
+        String user = pc.encryptAndDecorate( "alice", passPhrase );
+        assertEquals( "alice", session.decryptDecorated( "login " + user + " managed by ops" ) );
+        assertEquals( user, session.encryptAndDecorate( "alice" ) );
+
+        session.clear();
+        assertNotSame( password, session.encryptAndDecorate( "secret" ) );
+    }
+}
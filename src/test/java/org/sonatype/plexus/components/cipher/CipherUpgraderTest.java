@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class CipherUpgraderTest
+    extends InjectedTestCase
+{
+    private String passPhrase = "testtest";
+
+    DefaultPlexusCipher pc;
+
+    PreparedPassPhrase prepared;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        pc = new DefaultPlexusCipher();
+        prepared = new PreparedPassPhrase( passPhrase );
+    }
+
+    // -------------------------------------------------------------
+    public void testUpgradeOnRead()
+        throws Exception
+    {
+        final ConcurrentMap<String, String> store = new ConcurrentHashMap<String, String>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            store.put( "key" + i, pc.encryptAndDecorate( "value" + i, prepared ) + " # comment" );
+        }
+        store.put( "plain", pc.encrypt( "plain", prepared ) );
+
+        final List<Integer> batches = new ArrayList<Integer>();
+
+        CipherUpgrader upgrader = pc.newUpgrader( prepared, new CipherUpgrader.WriteBack()
+        {
+            public void write( final List<CipherUpgrader.Upgrade> batch )
+            {
+                batches.add( batch.size() );
+
+                // a value read again just as its upgrade was written is upgraded twice, only the first one sticks
+                for ( CipherUpgrader.Upgrade upgrade : batch )
+                {
+                    store.replace( upgrade.getKey(), upgrade.getLegacy(), upgrade.getUpgraded() );
+                }
+            }
+        } );
+        try
+        {
+            // nothing is upgraded with a pass phrase that may be wrong
+            assertEquals( "value0", upgrader.decryptDecorated( "key0", store.get( "key0" ) ) );
+            upgrader.flush();
+            assertEquals( 0, upgrader.getUpgraded() );
+            assertTrue( batches.isEmpty() );
+
+            upgrader.confirmPassPhrase();
+
+            for ( int round = 0; round < 2; round++ )
+            {
+                for ( int i = 0; i < 100; i++ )
+                {
+                    assertEquals( "value" + i, upgrader.decryptDecorated( "key" + i, store.get( "key" + i ) ) );
+                }
+                assertEquals( "plain", upgrader.decrypt( "plain", store.get( "plain" ) ) );
+            }
+
+            upgrader.flush();
+
+            assertTrue( upgrader.getUpgraded() >= 101 );
+            assertEquals( 0, upgrader.getPending() );
+            assertEquals( 0, upgrader.getFailures() );
+            for ( int size : batches )
+            {
+                assertTrue( size <= pc.getConfiguration().getUpgradeBatchSize() );
+            }
+
+            for ( int i = 0; i < 100; i++ )
+            {
+                String value = store.get( "key" + i );
+
+                assertTrue( value, value.endsWith( "} # comment" ) );
+                assertFalse( PBECipher.isLegacy64( pc.unDecorate( value ) ) );
+                assertEquals( "value" + i, pc.decryptDecorated( value, prepared ) );
+            }
+            assertFalse( PBECipher.isLegacy64( store.get( "plain" ) ) );
+            assertEquals( "plain", pc.decrypt( store.get( "plain" ), prepared ) );
+
+            // upgraded values are left alone
+            long upgraded = upgrader.getUpgraded();
+            for ( int i = 0; i < 100; i++ )
+            {
+                upgrader.decryptDecorated( "key" + i, store.get( "key" + i ) );
+            }
+            upgrader.flush();
+            assertEquals( upgraded, upgrader.getUpgraded() );
+        }
+        finally
+        {
+            upgrader.close();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testFailedWriteBack()
+        throws Exception
+    {
+        final String legacy = pc.encryptAndDecorate( "secret", prepared );
+
+        final List<String> written = new ArrayList<String>();
+
+        CipherUpgrader upgrader = new CipherUpgrader( pc, prepared, new CipherUpgrader.WriteBack()
+        {
+            public void write( final List<CipherUpgrader.Upgrade> batch )
+                throws Exception
+            {
+                if ( written.isEmpty() )
+                {
+                    written.add( null );
+                    throw new Exception( "store unavailable" );
+                }
+                written.add( batch.get( 0 ).getUpgraded() );
+            }
+        }, 8, 1 );
+        upgrader.confirmPassPhrase();
+        try
+        {
+            assertEquals( "secret", upgrader.decryptDecorated( "k", legacy ) );
+            upgrader.flush();
+            assertEquals( 1, upgrader.getFailures() );
+            assertEquals( 0, upgrader.getUpgraded() );
+
+            // the value is still legacy, the next read retries
+            assertEquals( "secret", upgrader.decryptDecorated( "k", legacy ) );
+        }
+        finally
+        {
+            upgrader.close();
+        }
+
+        assertEquals( 1, upgrader.getUpgraded() );
+        assertEquals( "secret", pc.decryptDecorated( written.get( 1 ), prepared ) );
+    }
+}
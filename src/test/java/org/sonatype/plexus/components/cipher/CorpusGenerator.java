@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Synthetic stand-ins for what {@link PlexusCipherMacroBenchmark} loads: <code>settings.xml</code> style documents and
+ * property sets full of values, most of them encrypted and decorated. Value sizes follow a long tailed distribution,
+ * some decorated values carry text around the braces and some plain values contain escaped braces.
+ * <p>
+ * The seed fixes the structure, the clear texts and their sizes, not the bytes: every encryption draws a random salt,
+ * so each run yields different encrypted values, of the same lengths, that decrypt to the same corpus. That is what
+ * the benchmark needs, the work of decrypting them does not depend on the salt. Write a corpus to disk with
+ * 
+ * <pre>
+ * java -cp ... org.sonatype.plexus.components.cipher.CorpusGenerator &lt;dir&gt; [values] [seed]
+ * </pre>
+ */
+public class CorpusGenerator
+{
+    public static final String MASTER_PASSWORD = "master-password";
+
+    private static final String CHARS =
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-_.:/+=!?#$%*() ";
+
+    private static final Pattern XML_VALUE = Pattern.compile( ">([^<>]+)</" );
+
+    private final PlexusCipher _cipher;
+
+    private final String _passPhrase;
+
+    private final Random _random;
+
+    // ---------------------------------------------------------------
+    public CorpusGenerator( final PlexusCipher cipher, final String passPhrase, final long seed )
+    {
+        _cipher = cipher;
+        _passPhrase = passPhrase;
+        _random = new Random( seed );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return a value as found in a document: 70% encrypted and decorated, 10% of those with text around, 10% with
+     *         escaped braces, the rest plain
+     */
+    public String nextValue()
+        throws PlexusCipherException
+    {
+        int kind = _random.nextInt( 100 );
+
+        if ( kind < 63 )
+        {
+            return _cipher.encryptAndDecorate( nextClear(), _passPhrase );
+        }
+        else if ( kind < 70 )
+        {
+            return _cipher.encryptAndDecorate( nextClear(), _passPhrase ) + " managed by ops";
+        }
+        else if ( kind < 80 )
+        {
+            return "literal \\{" + nextClear() + "\\} value";
+        }
+        else
+        {
+            return nextClear();
+        }
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return clear text, mostly short passwords and tokens, now and then a certificate sized blob
+     */
+    private String nextClear()
+    {
+        int size = (int) Math.exp( 2.8 + 1.1 * _random.nextGaussian() );
+
+        size = Math.max( 1, Math.min( 8192, size ) );
+
+        StringBuilder sb = new StringBuilder( size );
+
+        for ( int i = 0; i < size; i++ )
+        {
+            sb.append( CHARS.charAt( _random.nextInt( CHARS.length() ) ) );
+        }
+
+        return sb.toString();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return <code>settings.xml</code> with a server per three values and the rest as profile properties
+     */
+    public String settingsXml( final int values )
+        throws PlexusCipherException
+    {
+        StringBuilder sb = new StringBuilder( values * 128 );
+
+        sb.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<settings>\n  <servers>\n" );
+
+        int servers = values / 3;
+
+        for ( int i = 0; i < servers; i++ )
+        {
+            sb.append( "    <server>\n      <id>server-" ).append( i ).append( "</id>\n" );
+            sb.append( "      <username>" ).append( nextValue() ).append( "</username>\n" );
+            sb.append( "      <password>" ).append( nextValue() ).append( "</password>\n" );
+            sb.append( "      <passphrase>" ).append( nextValue() ).append( "</passphrase>\n    </server>\n" );
+        }
+
+        sb.append( "  </servers>\n  <profiles>\n    <profile>\n      <id>secrets</id>\n      <properties>\n" );
+
+        for ( int i = servers * 3; i < values; i++ )
+        {
+            sb.append( "        <secret." ).append( i ).append( '>' ).append( nextValue() );
+            sb.append( "</secret." ).append( i ).append( ">\n" );
+        }
+
+        sb.append( "      </properties>\n    </profile>\n  </profiles>\n</settings>\n" );
+
+        return sb.toString();
+    }
+
+    // ---------------------------------------------------------------
+    public String properties( final int values )
+        throws PlexusCipherException
+    {
+        StringBuilder sb = new StringBuilder( values * 128 );
+
+        for ( int i = 0; i < values; i++ )
+        {
+            sb.append( "secret." ).append( i ).append( '=' ).append( nextValue() ).append( '\n' );
+        }
+
+        return sb.toString();
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return the values of a document produced by {@link #settingsXml(int)} or {@link #properties(int)}, element texts
+     *         or whatever follows the first <code>=</code> of a line
+     */
+    public static List<String> extractValues( final String document )
+    {
+        List<String> res = new ArrayList<String>();
+
+        if ( document.startsWith( "<" ) )
+        {
+            for ( Matcher m = XML_VALUE.matcher( document ); m.find(); )
+            {
+                res.add( m.group( 1 ) );
+            }
+        }
+        else
+        {
+            String[] lines = document.split( "\n" );
+
+            for ( int i = 0; i < lines.length; i++ )
+            {
+                int eq = lines[i].indexOf( '=' );
+
+                if ( eq > 0 )
+                {
+                    res.add( lines[i].substring( eq + 1 ) );
+                }
+            }
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    public static void main( final String[] args )
+        throws Exception
+    {
+        if ( args.length < 1 )
+        {
+            System.err.println( "usage: CorpusGenerator <dir> [values] [seed]" );
+            System.exit( 1 );
+        }
+
+        File dir = new File( args[0] );
+        int values = args.length > 1 ? Integer.parseInt( args[1] ) : 5000;
+        long seed = args.length > 2 ? Long.parseLong( args[2] ) : 1;
+
+        dir.mkdirs();
+
+        CorpusGenerator generator = new CorpusGenerator( new DefaultPlexusCipher(), MASTER_PASSWORD, seed );
+
+        write( new File( dir, "settings.xml" ), generator.settingsXml( values ) );
+        write( new File( dir, "secrets.properties" ), generator.properties( values ) );
+
+        System.out.println( "wrote " + values + " values to each of settings.xml and secrets.properties in " + dir );
+    }
+
+    // ---------------------------------------------------------------
+    static void write( final File file, final String content )
+        throws Exception
+    {
+        Writer out = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" );
+        try
+        {
+            out.write( content );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
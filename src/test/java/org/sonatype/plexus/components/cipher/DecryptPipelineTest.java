@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class DecryptPipelineTest
+    extends InjectedTestCase
+{
+    DefaultPlexusCipher pc;
+
+    PreparedPassPhrase _passPhrase;
+
+    ExecutorService _executor;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        pc = new DefaultPlexusCipher();
+        _passPhrase = new PreparedPassPhrase( "testtest" );
+        _executor = Executors.newFixedThreadPool( 3 );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        _executor.shutdownNow();
+
+        super.tearDown();
+    }
+
+    // -------------------------------------------------------------
+    static class Collector
+        implements DecryptPipeline.Sink<Integer>
+    {
+        final List<Integer> tags = new ArrayList<Integer>();
+
+        final List<String> values = new ArrayList<String>();
+
+        int failures;
+
+        int completions;
+
+        public void onResult( final Integer tag, final String clearText, final PlexusCipherException failure )
+        {
+            tags.add( tag );
+            values.add( clearText );
+
+            if ( failure != null )
+            {
+                failures++;
+            }
+        }
+
+        public void onComplete()
+        {
+            completions++;
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testOrderedResults()
+        throws Exception
+    {
+        int count = 500;
+
+        String[] encrypted = new String[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            encrypted[i] = pc.encryptAndDecorate( "value " + i, _passPhrase );
+        }
+        encrypted[7] = "{not base64 at all!}";
+
+        Collector sink = new Collector();
+        DecryptPipeline<Integer> pipeline = new DecryptPipeline<Integer>( pc, _passPhrase, _executor, 16, 3, 64, sink );
+
+        for ( int i = 0; i < count; i++ )
+        {
+            pipeline.submit( Integer.valueOf( i ), encrypted[i] );
+            assertTrue( pipeline.getInFlight() <= 64 );
+        }
+        pipeline.close();
+
+        assertTrue( pipeline.awaitCompletion( 30, TimeUnit.SECONDS ) );
+
+        assertEquals( 1, sink.completions );
+        assertEquals( 1, sink.failures );
+        assertEquals( count, sink.tags.size() );
+        for ( int i = 0; i < count; i++ )
+        {
+            assertEquals( i, sink.tags.get( i ).intValue() );
+            assertEquals( i == 7 ? null : "value " + i, sink.values.get( i ) );
+        }
+
+        assertEquals( count, pipeline.getDelivered() );
+        assertEquals( 1, pipeline.getFailures() );
+        assertEquals( 0, pipeline.getInFlight() );
+        assertEquals( 0, pipeline.getQueueDepth() );
+        assertTrue( pipeline.getBatches() <= count );
+        assertTrue( pipeline.getMaxLatencyNanos() >= pipeline.getAverageLatencyNanos() );
+
+        try
+        {
+            pipeline.submit( Integer.valueOf( 0 ), encrypted[0] );
+            fail( "closed pipeline accepted a value" );
+        }
+        catch ( IllegalStateException e )
+        {
+            // expected
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testBackpressure()
+        throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch( 1 );
+
+        // a sink that stalls holds up delivery, and with it the producer
+        Collector sink = new Collector()
+        {
+            public void onResult( final Integer tag, final String clearText, final PlexusCipherException failure )
+            {
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                super.onResult( tag, clearText, failure );
+            }
+        };
+
+        String enc = pc.encryptAndDecorate( "value", _passPhrase );
+
+        DecryptPipeline<Integer> pipeline = new DecryptPipeline<Integer>( pc, _passPhrase, _executor, 4, 2, 8, sink );
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            assertTrue( pipeline.offer( Integer.valueOf( i ), enc, 1, TimeUnit.SECONDS ) );
+        }
+        assertFalse( pipeline.offer( Integer.valueOf( 8 ), enc, 100, TimeUnit.MILLISECONDS ) );
+        assertEquals( 8, pipeline.getInFlight() );
+
+        release.countDown();
+
+        assertTrue( pipeline.offer( Integer.valueOf( 8 ), enc, 10, TimeUnit.SECONDS ) );
+        pipeline.close();
+        assertTrue( pipeline.awaitCompletion( 10, TimeUnit.SECONDS ) );
+        assertEquals( 9, sink.tags.size() );
+    }
+
+    // -------------------------------------------------------------
+    public void testThrowingSink()
+        throws Exception
+    {
+        final RuntimeException boom = new IllegalStateException( "boom" );
+
+        // every tenth result is refused
+        Collector sink = new Collector()
+        {
+            public void onResult( final Integer tag, final String clearText, final PlexusCipherException failure )
+            {
+                super.onResult( tag, clearText, failure );
+
+                if ( tag.intValue() % 10 == 0 )
+                {
+                    throw boom;
+                }
+            }
+        };
+
+        String enc = pc.encryptAndDecorate( "value", _passPhrase );
+
+        DecryptPipeline<Integer> pipeline = new DecryptPipeline<Integer>( pc, _passPhrase, _executor, 4, 3, 8, sink );
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertTrue( pipeline.offer( Integer.valueOf( i ), enc, 10, TimeUnit.SECONDS ) );
+        }
+        pipeline.close();
+
+        assertTrue( pipeline.awaitCompletion( 10, TimeUnit.SECONDS ) );
+        assertEquals( 1, sink.completions );
+        assertEquals( 100, sink.tags.size() );
+        assertEquals( 99, sink.tags.get( 99 ).intValue() );
+        assertEquals( 100, pipeline.getDelivered() );
+        assertEquals( 0, pipeline.getInFlight() );
+        assertSame( boom, pipeline.getSinkFailure() );
+    }
+
+    // -------------------------------------------------------------
+    public void testFromCipher()
+        throws Exception
+    {
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration();
+        config.setPipelineBatchSize( 8 );
+        config.setPipelineParallelism( 2 );
+        DefaultPlexusCipher cipher = new DefaultPlexusCipher( config );
+
+        Collector sink = new Collector();
+        DecryptPipeline<Integer> pipeline = cipher.newDecryptPipeline( _passPhrase, sink );
+        for ( int i = 0; i < 20; i++ )
+        {
+            pipeline.submit( Integer.valueOf( i ), cipher.encrypt( "v" + i, _passPhrase ) );
+        }
+        pipeline.close();
+
+        assertTrue( pipeline.awaitCompletion( 10, TimeUnit.SECONDS ) );
+        assertEquals( "v19", sink.values.get( 19 ) );
+    }
+}
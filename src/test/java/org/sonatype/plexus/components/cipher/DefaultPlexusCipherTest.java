@@ -12,6 +12,9 @@
  */
 package org.sonatype.plexus.components.cipher;
 
+import java.util.Arrays;
+import java.util.Properties;
+
 import org.sonatype.guice.bean.containers.InjectedTestCase;
 
 /**
@@ -92,6 +95,33 @@ public class DefaultPlexusCipherTest
         throw new Exception( "Cannot find default algorithm " + PBECipher.KEY_ALG + " in the current environment." );
     }
 
+    // -------------------------------------------------------------
+    public void testSelectProviders()
+        throws Exception
+    {
+        try
+        {
+            CipherProviders.Selection selection = CipherProviders.select();
+
+            assertNotNull( selection.getCipherProvider() );
+            assertNotNull( selection.getDigestProvider() );
+            assertSame( selection.getCipherProvider(), CipherProviders.getCipherProvider() );
+            assertTrue( selection.getCipherTimings().containsKey( selection.getCipherProvider().getName() ) );
+
+            assertEquals( "Decryption did not produce desired result", str, pc.decrypt( encStr, passPhrase ) );
+
+            // the cached selection is pinned again
+            CipherProviders.pin( null, null );
+            assertSame( selection, CipherProviders.select() );
+            assertSame( selection.getCipherProvider(), CipherProviders.getCipherProvider() );
+            assertSame( selection.getDigestProvider(), CipherProviders.getDigestProvider() );
+        }
+        finally
+        {
+            CipherProviders.pin( null, null );
+        }
+    }
+
     // -------------------------------------------------------------
     public void stestFindDefaultAlgorithm()
         throws Exception
@@ -160,6 +190,271 @@ public class DefaultPlexusCipherTest
         assertEquals( "Decryption did not produce desired result", str, res );
     }
 
+    // -------------------------------------------------------------
+    public void testPreparedPassPhrase()
+        throws Exception
+    {
+        PreparedPassPhrase prepared = new PreparedPassPhrase( passPhrase );
+
+        assertEquals( "Decryption did not produce desired result", str, pc.decrypt( encStr, prepared ) );
+
+        String res = pc.encryptAndDecorate( str, prepared );
+
+        assertEquals( "Encryption/Decryption did not produce desired result", str,
+                      pc.decryptDecorated( res, passPhrase ) );
+        assertEquals( "Encryption/Decryption did not produce desired result", str,
+                      pc.decryptDecorated( res, prepared ) );
+    }
+
+    // -------------------------------------------------------------
+    public void testConfiguration()
+        throws Exception
+    {
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration();
+        config.setPassPhraseCacheSize( 1 );
+
+        Properties props = new Properties();
+        props.setProperty( PlexusCipherConfiguration.PROPERTY_PREFIX + "passPhraseCacheSize", "0" );
+        assertEquals( 0, config.override( props ).getPassPhraseCacheSize() );
+        assertEquals( 1, config.getPassPhraseCacheSize() );
+
+        props.setProperty( PlexusCipherConfiguration.PROPERTY_PREFIX + "passPhraseCacheSize", "lots" );
+        try
+        {
+            config.override( props );
+            fail( "invalid configuration accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+
+        pc = new DefaultPlexusCipher( config );
+        assertEquals( 1, pc.getConfiguration().getPassPhraseCacheSize() );
+
+        // cycle pass phrases through the single cache slot
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( str, pc.decrypt( encStr, passPhrase ) );
+            assertEquals( str, pc.decrypt( pc.encrypt( str, "other" ), "other" ) );
+        }
+
+        assertEquals( str, new HighThroughputPlexusCipher().decrypt( encStr, passPhrase ) );
+    }
+
+    // -------------------------------------------------------------
+    public void testEncryptDeterministic()
+        throws Exception
+    {
+        String xRes = pc.encryptDeterministic( str, passPhrase );
+
+        assertEquals( xRes, pc.encryptDeterministic( str, new PreparedPassPhrase( passPhrase ) ) );
+
+        assertEquals( "Encryption/Decryption did not produce desired result", str,
+                      pc.decryptDeterministic( xRes, passPhrase ) );
+    }
+
+    // -------------------------------------------------------------
+    public void testEngines()
+        throws Exception
+    {
+        PreparedPassPhrase prepared = new PreparedPassPhrase( passPhrase );
+        byte[] clear = str.getBytes( "UTF-8" );
+
+        CipherEngine xor = pc.getEngines().get( "test-xor" );
+        assertTrue( xor.getCapabilities().contains( CipherEngine.Capability.DETERMINISTIC ) );
+
+        String[] ids = { "pbe-aes-cbc", "aes-siv", "test-xor" };
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            byte[] enc = pc.encrypt( clear, prepared, ids[i] );
+
+            assertEquals( pc.getEngines().get( ids[i] ).getVersion(), enc[0] );
+            assertTrue( ids[i], Arrays.equals( clear, pc.decrypt( enc, prepared ) ) );
+        }
+
+        assertEquals( PBECipher.BINARY_VERSION, pc.encrypt( clear, prepared )[0] );
+
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration();
+        config.setEngine( "aes-siv" );
+        assertTrue( Arrays.equals( new DefaultPlexusCipher( config ).encrypt( clear, prepared ),
+                                   pc.encrypt( clear, prepared, "aes-siv" ) ) );
+
+        try
+        {
+            pc.decrypt( new byte[] { 0x33, 1, 2, 3 }, prepared );
+            fail( "unknown envelope version accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testAdmissionControl()
+        throws Exception
+    {
+        assertNull( pc.getAdmissionControl() );
+
+        try
+        {
+            pc.decryptDecorated( "{not base64 at all!}", passPhrase );
+            fail( "garbage accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            assertEquals( "default.plexus.cipher.badEncryptedPassword", e.getMessage() );
+        }
+
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration();
+        config.setCallerRate( 1 );
+        config.setCallerBurst( 2 );
+        DefaultPlexusCipher limited = new DefaultPlexusCipher( config );
+
+        PreparedPassPhrase prepared = new PreparedPassPhrase( passPhrase );
+        String decorated = limited.decorate( encStr );
+
+        assertEquals( str, limited.decryptDecorated( decorated, prepared, "alice" ) );
+        assertEquals( str, limited.decryptDecorated( decorated, prepared, "alice" ) );
+        try
+        {
+            limited.decryptDecorated( decorated, prepared, "alice" );
+            fail( "rate limit not enforced" );
+        }
+        catch ( PlexusCipherOverloadedException e )
+        {
+            // expected
+        }
+        assertEquals( str, limited.decryptDecorated( decorated, prepared, "bob" ) );
+        assertEquals( str, limited.decrypt( encStr, prepared ) );
+        assertEquals( 1, limited.getAdmissionControl().getRejected() );
+
+        AdmissionControl bulkhead = new AdmissionControl( 1, 0, 10, 0, 0 );
+        bulkhead.enter( null );
+        try
+        {
+            bulkhead.enter( null );
+            fail( "second caller admitted" );
+        }
+        catch ( PlexusCipherOverloadedException e )
+        {
+            // expected
+        }
+        finally
+        {
+            bulkhead.exit();
+        }
+        bulkhead.enter( null );
+        bulkhead.exit();
+
+        // a caller turned away for lack of a slot keeps its token
+        bulkhead = new AdmissionControl( 1, 0, 10, 0.001, 1 );
+        bulkhead.enter( null );
+        try
+        {
+            bulkhead.enter( "carol" );
+            fail( "second caller admitted" );
+        }
+        catch ( PlexusCipherOverloadedException e )
+        {
+            // expected
+        }
+        finally
+        {
+            bulkhead.exit();
+        }
+        bulkhead.enter( "carol" );
+        bulkhead.exit();
+
+        bulkhead = new AdmissionControl( 1, 1, 10, 0, 0 );
+        bulkhead.enter( null );
+        try
+        {
+            bulkhead.enter( null );
+            fail( "queued caller did not time out" );
+        }
+        catch ( PlexusCipherOverloadedException e )
+        {
+            assertEquals( 0, bulkhead.getQueued() );
+        }
+        finally
+        {
+            bulkhead.exit();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testChunkedCipher()
+        throws Exception
+    {
+        PlexusCipherConfiguration config = new PlexusCipherConfiguration();
+        config.setChunkSize( 4096 );
+        config.setChunkParallelism( 3 );
+
+        ChunkedCipher chunked = new DefaultPlexusCipher( config ).getChunkedCipher();
+        assertEquals( 4096, chunked.getSegmentSize() );
+
+        byte[] clear = new byte[100000];
+        Arrays.fill( clear, (byte) 'x' );
+        PreparedPassPhrase prepared = new PreparedPassPhrase( passPhrase );
+
+        assertTrue( Arrays.equals( clear, chunked.decrypt( chunked.encrypt( clear, prepared ), prepared ) ) );
+    }
+
+    // -------------------------------------------------------------
+    public void testContexts()
+        throws Exception
+    {
+        CipherContextRegistry contexts = pc.getContexts();
+        assertNull( contexts.get( "acme" ) );
+
+        CipherContext acme = contexts.register( "acme", passPhrase );
+        CipherContext other = contexts.register( "other", "different" );
+        assertEquals( 2, contexts.size() );
+        assertSame( acme, contexts.require( "acme" ) );
+
+        assertEquals( str, acme.decrypt( encStr ) );
+        assertEquals( str, acme.decryptDecorated( acme.encryptAndDecorate( str ) ) );
+        assertEquals( str, other.decrypt( other.encrypt( str ) ) );
+        try
+        {
+            other.decrypt( encStr );
+            fail( "decrypted with another tenant's pass phrase" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+
+        assertEquals( 2, acme.getMetrics().getDecrypts() );
+        assertEquals( 1, acme.getMetrics().getEncrypts() );
+        assertEquals( 0, acme.getMetrics().getFailures() );
+        assertEquals( 1, other.getMetrics().getFailures() );
+
+        // pass phrase change: new generation, same metrics, stale replace loses
+        CipherContext changed = contexts.register( "acme", "changed" );
+        assertEquals( 2, changed.getGeneration() );
+        assertSame( acme.getMetrics(), changed.getMetrics() );
+        assertSame( changed, contexts.get( "acme" ) );
+        assertNull( contexts.replace( acme, "stale" ) );
+        assertEquals( str, acme.decrypt( encStr ) );
+
+        String enc = changed.encrypt( str );
+        assertEquals( str, pc.decrypt( enc, "changed" ) );
+
+        assertSame( other, contexts.remove( "other" ) );
+        try
+        {
+            contexts.require( "other" );
+            fail( "removed context found" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            assertEquals( "default.plexus.cipher.unknownContext: other", e.getMessage() );
+        }
+    }
+
     // -------------------------------------------------------------
     public void testDecorate()
         throws Exception
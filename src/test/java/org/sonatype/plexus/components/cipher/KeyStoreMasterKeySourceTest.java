@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class KeyStoreMasterKeySourceTest
+    extends InjectedTestCase
+{
+    private static final char[] STORE_PASSWORD = "changeit".toCharArray();
+
+    String str = "my testing phrase";
+
+    String encStr = "LFulS0pAlmMHpDtm+81oPcqctcwpco5p4Fo7640/gqDRifCahXBefG4FxgKcu17v";
+
+    DefaultPlexusCipher pc;
+
+    File _file;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        pc = new DefaultPlexusCipher();
+        _file = File.createTempFile( "master", ".jceks" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        _file.delete();
+
+        super.tearDown();
+    }
+
+    // -------------------------------------------------------------
+    private static void store( final File file, final String type, final SecretKey key )
+        throws Exception
+    {
+        KeyStore store = KeyStore.getInstance( type );
+        store.load( null, STORE_PASSWORD );
+        store.setEntry( "master", new KeyStore.SecretKeyEntry( key ), new KeyStore.PasswordProtection( STORE_PASSWORD ) );
+
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            store.store( out, STORE_PASSWORD );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testPasswordEntry()
+        throws Exception
+    {
+        store( _file, "JCEKS", new SecretKeySpec( "testtest".getBytes( "US-ASCII" ), "PBE" ) );
+
+        KeyStoreMasterKeySource source =
+            new KeyStoreMasterKeySource( _file, null, STORE_PASSWORD, "master", null, true, 60000 );
+
+        PreparedPassPhrase passPhrase = source.getPassPhrase();
+        assertEquals( str, pc.decrypt( encStr, passPhrase ) );
+        assertNotNull( passPhrase.getSivKey() );
+
+        // cached until the file changes
+        assertSame( passPhrase, source.getPassPhrase() );
+    }
+
+    // -------------------------------------------------------------
+    public void testReload()
+        throws Exception
+    {
+        store( _file, "JCEKS", new SecretKeySpec( new byte[16], "AES" ) );
+
+        KeyStoreMasterKeySource source = new KeyStoreMasterKeySource( _file, "JCEKS", STORE_PASSWORD, "master", null,
+                                                                      false, 0 );
+
+        PreparedPassPhrase first = source.getPassPhrase();
+        assertSame( first, source.getPassPhrase() );
+
+        String enc = pc.encrypt( str, first );
+        assertEquals( str, pc.decrypt( enc, new String( Base64.encodeBase64( new byte[16] ) ) ) );
+
+        byte[] rotated = new byte[16];
+        rotated[0] = 1;
+        store( _file, "JCEKS", new SecretKeySpec( rotated, "AES" ) );
+        _file.setLastModified( _file.lastModified() + 2000 );
+
+        PreparedPassPhrase second = source.getPassPhrase();
+        assertNotSame( first, second );
+        assertEquals( str, pc.decrypt( pc.encrypt( str, second ), new String( Base64.encodeBase64( rotated ) ) ) );
+
+        // a broken file keeps the previous key
+        OutputStream out = new FileOutputStream( _file );
+        out.write( 42 );
+        out.close();
+        assertSame( second, source.getPassPhrase() );
+
+        // but nothing to fall back to fails
+        try
+        {
+            new KeyStoreMasterKeySource( _file, "JCEKS", STORE_PASSWORD, "master", null ).getPassPhrase();
+            fail( "broken key store loaded" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            assertTrue( e.getMessage().startsWith( "default.plexus.cipher.badKeyStore" ) );
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testPkcs12()
+        throws Exception
+    {
+        File p12 = File.createTempFile( "master", ".p12" );
+        try
+        {
+            try
+            {
+                store( p12, "PKCS12", new SecretKeySpec( new byte[16], "AES" ) );
+            }
+            catch ( Exception e )
+            {
+                // secret keys in PKCS12 need Java 8
+                return;
+            }
+
+            KeyStoreMasterKeySource source = new KeyStoreMasterKeySource( p12, null, STORE_PASSWORD, "master", null );
+
+            assertEquals( str, pc.decrypt( pc.encrypt( str, source.getPassPhrase() ),
+                                           new String( Base64.encodeBase64( new byte[16] ) ) ) );
+        }
+        finally
+        {
+            p12.delete();
+        }
+    }
+}
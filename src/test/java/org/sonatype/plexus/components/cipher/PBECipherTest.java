@@ -19,8 +19,13 @@ under the License.
 
 package org.sonatype.plexus.components.cipher;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
 
 import org.sonatype.guice.bean.containers.InjectedTestCase;
 
@@ -82,4 +87,357 @@ public class PBECipherTest
     	String decPwd = _cipher.decrypt64(encPwd, pwd);
     	assertEquals(pwd, decPwd);
     }
+
+    public void testPreparedPassPhrase()
+        throws Exception
+    {
+        PreparedPassPhrase prepared = new PreparedPassPhrase( _password );
+
+        assertEquals( _cleatText, _cipher.decrypt64( _encryptedText, prepared ) );
+
+        String enc = _cipher.encrypt64( _cleatText, prepared );
+
+        assertEquals( _cleatText, _cipher.decrypt64( enc, _password ) );
+
+        assertEquals( _cleatText, _cipher.decrypt64( enc, prepared ) );
+    }
+
+    public void testBinary()
+        throws Exception
+    {
+        PreparedPassPhrase prepared = new PreparedPassPhrase( _password );
+
+        for ( int len = 0; len < 64; len++ )
+        {
+            byte[] clear = new byte[len];
+            Arrays.fill( clear, (byte) len );
+
+            byte[] enc = _cipher.encrypt( clear, prepared );
+
+            assertEquals( PBECipher.getEncryptedLength( len ), enc.length );
+            assertTrue( PBECipher.getDecryptedLength( enc.length ) >= len );
+            assertTrue( Arrays.equals( clear, _cipher.decrypt( enc, _password ) ) );
+        }
+    }
+
+    public void testBinaryOffsets()
+        throws Exception
+    {
+        PreparedPassPhrase prepared = new PreparedPassPhrase( _password );
+        byte[] clear = _cleatText.getBytes( "UTF-8" );
+
+        byte[] enc = new byte[3 + PBECipher.getEncryptedLength( clear.length )];
+        int encLen = _cipher.encrypt( clear, 0, clear.length, prepared, enc, 3 );
+        assertEquals( enc.length - 3, encLen );
+
+        byte[] dec = new byte[5 + PBECipher.getDecryptedLength( encLen )];
+        int decLen = _cipher.decrypt( enc, 3, encLen, prepared, dec, 5 );
+        assertEquals( _cleatText, new String( dec, 5, decLen, "UTF-8" ) );
+    }
+
+    public void testEnvelope64()
+        throws Exception
+    {
+        PreparedPassPhrase prepared = new PreparedPassPhrase( _password );
+
+        assertTrue( PBECipher.isLegacy64( _encryptedText ) );
+
+        for ( int len = 0; len < 40; len++ )
+        {
+            String clear = _cleatText.substring( 0, Math.min( len, _cleatText.length() ) ) + "\u00e9" + len;
+
+            String legacy = _cipher.encrypt64( clear, prepared );
+            String envelope = _cipher.encryptEnvelope64( clear, prepared );
+
+            assertTrue( PBECipher.isLegacy64( legacy ) );
+            assertFalse( PBECipher.isLegacy64( envelope ) );
+            assertTrue( PBECipher.isWellFormed64( envelope ) );
+            assertTrue( envelope.length() <= legacy.length() );
+
+            assertEquals( clear, _cipher.decrypt64( envelope, prepared ) );
+            assertEquals( clear, _cipher.decrypt64( envelope, _password ) );
+        }
+    }
+
+    public void testBinaryRejectsGarbage()
+        throws Exception
+    {
+        try
+        {
+            _cipher.decrypt( new byte[PBECipher.getEncryptedLength( 3 ) - 1], _password );
+            fail( "truncated envelope accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+    }
+
+    public void testEvents()
+        throws Exception
+    {
+        final List<CipherPhase> phases = new ArrayList<CipherPhase>();
+        final List<Boolean> outcomes = new ArrayList<Boolean>();
+
+        CipherEvents.setListener( new CipherEventListener()
+        {
+            public void cipherEvent( CipherPhase phase, int size, long durationNanos, boolean success )
+            {
+                phases.add( phase );
+                outcomes.add( Boolean.valueOf( success ) );
+            }
+        } );
+        try
+        {
+            _cipher.decrypt64( _encryptedText, _password );
+
+            assertEquals( Arrays.asList( new CipherPhase[] { CipherPhase.BASE64_DECODE, CipherPhase.KEY_DERIVATION,
+                CipherPhase.CIPHER_INIT, CipherPhase.CIPHER_FINAL } ), phases );
+            assertFalse( outcomes.contains( Boolean.FALSE ) );
+
+            phases.clear();
+            try
+            {
+                _cipher.decrypt64( _encryptedText, "wrong" );
+            }
+            catch ( PlexusCipherException e )
+            {
+                // bad padding
+            }
+            assertEquals( CipherPhase.CIPHER_FINAL, phases.get( phases.size() - 1 ) );
+            assertEquals( Boolean.FALSE, outcomes.get( outcomes.size() - 1 ) );
+        }
+        finally
+        {
+            CipherEvents.setListener( null );
+        }
+    }
+
+    public void testReentrantListener()
+        throws Exception
+    {
+        final PreparedPassPhrase prepared = new PreparedPassPhrase( _password );
+        final String other = "other value, longer than the outer one " + _cleatText;
+        final String otherEnc = _cipher.encrypt64( other, prepared );
+        final int[] depth = new int[1];
+
+        // a listener that logs through the cipher, on the same thread, while the outer call is in flight
+        CipherEvents.setListener( new CipherEventListener()
+        {
+            public void cipherEvent( CipherPhase phase, int size, long durationNanos, boolean success )
+            {
+                if ( depth[0] > 0 )
+                {
+                    return;
+                }
+
+                depth[0]++;
+                try
+                {
+                    assertEquals( other, _cipher.decrypt64( _cipher.encrypt64( other, prepared ), prepared ) );
+                    assertEquals( other, _cipher.decrypt64( otherEnc, prepared ) );
+                    assertEquals( other, _cipher.decrypt64( _cipher.encryptEnvelope64( other, prepared ), prepared ) );
+                    _cipher.decrypt( _cipher.encrypt( new byte[100], prepared ), prepared );
+                }
+                catch ( PlexusCipherException e )
+                {
+                    throw new IllegalStateException( e );
+                }
+                finally
+                {
+                    depth[0]--;
+                }
+            }
+        } );
+        try
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                assertEquals( _cleatText, _cipher.decrypt64( _encryptedText, prepared ) );
+                assertEquals( _cleatText, _cipher.decrypt64( _cipher.encrypt64( _cleatText, prepared ), prepared ) );
+                assertEquals( _cleatText,
+                              _cipher.decrypt64( _cipher.encryptEnvelope64( _cleatText, prepared ), prepared ) );
+
+                byte[] clear = _cleatText.getBytes( "UTF-8" );
+                assertTrue( Arrays.equals( clear, _cipher.decrypt( _cipher.encrypt( clear, prepared ), prepared ) ) );
+            }
+        }
+        finally
+        {
+            CipherEvents.setListener( null );
+        }
+    }
+
+    public void testSivRfc5297Vector()
+        throws Exception
+    {
+        byte[] key = hex( "fffefdfcfbfaf9f8f7f6f5f4f3f2f1f0f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff" );
+        byte[] ad = hex( "101112131415161718191a1b1c1d1e1f2021222324252627" );
+        byte[] clear = hex( "112233445566778899aabbccddee" );
+        byte[] expected = hex( "85632d07c6e8f37f950acd320a2ecc9340c02b9690c4dc04daef7f6afe5c" );
+
+        assertTrue( Arrays.equals( expected, AesSiv.encrypt( key, new byte[][] { ad }, clear ) ) );
+        assertTrue( Arrays.equals( clear, AesSiv.decrypt( key, new byte[][] { ad }, expected ) ) );
+    }
+
+    public void testDeterministic()
+        throws Exception
+    {
+        String enc = _cipher.encryptDeterministic64( _cleatText, _password );
+
+        assertEquals( enc, _cipher.encryptDeterministic64( _cleatText, new PreparedPassPhrase( _password ) ) );
+        assertFalse( enc.equals( _cipher.encryptDeterministic64( _cleatText + " ", _password ) ) );
+        assertFalse( enc.equals( _cipher.encryptDeterministic64( _cleatText, _password + " " ) ) );
+
+        assertEquals( _cleatText, _cipher.decryptDeterministic64( enc, _password ) );
+
+        try
+        {
+            _cipher.decryptDeterministic64( enc, "wrong" );
+            fail( "decrypted with the wrong password" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+    }
+
+    public void testCompression()
+        throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 200; i++ )
+        {
+            sb.append( "<server><id>repo-" ).append( i ).append( "</id></server>" );
+        }
+        String big = sb.toString();
+
+        String plain = _cipher.encrypt64( big, _password );
+
+        _cipher.setCompressionThreshold( 256 );
+
+        String compressed = _cipher.encrypt64( big, _password );
+        assertTrue( compressed.length() < plain.length() / 4 );
+
+        // below the threshold and incompressible values stay as they were
+        assertEquals( _encryptedText.length(), _cipher.encrypt64( _cleatText, _password ).length() );
+
+        assertEquals( big, _cipher.decrypt64( compressed, _password ) );
+        assertEquals( big, _cipher.decrypt64( plain, _password ) );
+
+        // decryption does not depend on the setting
+        _cipher.setCompressionThreshold( 0 );
+        assertEquals( big, _cipher.decrypt64( compressed, _password ) );
+    }
+
+    public void testStreams()
+        throws Exception
+    {
+        PreparedPassPhrase password = new PreparedPassPhrase( _password );
+
+        byte[] random = new byte[200000];
+        new Random( 1 ).nextBytes( random );
+        byte[] text = new byte[200000];
+        Arrays.fill( text, (byte) 'a' );
+        byte[][] inputs = { new byte[0], "short".getBytes( "UTF-8" ), random, text };
+
+        int[] thresholds = { 0, 1 };
+        for ( int t = 0; t < thresholds.length; t++ )
+        {
+            _cipher.setCompressionThreshold( thresholds[t] );
+
+            for ( int i = 0; i < inputs.length; i++ )
+            {
+                ByteArrayOutputStream enc = new ByteArrayOutputStream();
+                assertEquals( inputs[i].length,
+                              _cipher.encrypt( new ByteArrayInputStream( inputs[i] ), enc, password ) );
+
+                byte[] encrypted = enc.toByteArray();
+                assertEquals( PBECipher.STREAM_VERSION, encrypted[0] );
+
+                // only compressible input of at least the threshold gets compressed
+                boolean compressed = thresholds[t] > 0 && inputs[i] == text;
+                assertEquals( compressed ? PBECipher.COMPRESSED : 0, encrypted[1] );
+                if ( compressed )
+                {
+                    assertTrue( encrypted.length < inputs[i].length / 10 );
+                }
+
+                ByteArrayOutputStream dec = new ByteArrayOutputStream();
+                assertEquals( inputs[i].length,
+                              _cipher.decrypt( new ByteArrayInputStream( encrypted ), dec, password ) );
+                assertTrue( Arrays.equals( inputs[i], dec.toByteArray() ) );
+            }
+        }
+
+        try
+        {
+            _cipher.decrypt( new ByteArrayInputStream( new byte[] { 1, 2, 3 } ), new ByteArrayOutputStream(),
+                             password );
+            fail( "garbage accepted" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+    }
+
+    public void testScratchCodecs()
+        throws Exception
+    {
+        Random random = new Random( 7 );
+        // only used in between the cipher calls below, which acquire it themselves
+        Scratch scratch = Scratch.acquire();
+        scratch.release();
+
+        for ( int i = 0; i < 2000; i++ )
+        {
+            char[] chars = new char[random.nextInt( 40 )];
+            for ( int j = 0; j < chars.length; j++ )
+            {
+                // mostly surrogates and multi byte chars, lone ones included
+                int r = random.nextInt( 4 );
+                chars[j] = (char) ( r == 0 ? random.nextInt( 0x80 ) : r == 1 ? 0xd800 + random.nextInt( 0x800 )
+                                : random.nextInt( 0x10000 ) );
+            }
+            String str = new String( chars );
+
+            byte[] utf8 = new byte[chars.length * 3];
+            int len = PBECipher.encodeUtf8( str, utf8 );
+            assertTrue( str, Arrays.equals( str.getBytes( "UTF-8" ), head( utf8, len ) ) );
+
+            String b64 = PBECipher.encodeBase64( utf8, len, scratch );
+            assertEquals( new String( Base64.encodeBase64( head( utf8, len ) ), "UTF-8" ), b64 );
+
+            assertEquals( len, PBECipher.getStrictDecodedLength( b64 ) );
+            byte[] decoded = new byte[len];
+            PBECipher.decodeBase64( b64, decoded );
+            assertTrue( Arrays.equals( head( utf8, len ), decoded ) );
+
+            assertEquals( new String( str.getBytes( "UTF-8" ), "UTF-8" ),
+                          _cipher.decrypt64( _cipher.encrypt64( str, _password ), _password ) );
+        }
+
+        assertEquals( -1, PBECipher.getStrictDecodedLength( "QUJD\nRA==" ) );
+        assertEquals( -1, PBECipher.getStrictDecodedLength( "QU=D" ) );
+        assertEquals( _cleatText, _cipher.decrypt64( " " + _encryptedText.substring( 0, 10 ) + "\n"
+            + _encryptedText.substring( 10 ), _password ) );
+    }
+
+    private static byte[] head( byte[] bytes, int len )
+    {
+        byte[] res = new byte[len];
+        System.arraycopy( bytes, 0, res, 0, len );
+        return res;
+    }
+
+    private static byte[] hex( String s )
+    {
+        byte[] res = new byte[s.length() / 2];
+        for ( int i = 0; i < res.length; i++ )
+        {
+            res[i] = (byte) Integer.parseInt( s.substring( 2 * i, 2 * i + 2 ), 16 );
+        }
+        return res;
+    }
 }
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Single threaded microbenchmark of the hot paths, reporting throughput and, where the JVM can tell, bytes allocated
+ * per operation. Not a test: run it with the plain classes and with the multi-release jar on each JDK of interest, e.g.
+ * 
+ * <pre>
+ * java -cp target/plexus-cipher.jar:target/test-classes org.sonatype.plexus.components.cipher.PlexusCipherBenchmark
+ * </pre>
+ */
+public class PlexusCipherBenchmark
+{
+    private static final String PASS_PHRASE = "master-password";
+
+    // ---------------------------------------------------------------
+    public static void main( final String[] args )
+        throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong( args[0] ) : 2000;
+
+        System.out.println( "java " + System.getProperty( "java.version" ) + ", platform " + Platform.name() );
+
+        final PBECipher cipher = new PBECipher();
+        final PreparedPassPhrase prepared = new PreparedPassPhrase( PASS_PHRASE );
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 1024; i++ )
+        {
+            sb.append( (char) ( 'a' + i % 26 ) );
+        }
+        final String small = "my testing phrase";
+        final String large = sb.toString();
+        final String smallEnc = cipher.encrypt64( small, prepared );
+        final String largeEnc = cipher.encrypt64( large, prepared );
+        final byte[] largeBytes = Platform.toUtf8( large );
+        final String largeB64 = Platform.encodeBase64String( largeBytes );
+
+        run( "encrypt64 17B", millis, new Op()
+        {
+            public Object run()
+                throws Exception
+            {
+                return cipher.encrypt64( small, prepared );
+            }
+        } );
+        run( "decrypt64 17B", millis, new Op()
+        {
+            public Object run()
+                throws Exception
+            {
+                return cipher.decrypt64( smallEnc, prepared );
+            }
+        } );
+        run( "decrypt64 1KiB", millis, new Op()
+        {
+            public Object run()
+                throws Exception
+            {
+                return cipher.decrypt64( largeEnc, prepared );
+            }
+        } );
+        run( "encrypt64 1KiB", millis, new Op()
+        {
+            public Object run()
+                throws Exception
+            {
+                return cipher.encrypt64( large, prepared );
+            }
+        } );
+        run( "decrypt64 String pass phrase", millis, new Op()
+        {
+            public Object run()
+                throws Exception
+            {
+                return cipher.decrypt64( smallEnc, PASS_PHRASE );
+            }
+        } );
+        run( "base64 encode 1KiB", millis, new Op()
+        {
+            public Object run()
+                throws Exception
+            {
+                return Platform.encodeBase64String( largeBytes );
+            }
+        } );
+        run( "base64 decode 1KiB", millis, new Op()
+        {
+            public Object run()
+                throws Exception
+            {
+                return Platform.decodeBase64( largeB64 );
+            }
+        } );
+    }
+
+    // ---------------------------------------------------------------
+    interface Op
+    {
+        Object run()
+            throws Exception;
+    }
+
+    // ---------------------------------------------------------------
+    static void run( final String name, final long millis, final Op op )
+        throws Exception
+    {
+        // warm up for a third of the time, then measure
+        loop( op, millis / 3 );
+
+        long allocatedBefore = allocatedBytes();
+        long begin = System.nanoTime();
+        long ops = loop( op, millis );
+        long elapsed = System.nanoTime() - begin;
+        long allocatedAfter = allocatedBytes();
+
+        System.out.println( pad( name ) + ( ops * 1000000000L / elapsed ) + " ops/s"
+            + ( allocatedBefore < 0 ? "" : ", " + ( allocatedAfter - allocatedBefore ) / ops + " B/op" ) );
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * @return bytes allocated by the current thread so far, -1 if the JVM does not tell
+     */
+    static long allocatedBytes()
+    {
+        try
+        {
+            // com.sun.management.ThreadMXBean, not available everywhere
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Method method =
+                Class.forName( "com.sun.management.ThreadMXBean" ).getMethod( "getThreadAllocatedBytes",
+                                                                             new Class[] { long.class } );
+            return ( (Long) method.invoke( bean, new Object[] { Long.valueOf( Thread.currentThread().getId() ) } ) )
+                .longValue();
+        }
+        catch ( Exception e )
+        {
+            return -1;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static long loop( final Op op, final long millis )
+        throws Exception
+    {
+        long end = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        int sink = 0;
+        do
+        {
+            for ( int i = 0; i < 64; i++, ops++ )
+            {
+                sink += op.run().hashCode();
+            }
+        }
+        while ( System.nanoTime() < end );
+
+        if ( sink == 42 )
+        {
+            System.out.print( "" );
+        }
+        return ops;
+    }
+
+    // ---------------------------------------------------------------
+    static String pad( final String name )
+    {
+        StringBuilder sb = new StringBuilder( name );
+        while ( sb.length() < 32 )
+        {
+            sb.append( ' ' );
+        }
+        return sb.toString();
+    }
+}
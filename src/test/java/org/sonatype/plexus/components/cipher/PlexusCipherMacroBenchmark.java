@@ -0,0 +1,407 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * End to end benchmark of loading documents full of decorated values through the public {@link PlexusCipher} API,
+ * the way a build does: every value is checked with {@link PlexusCipher#isEncryptedString(String)} and, if it is,
+ * decrypted with {@link PlexusCipher#decryptDecorated(String, String)}. The first load on a new cipher is reported as
+ * cold, then the corpus is loaded repeatedly by each number of threads. Every run reports wall and CPU time,
+ * allocation and peak heap, and all of it is written as JSON so that releases can be compared. Not a test, e.g.
+ * 
+ * <pre>
+ * java -cp target/plexus-cipher.jar:target/test-classes org.sonatype.plexus.components.cipher.PlexusCipherMacroBenchmark \
+ *     -corpus settings.xml -threads 1,2,4,8 -iterations 20 -out results.json
+ * </pre>
+ * 
+ * Without <code>-corpus</code> a <code>settings.xml</code> of <code>-values</code> values is generated in memory with
+ * {@link CorpusGenerator}. For a truly cold figure, generate the corpus beforehand so that nothing warms up the JVM
+ * before the cold run.
+ */
+public class PlexusCipherMacroBenchmark
+{
+    // ---------------------------------------------------------------
+    public static void main( final String[] args )
+        throws Exception
+    {
+        List<String> corpora = new ArrayList<String>();
+        int values = 5000;
+        long seed = 1;
+        int[] threads = { 1, 2, 4 };
+        int iterations = 10;
+        String passPhrase = CorpusGenerator.MASTER_PASSWORD;
+        File out = null;
+
+        for ( int i = 0; i < args.length; i++ )
+        {
+            String arg = args[i];
+
+            if ( i + 1 == args.length )
+            {
+                usage( "missing value of " + arg );
+            }
+
+            String value = args[++i];
+
+            if ( "-corpus".equals( arg ) )
+            {
+                corpora.add( value );
+            }
+            else if ( "-values".equals( arg ) )
+            {
+                values = Integer.parseInt( value );
+            }
+            else if ( "-seed".equals( arg ) )
+            {
+                seed = Long.parseLong( value );
+            }
+            else if ( "-threads".equals( arg ) )
+            {
+                String[] parts = value.split( "," );
+                threads = new int[parts.length];
+                for ( int j = 0; j < parts.length; j++ )
+                {
+                    threads[j] = Integer.parseInt( parts[j].trim() );
+                }
+            }
+            else if ( "-iterations".equals( arg ) )
+            {
+                iterations = Integer.parseInt( value );
+            }
+            else if ( "-passPhrase".equals( arg ) )
+            {
+                passPhrase = value;
+            }
+            else if ( "-out".equals( arg ) )
+            {
+                out = new File( value );
+            }
+            else
+            {
+                usage( "unknown option " + arg );
+            }
+        }
+
+        List<String> corpus = new ArrayList<String>();
+        long corpusChars = 0;
+
+        if ( corpora.isEmpty() )
+        {
+            String doc =
+                new CorpusGenerator( new DefaultPlexusCipher(), passPhrase, seed ).settingsXml( values );
+
+            corpus.addAll( CorpusGenerator.extractValues( doc ) );
+            corpusChars += doc.length();
+        }
+        else
+        {
+            for ( Iterator<String> it = corpora.iterator(); it.hasNext(); )
+            {
+                String doc = read( new File( it.next() ) );
+
+                corpus.addAll( CorpusGenerator.extractValues( doc ) );
+                corpusChars += doc.length();
+            }
+        }
+
+        String[] corpusValues = corpus.toArray( new String[corpus.size()] );
+
+        System.out.println( "java " + System.getProperty( "java.version" ) + ", platform " + Platform.name() + ", "
+            + corpusValues.length + " values, " + corpusChars + " chars" );
+
+        List<Result> results = new ArrayList<Result>();
+
+        PlexusCipher cipher = new DefaultPlexusCipher();
+
+        results.add( run( "cold", cipher, passPhrase, corpusValues, 1, 1 ) );
+
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            // one untimed pass so that every thread count starts warm
+            run( "warm-up", cipher, passPhrase, corpusValues, threads[i], 1 );
+
+            results.add( run( "warm", cipher, passPhrase, corpusValues, threads[i], iterations ) );
+        }
+
+        if ( out != null )
+        {
+            CorpusGenerator.write( out, toJson( corpusValues.length, corpusChars, results ) );
+
+            System.out.println( "results written to " + out );
+        }
+    }
+
+    // ---------------------------------------------------------------
+    private static void usage( final String message )
+    {
+        System.err.println( message );
+        System.err.println( "usage: PlexusCipherMacroBenchmark [-corpus file]... [-values n] [-seed n] [-threads 1,2,4]"
+            + " [-iterations n] [-passPhrase p] [-out results.json]" );
+        System.exit( 1 );
+    }
+
+    // ---------------------------------------------------------------
+    static final class Result
+    {
+        String phase;
+
+        int threads;
+
+        int iterations;
+
+        long values;
+
+        long decrypted;
+
+        long rejected;
+
+        long wallNanos;
+
+        long cpuNanos;
+
+        /** -1 if the JVM does not tell */
+        long allocatedBytes;
+
+        long peakHeapBytes;
+    }
+
+    // ---------------------------------------------------------------
+    /**
+     * load the corpus <code>iterations</code> times, split across <code>threads</code> threads
+     */
+    static Result run( final String phase, final PlexusCipher cipher, final String passPhrase, final String[] values,
+                       final int threads, final int iterations )
+        throws InterruptedException
+    {
+        final Result res = new Result();
+        res.phase = phase;
+        res.threads = threads;
+        res.iterations = iterations;
+
+        List<MemoryPoolMXBean> heap = new ArrayList<MemoryPoolMXBean>();
+        for ( Iterator<MemoryPoolMXBean> it = ManagementFactory.getMemoryPoolMXBeans().iterator(); it.hasNext(); )
+        {
+            MemoryPoolMXBean pool = it.next();
+            if ( pool.getType() == MemoryType.HEAP && pool.isValid() )
+            {
+                heap.add( pool );
+            }
+        }
+
+        System.gc();
+        for ( Iterator<MemoryPoolMXBean> it = heap.iterator(); it.hasNext(); )
+        {
+            it.next().resetPeakUsage();
+        }
+
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        final boolean cpu = bean.isThreadCpuTimeSupported();
+        if ( cpu && !bean.isThreadCpuTimeEnabled() )
+        {
+            bean.setThreadCpuTimeEnabled( true );
+        }
+
+        final long[] counters = new long[4];
+        counters[3] = 0;
+
+        Thread[] workers = new Thread[threads];
+
+        long begin = System.nanoTime();
+
+        for ( int t = 0; t < threads; t++ )
+        {
+            final int first = t;
+
+            workers[t] = new Thread( "macrobenchmark-" + t )
+            {
+                public void run()
+                {
+                    long cpuBefore = cpu ? bean.getCurrentThreadCpuTime() : 0;
+                    long allocatedBefore = PlexusCipherBenchmark.allocatedBytes();
+
+                    long decrypted = 0;
+                    long rejected = 0;
+
+                    for ( int it = 0; it < iterations; it++ )
+                    {
+                        for ( int i = first; i < values.length; i += threads )
+                        {
+                            if ( cipher.isEncryptedString( values[i] ) )
+                            {
+                                try
+                                {
+                                    cipher.decryptDecorated( values[i], passPhrase );
+                                    decrypted++;
+                                }
+                                catch ( PlexusCipherException e )
+                                {
+                                    // escaped braces look decorated too
+                                    rejected++;
+                                }
+                            }
+                        }
+                    }
+
+                    long cpuNanos = cpu ? bean.getCurrentThreadCpuTime() - cpuBefore : 0;
+                    long allocatedAfter = PlexusCipherBenchmark.allocatedBytes();
+
+                    synchronized ( counters )
+                    {
+                        counters[0] += decrypted;
+                        counters[1] += rejected;
+                        counters[2] += cpuNanos;
+
+                        if ( allocatedBefore < 0 || counters[3] < 0 )
+                        {
+                            counters[3] = -1;
+                        }
+                        else
+                        {
+                            counters[3] += allocatedAfter - allocatedBefore;
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+
+        for ( int t = 0; t < threads; t++ )
+        {
+            workers[t].join();
+        }
+
+        res.wallNanos = System.nanoTime() - begin;
+        res.values = (long) values.length * iterations;
+        res.decrypted = counters[0];
+        res.rejected = counters[1];
+        res.cpuNanos = cpu ? counters[2] : -1;
+        res.allocatedBytes = counters[3];
+
+        for ( Iterator<MemoryPoolMXBean> it = heap.iterator(); it.hasNext(); )
+        {
+            res.peakHeapBytes += it.next().getPeakUsage().getUsed();
+        }
+
+        if ( !"warm-up".equals( phase ) )
+        {
+            System.out.println( PlexusCipherBenchmark.pad( phase + " " + threads + " thread(s)" )
+                + res.values * 1000000000L / Math.max( 1, res.wallNanos ) + " values/s, wall "
+                + res.wallNanos / 1000000 + " ms, cpu " + res.cpuNanos / 1000000 + " ms, "
+                + ( res.allocatedBytes < 0 ? "" : res.allocatedBytes / Math.max( 1, res.values ) + " B/value, " )
+                + "peak heap " + res.peakHeapBytes / ( 1024 * 1024 ) + " MiB" );
+        }
+
+        return res;
+    }
+
+    // ---------------------------------------------------------------
+    static String toJson( final int values, final long chars, final List<Result> results )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "{\n" );
+        sb.append( "  \"javaVersion\": " ).append( quote( System.getProperty( "java.version" ) ) ).append( ",\n" );
+        sb.append( "  \"javaVendor\": " ).append( quote( System.getProperty( "java.vendor" ) ) ).append( ",\n" );
+        sb.append( "  \"os\": " ).append( quote( System.getProperty( "os.name" ) + " " + System.getProperty( "os.arch" ) ) );
+        sb.append( ",\n  \"processors\": " ).append( Runtime.getRuntime().availableProcessors() ).append( ",\n" );
+        sb.append( "  \"platform\": " ).append( quote( Platform.name() ) ).append( ",\n" );
+        sb.append( "  \"timestamp\": " ).append( System.currentTimeMillis() ).append( ",\n" );
+        sb.append( "  \"corpus\": { \"values\": " ).append( values ).append( ", \"chars\": " ).append( chars );
+        sb.append( " },\n  \"runs\": [\n" );
+
+        for ( int i = 0; i < results.size(); i++ )
+        {
+            Result r = results.get( i );
+
+            sb.append( "    { \"phase\": " ).append( quote( r.phase ) );
+            sb.append( ", \"threads\": " ).append( r.threads );
+            sb.append( ", \"iterations\": " ).append( r.iterations );
+            sb.append( ", \"values\": " ).append( r.values );
+            sb.append( ", \"decrypted\": " ).append( r.decrypted );
+            sb.append( ", \"rejected\": " ).append( r.rejected );
+            sb.append( ", \"wallNanos\": " ).append( r.wallNanos );
+            sb.append( ", \"cpuNanos\": " ).append( r.cpuNanos );
+            sb.append( ", \"allocatedBytes\": " ).append( r.allocatedBytes );
+            sb.append( ", \"peakHeapBytes\": " ).append( r.peakHeapBytes );
+            sb.append( ", \"valuesPerSecond\": " ).append( r.values * 1000000000L / Math.max( 1, r.wallNanos ) );
+            sb.append( i + 1 < results.size() ? " },\n" : " }\n" );
+        }
+
+        sb.append( "  ]\n}\n" );
+
+        return sb.toString();
+    }
+
+    // ---------------------------------------------------------------
+    private static String quote( final String str )
+    {
+        StringBuilder sb = new StringBuilder( "\"" );
+
+        for ( int i = 0; i < str.length(); i++ )
+        {
+            char c = str.charAt( i );
+
+            if ( c == '"' || c == '\\' )
+            {
+                sb.append( '\\' ).append( c );
+            }
+            else if ( c < ' ' )
+            {
+                String hex = Integer.toHexString( c );
+                sb.append( "\\u0000".substring( 0, 6 - hex.length() ) ).append( hex );
+            }
+            else
+            {
+                sb.append( c );
+            }
+        }
+
+        return sb.append( '"' ).toString();
+    }
+
+    // ---------------------------------------------------------------
+    private static String read( final File file )
+        throws IOException
+    {
+        Reader in = new InputStreamReader( new FileInputStream( file ), "UTF-8" );
+        try
+        {
+            StringBuilder sb = new StringBuilder( (int) file.length() );
+            char[] buf = new char[8192];
+
+            for ( int n; ( n = in.read( buf ) ) >= 0; )
+            {
+                sb.append( buf, 0, n );
+            }
+
+            return sb.toString();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
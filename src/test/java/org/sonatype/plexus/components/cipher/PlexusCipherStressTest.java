@@ -0,0 +1,297 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+/**
+ * Hammers one shared cipher instance, the way the container uses it, from several threads. Every operation checks
+ * its own round trip; throughput and lock contention are printed for each thread count.
+ * <p>
+ * Load can be raised with the <code>plexus.cipher.stress.threads</code> (comma separated thread counts) and
+ * <code>plexus.cipher.stress.ops</code> (operations per thread) system properties.
+ */
+public class PlexusCipherStressTest
+    extends InjectedTestCase
+{
+    private static final String[] PASS_PHRASES =
+        { "testtest", "g", "\u00e4\u00fc\u00f6\u00dc\u00d6\u00c4\u00df\"\u00a7$%&/()=?\u00e9", "master-password-0123456789" };
+
+    private static final String KNOWN_CLEAR = "my testing phrase";
+
+    private static final String KNOWN_ENCRYPTED = "LFulS0pAlmMHpDtm+81oPcqctcwpco5p4Fo7640/gqDRifCahXBefG4FxgKcu17v";
+
+    DefaultPlexusCipher pc;
+
+    PreparedPassPhrase[] prepared;
+
+    int[] threadCounts;
+
+    int ops;
+
+    // -------------------------------------------------------------
+    public void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        pc = new DefaultPlexusCipher();
+
+        prepared = new PreparedPassPhrase[PASS_PHRASES.length];
+        for ( int i = 0; i < PASS_PHRASES.length; i++ )
+        {
+            prepared[i] = new PreparedPassPhrase( PASS_PHRASES[i] );
+        }
+
+        String[] counts = System.getProperty( "plexus.cipher.stress.threads", "1,2,4,8" ).split( "," );
+        threadCounts = new int[counts.length];
+        for ( int i = 0; i < counts.length; i++ )
+        {
+            threadCounts[i] = Integer.parseInt( counts[i].trim() );
+        }
+
+        ops = Integer.getInteger( "plexus.cipher.stress.ops", 200 ).intValue();
+
+        // warm up, so that the single thread figure is not dominated by the JIT
+        Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        hammer( new Random(), failures );
+        assertTrue( "warm up failed: " + failures.peek(), failures.isEmpty() );
+    }
+
+    // -------------------------------------------------------------
+    public void testPlatformThreads()
+        throws Exception
+    {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        boolean contention = mx.isThreadContentionMonitoringSupported();
+        if ( contention )
+        {
+            mx.setThreadContentionMonitoringEnabled( true );
+        }
+
+        System.out.println( "\n=== platform threads: " + ops + " ops/thread" );
+
+        double base = 0;
+        for ( int i = 0; i < threadCounts.length; i++ )
+        {
+            int threads = threadCounts[i];
+
+            ExecutorService executor = Executors.newFixedThreadPool( threads );
+            try
+            {
+                Set<Long> workers = Collections.synchronizedSet( new HashSet<Long>() );
+
+                double throughput = run( executor, threads, workers );
+                if ( base == 0 )
+                {
+                    base = throughput / threads;
+                }
+
+                StringBuilder line = new StringBuilder();
+                line.append( threads ).append( " threads: " ).append( (long) throughput ).append( " ops/s, scaling " );
+                line.append( (float) ( throughput / base ) ).append( "x" );
+                if ( contention )
+                {
+                    appendContention( line, mx, workers );
+                }
+                System.out.println( line );
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+        System.out.println( "====================" );
+    }
+
+    // -------------------------------------------------------------
+    public void testVirtualThreads()
+        throws Exception
+    {
+        ExecutorService executor;
+        try
+        {
+            // only present on Java 21+, the build itself targets much older runtimes
+            executor =
+                (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            System.out.println( "\n=== virtual threads not available on " + System.getProperty( "java.version" ) );
+            return;
+        }
+
+        System.out.println( "\n=== virtual threads: " + ops + " ops/thread" );
+        try
+        {
+            for ( int i = 0; i < threadCounts.length; i++ )
+            {
+                // virtual threads are cheap, so oversubscribe the carriers
+                int threads = threadCounts[i] * 16;
+
+                double throughput = run( executor, threads, null );
+
+                System.out.println( threads + " threads: " + (long) throughput + " ops/s" );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        System.out.println( "====================" );
+    }
+
+    // -------------------------------------------------------------
+    private double run( final ExecutorService executor, final int threads, final Set<Long> workers )
+        throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( threads );
+        final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+
+        for ( int t = 0; t < threads; t++ )
+        {
+            final long seed = 31L * threads + t;
+            executor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    if ( workers != null )
+                    {
+                        workers.add( Long.valueOf( Thread.currentThread().getId() ) );
+                    }
+                    try
+                    {
+                        start.await();
+                        hammer( new Random( seed ), failures );
+                    }
+                    catch ( Throwable e )
+                    {
+                        failures.add( e.toString() );
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            } );
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        assertTrue( "stress run timed out", done.await( 10, TimeUnit.MINUTES ) );
+        long elapsed = System.nanoTime() - begin;
+
+        assertTrue( failures.size() + " failures with " + threads + " threads, first: " + failures.peek(),
+                    failures.isEmpty() );
+
+        return threads * (double) ops * TimeUnit.SECONDS.toNanos( 1 ) / elapsed;
+    }
+
+    // -------------------------------------------------------------
+    private void hammer( final Random random, final Queue<String> failures )
+        throws PlexusCipherException
+    {
+        for ( int i = 0; i < ops; i++ )
+        {
+            int p = random.nextInt( PASS_PHRASES.length );
+            String clear = randomText( random );
+            String res;
+
+            switch ( random.nextInt( 4 ) )
+            {
+                case 0:
+                    res = pc.decrypt( pc.encrypt( clear, PASS_PHRASES[p] ), PASS_PHRASES[p] );
+                    break;
+                case 1:
+                    res = pc.decrypt( pc.encrypt( clear, prepared[p] ), PASS_PHRASES[p] );
+                    break;
+                case 2:
+                    res = pc.decryptDecorated( "prefix " + pc.encryptAndDecorate( clear, prepared[p] ) + " suffix",
+                                               prepared[p] );
+                    break;
+                default:
+                    clear = KNOWN_CLEAR;
+                    res = pc.decryptDecorated( pc.decorate( KNOWN_ENCRYPTED ), PASS_PHRASES[0] );
+                    break;
+            }
+
+            if ( !clear.equals( res ) )
+            {
+                failures.add( "round trip of [" + clear + "] produced [" + res + "]" );
+            }
+        }
+    }
+
+    // -------------------------------------------------------------
+    private static String randomText( final Random random )
+    {
+        int len = 1 + random.nextInt( random.nextInt( 8 ) == 0 ? 4096 : 64 );
+
+        StringBuilder sb = new StringBuilder( len );
+        for ( int i = 0; i < len; i++ )
+        {
+            switch ( random.nextInt( 8 ) )
+            {
+                case 0:
+                    // outside of latin-1, exercises multi byte UTF-8
+                    sb.append( (char) ( 0x0400 + random.nextInt( 0x0200 ) ) );
+                    break;
+                case 1:
+                    sb.append( "{}\\".charAt( random.nextInt( 3 ) ) );
+                    break;
+                default:
+                    sb.append( (char) ( ' ' + random.nextInt( 95 ) ) );
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    // -------------------------------------------------------------
+    private static void appendContention( final StringBuilder line, final ThreadMXBean mx, final Set<Long> workers )
+    {
+        long blockedCount = 0, blockedTime = 0, waitedCount = 0;
+
+        synchronized ( workers )
+        {
+            for ( Long id : workers )
+            {
+                ThreadInfo info = mx.getThreadInfo( id.longValue() );
+                if ( info != null )
+                {
+                    blockedCount += info.getBlockedCount();
+                    blockedTime += Math.max( 0, info.getBlockedTime() );
+                    waitedCount += info.getWaitedCount();
+                }
+            }
+        }
+
+        line.append( ", blocked " ).append( blockedCount ).append( "x/" ).append( blockedTime ).append( "ms" );
+        line.append( ", waited " ).append( waitedCount ).append( "x" );
+    }
+}
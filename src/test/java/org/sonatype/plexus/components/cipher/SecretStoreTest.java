@@ -0,0 +1,309 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class SecretStoreTest
+    extends InjectedTestCase
+{
+    PreparedPassPhrase _passPhrase;
+
+    File _file;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        _passPhrase = new PreparedPassPhrase( "testtest" );
+        _file = File.createTempFile( "secrets", ".store" );
+        _file.delete();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        _file.delete();
+        new File( _file.getPath() + ".compact" ).delete();
+
+        super.tearDown();
+    }
+
+    // -------------------------------------------------------------
+    public void testPutGetRemove()
+        throws Exception
+    {
+        SecretStore store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            assertNull( store.get( "missing" ) );
+
+            store.put( "server.password", "secret" );
+            store.put( "empty", "" );
+            store.put( "unicode \u00e9", "\u00fc\u00f1\u00ee" );
+
+            assertEquals( "secret", store.get( "server.password" ) );
+            assertEquals( "", store.get( "empty" ) );
+            assertEquals( "\u00fc\u00f1\u00ee", store.get( "unicode \u00e9" ) );
+            assertEquals( 3, store.size() );
+
+            store.put( "server.password", "changed" );
+            assertEquals( "changed", store.get( "server.password" ) );
+            assertEquals( 3, store.size() );
+            assertTrue( store.getGarbage() > 0 );
+
+            assertTrue( store.remove( "empty" ) );
+            assertFalse( store.remove( "empty" ) );
+            assertFalse( store.contains( "empty" ) );
+            assertNull( store.get( "empty" ) );
+            assertEquals( 2, store.size() );
+        }
+        finally
+        {
+            store.close();
+        }
+
+        store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            assertEquals( 2, store.size() );
+            assertEquals( "changed", store.get( "server.password" ) );
+            assertNull( store.get( "empty" ) );
+            assertEquals( new HashSet<String>( store.getNames() ),
+                          new HashSet<String>( Arrays.asList( "server.password", "unicode \u00e9" ) ) );
+        }
+        finally
+        {
+            store.close();
+        }
+
+        try
+        {
+            new SecretStore( _file, new PreparedPassPhrase( "wrong" ) ).close();
+            fail( "opened with the wrong pass phrase" );
+        }
+        catch ( PlexusCipherException e )
+        {
+            // expected
+        }
+
+        store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            assertEquals( "changed", store.get( "server.password" ) );
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testGrowAndCompact()
+        throws Exception
+    {
+        SecretStore store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            // more names than half the initial index, and values beyond the initial mapping
+            for ( int i = 0; i < 600; i++ )
+            {
+                store.put( "name" + i, "value" + i + new String( new char[i] ).replace( '\0', 'x' ) );
+            }
+            for ( int i = 0; i < 600; i += 2 )
+            {
+                store.remove( "name" + i );
+            }
+            assertEquals( 300, store.size() );
+
+            long before = _file.length();
+            store.compact();
+            assertEquals( 0, store.getGarbage() );
+            assertTrue( _file.length() < before );
+
+            for ( int i = 0; i < 600; i++ )
+            {
+                String value = store.get( "name" + i );
+                if ( i % 2 == 0 )
+                {
+                    assertNull( value );
+                }
+                else
+                {
+                    assertEquals( "value" + i + new String( new char[i] ).replace( '\0', 'x' ), value );
+                }
+            }
+
+            store.put( "after", "compaction" );
+            assertEquals( "compaction", store.get( "after" ) );
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testRecovery()
+        throws Exception
+    {
+        SecretStore store = new SecretStore( _file, _passPhrase );
+        store.put( "a", "1" );
+        store.close();
+
+        RandomAccessFile raf = new RandomAccessFile( _file, "rw" );
+        raf.seek( 16 );
+        long committed = raf.readLong();
+        raf.close();
+
+        store = new SecretStore( _file, _passPhrase );
+        store.put( "b", "2" );
+        store.close();
+
+        // crash after the record was written, before the header was updated, followed by a torn append
+        raf = new RandomAccessFile( _file, "rw" );
+        raf.seek( 16 );
+        long end = raf.readLong();
+        raf.seek( 16 );
+        raf.writeLong( committed );
+        raf.seek( end );
+        raf.writeInt( 100 );
+        raf.writeInt( 12345 );
+        raf.close();
+
+        store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            assertEquals( "1", store.get( "a" ) );
+            assertEquals( "2", store.get( "b" ) );
+            assertEquals( 2, store.size() );
+
+            store.put( "c", "3" );
+        }
+        finally
+        {
+            store.close();
+        }
+
+        store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            assertEquals( 3, store.size() );
+            assertEquals( "3", store.get( "c" ) );
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testInterruptedCompaction()
+        throws Exception
+    {
+        SecretStore store = new SecretStore( _file, _passPhrase );
+        store.put( "a", "1" );
+        store.compact();
+        store.close();
+
+        File tmp = new File( _file.getPath() + ".compact" );
+
+        // crash after the old file was deleted, before the new one was renamed over it
+        assertTrue( _file.renameTo( tmp ) );
+
+        store = new SecretStore( _file, _passPhrase );
+        store.close();
+        assertFalse( tmp.exists() );
+
+        // crash while the new file was still being written
+        RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+        raf.writeInt( 12345 );
+        raf.close();
+
+        store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            assertFalse( tmp.exists() );
+            assertEquals( "1", store.get( "a" ) );
+            assertEquals( 1, store.size() );
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testConcurrentReaders()
+        throws Exception
+    {
+        final SecretStore store = new SecretStore( _file, _passPhrase );
+        try
+        {
+            for ( int i = 0; i < 50; i++ )
+            {
+                store.put( "name" + i, "value" + i );
+            }
+
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+            Thread[] readers = new Thread[4];
+            for ( int t = 0; t < readers.length; t++ )
+            {
+                readers[t] = new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            for ( int i = 0; i < 500; i++ )
+                            {
+                                assertEquals( "value" + i % 50, store.get( "name" + i % 50 ) );
+                            }
+                        }
+                        catch ( Throwable e )
+                        {
+                            failure.set( e );
+                        }
+                    }
+                };
+                readers[t].start();
+            }
+
+            // growing the mapping and the index under the readers
+            for ( int i = 50; i < 700; i++ )
+            {
+                store.put( "name" + i, "value" + i );
+            }
+
+            for ( int t = 0; t < readers.length; t++ )
+            {
+                readers[t].join();
+            }
+
+            assertNull( String.valueOf( failure.get() ), failure.get() );
+            assertEquals( 700, store.size() );
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+}
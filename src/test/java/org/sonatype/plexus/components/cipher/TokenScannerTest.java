@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.sonatype.guice.bean.containers.InjectedTestCase;
+
+public class TokenScannerTest
+    extends InjectedTestCase
+{
+    private String passPhrase = "testtest";
+
+    DefaultPlexusCipher pc;
+
+    File _dir;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        pc = new DefaultPlexusCipher();
+
+        _dir = File.createTempFile( "scan", "" );
+        _dir.delete();
+        _dir.mkdirs();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        delete( _dir );
+
+        super.tearDown();
+    }
+
+    private static void delete( final File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    private static File write( final File file, final String content )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        return file;
+    }
+
+    // -------------------------------------------------------------
+    public void testTokens()
+        throws Exception
+    {
+        String a = pc.encrypt( "a", passPhrase );
+        String b = pc.encrypt( "b", passPhrase );
+        String foreign = pc.encrypt( "c", "other" );
+
+        String content =
+            "<password>{" + a + "}</password>\n" + "<\u00e9>x {" + b + "} and ${property}</\u00e9>\n" + "{unclosed\n}\n"
+                + "{esc\\}aped} {\\} {}} {x}\r\n" + "<other>{" + foreign + "}</other>\n";
+
+        File file = write( new File( _dir, "settings.xml" ), content );
+
+        List<TokenScanner.Token> tokens = new TokenScanner( pc, new PreparedPassPhrase( passPhrase ), 1 ).scan( file );
+
+        List<String> values = new ArrayList<String>();
+        for ( TokenScanner.Token token : tokens )
+        {
+            values.add( token.getValue() );
+
+            assertSame( file, token.getFile() );
+
+            // the offset is in bytes, the token is found there
+            String prefix = new String( content.getBytes( "UTF-8" ), 0, (int) token.getOffset(), "UTF-8" );
+            assertTrue( content.substring( prefix.length() ).startsWith( "{" + token.getValue() + "}" ) );
+        }
+
+        assertEquals( asList( a, b, "property", "esc\\}aped", "\\} {", "x", foreign ), values );
+
+        assertEquals( 1, tokens.get( 0 ).getLine() );
+        assertEquals( 2, tokens.get( 1 ).getLine() );
+        assertEquals( 5, tokens.get( 3 ).getLine() );
+        assertEquals( 6, tokens.get( 6 ).getLine() );
+
+        assertEquals( Boolean.TRUE, tokens.get( 0 ).getDecryptable() );
+        assertEquals( Boolean.TRUE, tokens.get( 1 ).getDecryptable() );
+        assertEquals( Boolean.FALSE, tokens.get( 2 ).getDecryptable() );
+
+        // the first token of every line is the one the library finds
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try
+        {
+            int line = 0;
+            for ( String str = reader.readLine(); str != null; str = reader.readLine() )
+            {
+                line++;
+
+                TokenScanner.Token first = null;
+                for ( TokenScanner.Token token : tokens )
+                {
+                    if ( token.getLine() == line )
+                    {
+                        first = token;
+                        break;
+                    }
+                }
+
+                assertEquals( str, first != null, pc.isEncryptedString( str ) );
+                if ( first != null )
+                {
+                    assertEquals( str, pc.unDecorate( str ), first.getValue() );
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    // -------------------------------------------------------------
+    public void testTree()
+        throws Exception
+    {
+        StringBuilder big = new StringBuilder();
+        while ( big.length() < TokenScanner.MAP_THRESHOLD )
+        {
+            big.append( "<filler>no tokens here</filler>\n" );
+        }
+
+        List<String> expected = new ArrayList<String>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            String enc = pc.encrypt( "value" + i, passPhrase );
+            expected.add( enc );
+
+            String content = "<v>{" + enc + "}</v>\n";
+            write( new File( _dir, "d" + i / 5 + "/f" + i % 5 + ".xml" ), i % 7 == 0 ? big + content : content );
+        }
+        write( new File( _dir, "d0/skipped.txt" ), "{" + pc.encrypt( "x", passPhrase ) + "}" );
+
+        TokenScanner scanner = new TokenScanner( 4 );
+        scanner.setFilter( new java.io.FileFilter()
+        {
+            public boolean accept( final File file )
+            {
+                return file.isDirectory() || file.getName().endsWith( ".xml" );
+            }
+        } );
+
+        List<TokenScanner.Token> tokens = scanner.scan( _dir );
+
+        List<String> values = new ArrayList<String>();
+        for ( TokenScanner.Token token : tokens )
+        {
+            values.add( token.getValue() );
+            assertNull( token.getDecryptable() );
+        }
+
+        // in file order
+        assertEquals( expected, values );
+
+        final List<TokenScanner.Token> streamed = Collections.synchronizedList( new ArrayList<TokenScanner.Token>() );
+        scanner.scan( new TokenScanner.Listener()
+        {
+            public void onToken( final TokenScanner.Token token )
+            {
+                streamed.add( token );
+            }
+
+            public void onError( final File file, final IOException e )
+            {
+                fail( file + ": " + e );
+            }
+        }, _dir );
+        assertEquals( 20, streamed.size() );
+    }
+
+    private static List<String> asList( final String... values )
+    {
+        List<String> res = new ArrayList<String>();
+        Collections.addAll( res, values );
+        return res;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2008 Sonatype, Inc. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package org.sonatype.plexus.components.cipher;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Toy engine registered through META-INF/services to test engine discovery. Not encryption!
+ */
+public class XorCipherEngine
+    implements CipherEngine
+{
+    public String getId()
+    {
+        return "test-xor";
+    }
+
+    public byte getVersion()
+    {
+        return (byte) 0x7f;
+    }
+
+    public int getPriority()
+    {
+        return 0;
+    }
+
+    public Set<Capability> getCapabilities()
+    {
+        return EnumSet.of( Capability.DETERMINISTIC );
+    }
+
+    public byte[] encrypt( final byte[] clearBytes, final PreparedPassPhrase passPhrase )
+    {
+        byte[] res = new byte[clearBytes.length + 1];
+        res[0] = getVersion();
+        for ( int i = 0; i < clearBytes.length; i++ )
+        {
+            res[i + 1] = (byte) ( clearBytes[i] ^ 0x55 );
+        }
+        return res;
+    }
+
+    public byte[] decrypt( final byte[] encryptedBytes, final PreparedPassPhrase passPhrase )
+    {
+        byte[] res = new byte[encryptedBytes.length - 1];
+        for ( int i = 0; i < res.length; i++ )
+        {
+            res[i] = (byte) ( encryptedBytes[i + 1] ^ 0x55 );
+        }
+        return res;
+    }
+}